@@ -0,0 +1,342 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Il codec binario, sul modello dei descrittori di Gnutella 0.6. Ogni messaggio
+ * comincia con un'intestazione di lunghezza fissa: i 16 bytes dell'identificatore,
+ * il tipo, il ttl, il numero di inoltri e la lunghezza del contenuto che segue.
+ * Il contenuto dipende dal tipo del messaggio ed è scritto a mano campo per campo:
+ * niente descrittori di classe nè riflessione, per cui un ping occupa 27 bytes
+ * anzichè qualche centinaio.
+ * <p>
+ * Le porte sono scritte su due bytes senza segno, le stringhe nel formato di
+ * <code>DataOutput.writeUTF</code> e gli indirizzi in un campo di lunghezza fissa,
+ * un byte con la lunghezza dell'indirizzo (0 se assente) seguito da 16 bytes, così
+ * che i campi successivi si trovino sempre alla stessa posizione.
+ * @author Michele Comignano
+ */
+class BinaryCodec extends MessageCodec {
+  @Override
+  String getName() {
+    return NAME;
+  }
+  @Override
+  int getTtlOffset() {
+    return TTL_OFFSET;
+  }
+  @Override
+  protected byte[] write(Message msg) throws IOException {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(byteOut);
+    out.writeLong(msg.idHigh);
+    out.writeLong(msg.idLow);
+    out.writeByte(msg.messageType);
+    out.writeByte(msg.getTtl());
+    out.writeByte(msg.getHops());
+    // La lunghezza del contenuto viene corretta una volta scritto il contenuto.
+    out.writeInt(0);
+    switch (msg.messageType) {
+      case PingMessage.TYPE_ID:
+        PingMessage ping = (PingMessage) msg;
+        out.writeShort(ping.connectPort);
+        out.writeShort(ping.explorePort);
+        break;
+      case PongMessage.TYPE_ID:
+        PongMessage pong = (PongMessage) msg;
+        out.writeShort(pong.connectPort);
+        out.writeShort(pong.explorePort);
+        writeAddress(out, pong.address);
+        break;
+      case QueryMessage.TYPE_ID:
+        QueryMessage query = (QueryMessage) msg;
+        writeStrings(out, query.keyWords);
+        // Le opzioni stanno in coda, dove chi non le conosce non le legge.
+        out.writeByte(query.walker ? FLAG_WALKER : 0);
+        break;
+      case QueryHitMessage.TYPE_ID:
+        QueryHitMessage hit = (QueryHitMessage) msg;
+        out.writeShort(hit.fileServerPort);
+        out.writeByte((hit.firewalled ? FLAG_FIREWALLED : 0) | (hit.cached ? FLAG_CACHED : 0));
+        writeAddress(out, hit.address);
+        writeStrings(out, hit.matches);
+        break;
+      case PushMessage.TYPE_ID:
+        PushMessage push = (PushMessage) msg;
+        out.writeShort(push.fileServerPort);
+        writeAddress(out, push.target);
+        out.writeUTF(push.fileName);
+        break;
+      case QueryRouteMessage.TYPE_ID:
+        QueryRouteMessage route = (QueryRouteMessage) msg;
+        out.writeByte(route.variant);
+        out.writeByte(route.bits);
+        out.writeInt(route.patch.length);
+        out.write(route.patch);
+        break;
+      case QueryStatusMessage.TYPE_ID:
+        out.writeByte(((QueryStatusMessage) msg).variant);
+        break;
+      default:
+        throw new IOException("Tipo di messaggio sconosciuto: " + msg.messageType);
+    }
+    out.flush();
+    byte[] data = byteOut.toByteArray();
+    int payloadLength = data.length - HEADER_LENGTH;
+    data[PAYLOAD_LENGTH_OFFSET] = (byte) (payloadLength >>> 24);
+    data[PAYLOAD_LENGTH_OFFSET + 1] = (byte) (payloadLength >>> 16);
+    data[PAYLOAD_LENGTH_OFFSET + 2] = (byte) (payloadLength >>> 8);
+    data[PAYLOAD_LENGTH_OFFSET + 3] = (byte) payloadLength;
+    return data;
+  }
+  @Override
+  protected Message read(byte[] data, int offset, int length) throws IOException {
+    return parse(data, offset, length);
+  }
+  /**
+   * Ricostruisce un messaggio completo dalla sua traduzione binaria.
+   * @param data il buffer che contiene la traduzione.
+   * @param offset la posizione della traduzione nel buffer.
+   * @param length la lunghezza della traduzione.
+   * @return il messaggio ricostruito.
+   * @throws IOException se la traduzione non è valida.
+   */
+  static Message parse(byte[] data, int offset, int length) throws IOException {
+    if (length < HEADER_LENGTH) {
+      throw new IOException("Frame troppo corto");
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+    long idHigh = in.readLong();
+    long idLow = in.readLong();
+    byte type = in.readByte();
+    byte ttl = in.readByte();
+    byte hops = in.readByte();
+    if (in.readInt() != length - HEADER_LENGTH) {
+      throw new IOException("Lunghezza del contenuto non valida");
+    }
+    Message msg;
+    try {
+      switch (type) {
+        case PingMessage.TYPE_ID:
+          msg = new PingMessage(idHigh, idLow, in.readUnsignedShort(), in.readUnsignedShort());
+          break;
+        case PongMessage.TYPE_ID:
+          PongMessage pong = new PongMessage(idHigh, idLow, in.readUnsignedShort(),
+                  in.readUnsignedShort());
+          pong.address = readAddress(in);
+          msg = pong;
+          break;
+        case QueryMessage.TYPE_ID:
+          QueryMessage query = new QueryMessage(idHigh, idLow, readStrings(in));
+          query.walker = in.available() > 0 && (in.readByte() & FLAG_WALKER) != 0;
+          msg = query;
+          break;
+        case QueryHitMessage.TYPE_ID:
+          int fileServerPort = in.readUnsignedShort();
+          byte flags = in.readByte();
+          InetAddress address = readAddress(in);
+          QueryHitMessage hit = new QueryHitMessage(idHigh, idLow, readStrings(in),
+                  fileServerPort);
+          hit.firewalled = (flags & FLAG_FIREWALLED) != 0;
+          hit.cached = (flags & FLAG_CACHED) != 0;
+          hit.address = address;
+          msg = hit;
+          break;
+        case PushMessage.TYPE_ID:
+          int port = in.readUnsignedShort();
+          InetAddress target = readAddress(in);
+          PushMessage push = new PushMessage(idHigh, idLow, in.readUTF(), port);
+          push.target = target;
+          msg = push;
+          break;
+        case QueryRouteMessage.TYPE_ID:
+          byte variant = in.readByte();
+          int bits = in.readUnsignedByte();
+          int patchLength = in.readInt();
+          if (patchLength < 0 || patchLength > length - HEADER_LENGTH) {
+            throw new IOException("Lunghezza della differenza non valida");
+          }
+          byte[] patch = new byte[patchLength];
+          in.readFully(patch);
+          msg = new QueryRouteMessage(idHigh, idLow, variant, bits, patch);
+          break;
+        case QueryStatusMessage.TYPE_ID:
+          msg = new QueryStatusMessage(idHigh, idLow, in.readByte());
+          break;
+        default:
+          throw new IOException("Tipo di messaggio sconosciuto: " + type);
+      }
+    } catch (EOFException e) {
+      throw new IOException("Contenuto del messaggio incompleto");
+    }
+    msg.setTtlAndHops(ttl, hops);
+    return msg;
+  }
+  /**
+   * Verifica che un frame contenga un'intestazione valida e coerente con la sua
+   * lunghezza, senza interpretarne il contenuto.
+   * @param data il buffer che contiene il frame.
+   * @param offset la posizione del frame nel buffer.
+   * @param length la lunghezza del frame.
+   * @return <code>true</code> se l'intestazione è valida.
+   */
+  static boolean hasValidHeader(byte[] data, int offset, int length) {
+    return length >= HEADER_LENGTH &&
+            readInt(data, offset + PAYLOAD_LENGTH_OFFSET) == length - HEADER_LENGTH;
+  }
+  /**
+   * Legge un long scritto con <code>DataOutput.writeLong</code>.
+   * @param data il buffer.
+   * @param offset la posizione del primo byte.
+   * @return il valore letto.
+   */
+  static long readLong(byte[] data, int offset) {
+    return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xffffffffL);
+  }
+  /**
+   * Legge un intero scritto con <code>DataOutput.writeInt</code>.
+   * @param data il buffer.
+   * @param offset la posizione del primo byte.
+   * @return il valore letto.
+   */
+  static int readInt(byte[] data, int offset) {
+    return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+            ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+  }
+  /**
+   * Scrive un indirizzo nel campo di lunghezza fissa.
+   * @param out il flusso su cui scrivere.
+   * @param address l'indirizzo, eventualmente <code>null</code>.
+   * @throws IOException in caso di problemi di scrittura.
+   */
+  private static void writeAddress(DataOutputStream out, InetAddress address)
+          throws IOException {
+    byte[] raw = address == null ? new byte[0] : address.getAddress();
+    out.writeByte(raw.length);
+    out.write(raw);
+    out.write(new byte[ADDRESS_LENGTH - raw.length]);
+  }
+  /**
+   * Legge un indirizzo dal campo di lunghezza fissa.
+   * @param in il flusso da cui leggere.
+   * @return l'indirizzo o <code>null</code> se assente.
+   * @throws IOException se il campo non è valido.
+   */
+  private static InetAddress readAddress(DataInputStream in) throws IOException {
+    int length = in.readUnsignedByte();
+    byte[] raw = new byte[ADDRESS_LENGTH];
+    in.readFully(raw);
+    if (length == 0) {
+      return null;
+    } else if (length != 4 && length != ADDRESS_LENGTH) {
+      throw new IOException("Indirizzo non valido");
+    }
+    byte[] address = new byte[length];
+    System.arraycopy(raw, 0, address, 0, length);
+    return InetAddress.getByAddress(address);
+  }
+  /**
+   * Scrive un elenco di stringhe preceduto dal loro numero.
+   * @param out il flusso su cui scrivere.
+   * @param strings le stringhe.
+   * @throws IOException in caso di problemi di scrittura.
+   */
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeShort(strings.length);
+    for (int i = 0; i < strings.length; i++) {
+      out.writeUTF(strings[i]);
+    }
+  }
+  /**
+   * Legge un elenco di stringhe preceduto dal loro numero.
+   * @param in il flusso da cui leggere.
+   * @return le stringhe lette.
+   * @throws IOException se l'elenco non è valido.
+   */
+  private static String[] readStrings(DataInputStream in) throws IOException {
+    String[] strings = new String[in.readUnsignedShort()];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = in.readUTF();
+    }
+    return strings;
+  }
+  /**
+   * Il nome del codec nella stretta di mano, con la versione del formato.
+   */
+  static final String NAME = "binary/1";
+  /**
+   * La lunghezza dell'intestazione di ogni messaggio.
+   */
+  static final int HEADER_LENGTH = Message.ID_LENGTH + 3 + 4;
+  /**
+   * La posizione del tipo del messaggio.
+   */
+  static final int TYPE_OFFSET = Message.ID_LENGTH;
+  /**
+   * La posizione del ttl.
+   */
+  static final int TTL_OFFSET = Message.ID_LENGTH + 1;
+  /**
+   * La posizione del numero di inoltri.
+   */
+  static final int HOPS_OFFSET = Message.ID_LENGTH + 2;
+  /**
+   * La posizione della lunghezza del contenuto.
+   */
+  static final int PAYLOAD_LENGTH_OFFSET = Message.ID_LENGTH + 3;
+  /**
+   * La posizione delle opzioni di una query hit, dopo la porta del file server.
+   */
+  static final int HIT_FLAGS_OFFSET = HEADER_LENGTH + 2;
+  /**
+   * La posizione del campo indirizzo di una query hit.
+   */
+  static final int HIT_ADDRESS_OFFSET = HEADER_LENGTH + 3;
+  /**
+   * La posizione del campo indirizzo di una push, dopo la porta del file server.
+   */
+  static final int PUSH_ADDRESS_OFFSET = HEADER_LENGTH + 2;
+  /**
+   * La lunghezza di un campo indirizzo, compreso il byte con la lunghezza.
+   */
+  static final int ADDRESS_FIELD_LENGTH = 17;
+  /**
+   * La lunghezza massima di un indirizzo, quella di un indirizzo IPv6.
+   */
+  static final int ADDRESS_LENGTH = 16;
+  /**
+   * Il bit delle opzioni di una query hit che indica un servent dietro un firewall.
+   */
+  static final int FLAG_FIREWALLED = 0x01;
+  /**
+   * Il bit delle opzioni di una query hit che indica una hit presa da una cache.
+   */
+  static final int FLAG_CACHED = 0x02;
+  /**
+   * Il bit delle opzioni di una query che indica un camminatore casuale.
+   */
+  static final int FLAG_WALKER = 0x01;
+}
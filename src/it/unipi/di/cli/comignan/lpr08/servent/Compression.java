@@ -0,0 +1,316 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * La compressione deflate del flusso di una connessione, concordata durante la
+ * stretta di mano. Dopo la stretta di mano tutto quello che passa sulla connessione,
+ * in entrambe le direzioni, è un unico flusso deflate: il compressore ricorda i
+ * messaggi precedenti, per cui parole chiave e nomi di files che si ripetono costano
+ * pochi bytes. Alla fine di ogni gruppo di messaggi il compressore svuota quanto ha
+ * in sospeso con una sync flush, così che il peer possa leggere subito i messaggi
+ * senza attendere il gruppo successivo.
+ * <p>
+ * Il trasporto a thread usa i flussi {@link Output} e {@link Input}; quello non
+ * bloccante chiama direttamente {@link #deflate} e {@link #inflate}. Ogni direzione è
+ * usata da un solo thread alla volta. Vengono contati i bytes prima e dopo la
+ * compressione e il tempo speso a comprimere e decomprimere, per confrontare le
+ * connessioni compresse con quelle in chiaro.
+ * @author Michele Comignano
+ */
+class Compression {
+  /**
+   * Prepara la compressione di una connessione.
+   */
+  Compression() {
+    deflater = new Deflater(Util.COMPRESSION_LEVEL);
+    inflater = new Inflater();
+    deflated = new byte[INITIAL_BUFFER_SIZE];
+  }
+  /**
+   * Comprime dei bytes, lasciando il risultato in {@link #getDeflated()}. Senza sync
+   * flush il compressore può trattenere parte del risultato fino alla chiamata
+   * successiva.
+   * @param data i bytes da comprimere.
+   * @param offset la posizione del primo byte.
+   * @param length il numero di bytes.
+   * @param flush indica se svuotare il compressore con una sync flush.
+   * @return il numero di bytes compressi disponibili.
+   */
+  int deflate(byte[] data, int offset, int length, boolean flush) {
+    long start = System.nanoTime();
+    deflater.setInput(data, offset, length);
+    int count = 0;
+    while (true) {
+      if (count == deflated.length) {
+        byte[] larger = new byte[deflated.length * 2];
+        System.arraycopy(deflated, 0, larger, 0, count);
+        deflated = larger;
+      }
+      count += deflater.deflate(deflated, count, deflated.length - count,
+              flush ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+      // Se il buffer non è pieno il compressore ha consumato tutto e, con la sync
+      // flush, ha restituito tutto.
+      if (count < deflated.length && deflater.needsInput()) {
+        break;
+      }
+    }
+    deflateNanos += System.nanoTime() - start;
+    plainBytesOut += length;
+    deflatedBytesOut += count;
+    return count;
+  }
+  /**
+   * @return il buffer con il risultato dell'ultima {@link #deflate}, valido fino alla
+   * chiamata successiva.
+   */
+  byte[] getDeflated() {
+    return deflated;
+  }
+  /**
+   * Fornisce al decompressore nuovi bytes compressi. Il buffer non va modificato
+   * finchè {@link #needsInput()} non indica che è stato consumato, o finchè non si
+   * forniscono di nuovo i bytes rimasti con un'altra chiamata.
+   * @param data i bytes compressi.
+   * @param offset la posizione del primo byte.
+   * @param length il numero di bytes.
+   */
+  void setInput(byte[] data, int offset, int length) {
+    inflater.setInput(data, offset, length);
+  }
+  /**
+   * Decomprime quanto possibile dei bytes forniti con {@link #setInput}, al più fino a
+   * riempire lo spazio dato: un peer non può far crescere la memoria usata oltre
+   * quella che il lettore mette a disposizione.
+   * @param buffer dove scrivere i bytes decompressi.
+   * @param offset la posizione da cui scrivere.
+   * @param length lo spazio disponibile.
+   * @return il numero di bytes decompressi.
+   * @throws IOException se i bytes ricevuti non sono un flusso deflate valido.
+   */
+  int inflate(byte[] buffer, int offset, int length) throws IOException {
+    long start = System.nanoTime();
+    int supplied = inflater.getRemaining();
+    int count = 0;
+    try {
+      while (count < length) {
+        int n = inflater.inflate(buffer, offset + count, length - count);
+        if (n == 0) {
+          if (inflater.needsDictionary() || inflater.finished()) {
+            throw new IOException("Flusso compresso non valido");
+          }
+          break;
+        }
+        count += n;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Flusso compresso non valido: " + e.getMessage());
+    }
+    inflateNanos += System.nanoTime() - start;
+    deflatedBytesIn += supplied - inflater.getRemaining();
+    plainBytesIn += count;
+    return count;
+  }
+  /**
+   * @return <code>true</code> se il decompressore ha consumato tutti i bytes forniti.
+   */
+  boolean needsInput() {
+    return inflater.needsInput();
+  }
+  /**
+   * @return il numero di bytes forniti al decompressore e non ancora consumati.
+   */
+  int getRemainingInput() {
+    return inflater.getRemaining();
+  }
+  /**
+   * Libera la memoria del compressore e del decompressore. Va chiamato quando la
+   * connessione è chiusa e nessuno li usa più.
+   */
+  void end() {
+    deflater.end();
+    inflater.end();
+  }
+  /**
+   * @return il rapporto tra i bytes inviati dopo e prima della compressione.
+   */
+  double getCompressionRatio() {
+    long plain = plainBytesOut;
+    return plain == 0 ? 1 : (double) deflatedBytesOut / plain;
+  }
+  /**
+   * @return il rapporto tra i bytes ricevuti prima e dopo la decompressione.
+   */
+  double getDecompressionRatio() {
+    long plain = plainBytesIn;
+    return plain == 0 ? 1 : (double) deflatedBytesIn / plain;
+  }
+  /**
+   * @return il tempo speso a comprimere, in nanosecondi.
+   */
+  long getDeflateNanos() {
+    return deflateNanos;
+  }
+  /**
+   * @return il tempo speso a decomprimere, in nanosecondi.
+   */
+  long getInflateNanos() {
+    return inflateNanos;
+  }
+  /**
+   * Il flusso in uscita compresso del trasporto a thread. I bytes scritti vengono
+   * compressi subito e una flush li svuota sul flusso sottostante con una sync flush.
+   */
+  class Output extends FilterOutputStream {
+    /**
+     * Crea un flusso che comprime sul flusso dato.
+     * @param out il flusso sottostante.
+     */
+    Output(OutputStream out) {
+      super(out);
+    }
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int count = deflate(b, off, len, false);
+      if (count > 0) {
+        out.write(deflated, 0, count);
+      }
+    }
+    @Override
+    public void flush() throws IOException {
+      int count = deflate(EMPTY, 0, 0, true);
+      out.write(deflated, 0, count);
+      out.flush();
+    }
+  }
+  /**
+   * Il flusso in ingresso compresso del trasporto a thread. Legge dal flusso
+   * sottostante solo quando il decompressore ha consumato tutto; se la lettura
+   * fallisce per lo scadere del tempo di attesa lo stato non cambia e si può
+   * riprovare.
+   */
+  class Input extends FilterInputStream {
+    /**
+     * Crea un flusso che decomprime dal flusso dato.
+     * @param in il flusso sottostante.
+     */
+    Input(InputStream in) {
+      super(in);
+      raw = new byte[INITIAL_BUFFER_SIZE];
+    }
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        int count = inflate(b, off, len);
+        if (count > 0) {
+          return count;
+        }
+        if (!needsInput()) {
+          throw new IOException("Flusso compresso non valido");
+        }
+        int read = in.read(raw, 0, raw.length);
+        if (read < 0) {
+          return -1;
+        }
+        setInput(raw, 0, read);
+      }
+    }
+    @Override
+    public int available() {
+      return 0;
+    }
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+    /**
+     * I bytes compressi letti dal flusso sottostante.
+     */
+    private final byte[] raw;
+  }
+  /**
+   * Il nome con cui la compressione deflate viene proposta e scelta nella stretta di
+   * mano.
+   */
+  static final String DEFLATE = "deflate";
+  /**
+   * La dimensione iniziale del buffer dei bytes compressi.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  /**
+   * Un array vuoto, per le flush.
+   */
+  private static final byte[] EMPTY = new byte[0];
+  /**
+   * Il compressore dei bytes in uscita.
+   */
+  private final Deflater deflater;
+  /**
+   * Il decompressore dei bytes in ingresso.
+   */
+  private final Inflater inflater;
+  /**
+   * Il buffer in cui il compressore scrive, che cresce se serve.
+   */
+  private byte[] deflated;
+  /**
+   * I bytes in uscita prima della compressione.
+   */
+  private volatile long plainBytesOut;
+  /**
+   * I bytes in uscita dopo la compressione.
+   */
+  private volatile long deflatedBytesOut;
+  /**
+   * I bytes in ingresso prima della decompressione.
+   */
+  private volatile long deflatedBytesIn;
+  /**
+   * I bytes in ingresso dopo la decompressione.
+   */
+  private volatile long plainBytesIn;
+  /**
+   * Il tempo speso a comprimere in nanosecondi.
+   */
+  private volatile long deflateNanos;
+  /**
+   * Il tempo speso a decomprimere in nanosecondi.
+   */
+  private volatile long inflateNanos;
+}
@@ -18,16 +18,35 @@
 package it.unipi.di.cli.comignan.lpr08.servent;
 
 import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Una connessione implementa il flusso di comunicazione tra due servents connessi.
+ * Questa implementazione usa un socket bloccante letto dal thread della connessione
+ * e scritto dal suo Sender; la logica della stretta di mano e la gestione dei
+ * messaggi ricevuti sono però separate dall'I/O, in modo che possano essere
+ * riusate da trasporti diversi.
+ * <p>Dopo la stretta di mano i messaggi viaggiano in frame preceduti dalla loro
+ * lunghezza e non più in un unico <code>ObjectOutputStream</code>: il formato non è
+ * compatibile con quello dei servent della versione precedente, che del resto non
+ * saprebbero leggere nemmeno i messaggi serializzati, cambiati nei campi. Per questo
+ * la stretta di mano porta la versione del protocollo e le richieste della versione
+ * precedente vengono rifiutate esplicitamente invece di restare appese.</p>
  * @author Michele Comignano
  */
 public class Connection extends Forwarder {
@@ -47,19 +66,31 @@ public class Connection extends Forwarder {
    * @param socket il socket su cui è stata accettata la connessione.
    */
   public Connection(Servent servent, Socket socket) {
-    super();
+    super(servent.settings, servent.settings.isFlowControl());
     this.socket = socket;
     this.servent = servent;
     mustClose = false;
+    codec = new SerializedCodec();
+    setBatching(servent.settings.getMaxBatchSize(), servent.settings.getBatchLinger());
   }
   /**
-   * Si occupa di processare una connessione in ingresso.
-   * @param socket il socket su cui è stata accettata la richiesta.
-   * @throws java.io.IOException in caso di problemi di comuniazione o richieste malformate.
+   * Valuta una richiesta di connessione ricevuta da un peer e stabilisce la risposta.
+   * Se la richiesta è accettata il peer viene segnato come in uso, se è rifiutata la
+   * connessione viene segnata come da chiudere.
+   * @param request la richiesta ricevuta.
+   * @param address l'indirizzo da cui proviene la richiesta.
+   * @return la risposta da inviare al peer.
+   * @throws IOException se la richiesta è malformata o il peer è già connesso.
    */
-  private void processRequest(Socket socket) throws IOException {
-    socket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
-    String request = new DataInputStream(socket.getInputStream()).readUTF();
+  protected String acceptRequest(String request, InetAddress address) throws IOException {
+    Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    request = parseHandshake(request, headers);
+    if (request.startsWith(LEGACY_REQUEST + " ")) {
+      servent.logger.appendMessage("Rifiutata richiesta di connessione da " + address +
+              ": versione del protocollo non supportata");
+      mustClose = true;
+      return REFUSED;
+    }
     if (!request.startsWith(REQUEST + " ")) {
       throw new IOException();
     }
@@ -75,7 +106,7 @@ public class Connection extends Forwarder {
     } catch (NumberFormatException e) {
       throw new IOException();
     }
-    peer = new ServentDescriptor(socket.getInetAddress(), peerConnectPort, peerExplorePort);
+    peer = new ServentDescriptor(address, peerConnectPort, peerExplorePort);
     synchronized (servent.cache) {
       int i = servent.cache.indexOf(peer);
       if (i < 0) {
@@ -86,32 +117,69 @@ public class Connection extends Forwarder {
           throw new IOException();
         }
       }
-      DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
-      if (servent.connections.size() < servent.connectionsLimit) {
-        dataOut.writeUTF(ACCEPTED + " " + servent.explorePort);
+      announcedRole = servent.isTwoTier();
+      announcedUltrapeer = servent.isUltrapeer();
+      kind = announcedRole ? kindOf(announcedUltrapeer, headers.get(ULTRAPEER_HEADER))
+              : PEER_CONNECTION;
+      if (servent.hasSlotFor(kind)) {
         peer.setUsed(true);
         servent.logger.appendMessage("Accettata richiesta di connessione da " + peer);
+        StringBuilder response = new StringBuilder(ACCEPTED + " " + servent.explorePort);
+        // Un peer che non manda intestazioni non se le aspetta nella risposta.
+        if (!headers.isEmpty()) {
+          if (announcedRole) {
+            appendHeader(response, ULTRAPEER_HEADER, announcedUltrapeer ? "True" : "False");
+          }
+          String offer = headers.get(CODECS_HEADER);
+          codec = offer != null ? chooseCodec(offer) : new SerializedCodec();
+          appendHeader(response, CODEC_HEADER, codec.getName());
+          if (servent.settings.isQueryRouting() && headers.containsKey(QUERY_ROUTING_HEADER)) {
+            peerQueryRouting = true;
+            appendHeader(response, QUERY_ROUTING_HEADER, QUERY_ROUTING_VERSION);
+          }
+          if (servent.settings.isCompression() &&
+                  offers(headers.get(ACCEPT_ENCODING_HEADER), Compression.DEFLATE)) {
+            deflate = true;
+            appendHeader(response, CONTENT_ENCODING_HEADER, Compression.DEFLATE);
+          }
+        }
+        return response.toString();
       } else {
-        dataOut.writeUTF(REFUSED);
         mustClose = true;
+        return REFUSED;
       }
-      dataOut.flush();
     }
   }
   /**
-   * Apre una connessione e fa una richiesta.
-   * @throws java.io.IOException
+   * @return la richiesta di connessione da inviare al peer.
    */
-  private void makeRequest() throws IOException {
-    if (peer.isUsed()) {
-      throw new IOException();
+  protected String makeRequestLine() {
+    StringBuilder request = new StringBuilder(REQUEST + " " + servent.connectPort + "," +
+            servent.explorePort);
+    appendHeader(request, CODECS_HEADER, servent.settings.isBinaryCodec()
+            ? BinaryCodec.NAME + "," + SerializedCodec.NAME : SerializedCodec.NAME);
+    if (servent.settings.isQueryRouting()) {
+      appendHeader(request, QUERY_ROUTING_HEADER, QUERY_ROUTING_VERSION);
     }
-    socket = new Socket(peer.getInetAddress(), peer.getConnectPort());
-    DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
-    dataOut.writeUTF(REQUEST + " " + servent.connectPort + "," + servent.explorePort);
-    dataOut.flush();
-    socket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
-    String response = new DataInputStream(socket.getInputStream()).readUTF();
+    announcedRole = servent.isTwoTier();
+    announcedUltrapeer = servent.isUltrapeer();
+    if (announcedRole) {
+      appendHeader(request, ULTRAPEER_HEADER, announcedUltrapeer ? "True" : "False");
+    }
+    if (servent.settings.isCompression()) {
+      appendHeader(request, ACCEPT_ENCODING_HEADER, Compression.DEFLATE);
+    }
+    return request.toString();
+  }
+  /**
+   * Valuta la risposta del peer ad una richiesta di connessione.
+   * @param response la risposta ricevuta.
+   * @throws IOException se la connessione è stata rifiutata, la risposta è malformata
+   * o il peer ha scelto un codec non proposto.
+   */
+  protected void acceptResponse(String response) throws IOException {
+    Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+    response = parseHandshake(response, headers);
     if (!response.startsWith(ACCEPTED + " ")) {
       throw new IOException();
     }
@@ -120,9 +188,162 @@ public class Connection extends Forwarder {
     } catch (NumberFormatException e) {
       throw new IOException();
     }
+    String chosen = headers.get(CODEC_HEADER);
+    if (chosen != null) {
+      MessageCodec negotiated = MessageCodec.forName(chosen);
+      if (negotiated == null || (negotiated instanceof BinaryCodec &&
+              !servent.settings.isBinaryCodec())) {
+        throw new IOException("Codec non proposto: " + chosen);
+      }
+      codec = negotiated;
+    }
+    peerQueryRouting = servent.settings.isQueryRouting() &&
+            headers.containsKey(QUERY_ROUTING_HEADER);
+    String encoding = headers.get(CONTENT_ENCODING_HEADER);
+    if (encoding != null) {
+      if (!servent.settings.isCompression() || !encoding.equalsIgnoreCase(Compression.DEFLATE)) {
+        throw new IOException("Compressione non proposta: " + encoding);
+      }
+      deflate = true;
+    }
+    kind = announcedRole ? kindOf(announcedUltrapeer, headers.get(ULTRAPEER_HEADER))
+            : PEER_CONNECTION;
+    if (!servent.hasSlotFor(kind)) {
+      throw new IOException("Nessun posto per una connessione di questo tipo");
+    }
     peer.setUsed(true);
     servent.logger.appendMessage("Connessione accettata da " + peer);
   }
+  /**
+   * Indica se il tipo della connessione, stabilito nella stretta di mano, non
+   * corrisponde più al ruolo del servent. Succede quando una foglia diventa ultrapeer
+   * o viceversa: il collegamento con un proprio ultrapeer o con una propria foglia va
+   * chiuso e rifatto, perchè entrambi i capi continuerebbero a trattarlo secondo i
+   * ruoli di prima. I collegamenti tra pari restano validi.
+   * @param ultrapeer il ruolo attuale del servent.
+   * @return <code>true</code> se la connessione va rifatta.
+   */
+  boolean hasStaleRole(boolean ultrapeer) {
+    return kind != PEER_CONNECTION && announcedUltrapeer != ultrapeer;
+  }
+  /**
+   * Chiede la chiusura della connessione. Il thread che la legge se ne accorge al più
+   * tardi allo scadere del timeout del socket.
+   */
+  void disconnect() {
+    mustClose = true;
+  }
+  /**
+   * Stabilisce il tipo di connessione dai ruoli dei due servent. Un peer che non
+   * dichiara il proprio ruolo non conosce la rete a due livelli e viene trattato come
+   * un pari, così come una foglia che si collega ad un'altra foglia quando non ci sono
+   * ultrapeer a disposizione.
+   * @param ultrapeer il ruolo annunciato da questo servent.
+   * @param peerRole il valore dell'intestazione con il ruolo del peer, o <code>null</code>.
+   * @return il tipo di connessione.
+   */
+  private static int kindOf(boolean ultrapeer, String peerRole) {
+    if (peerRole == null) {
+      return PEER_CONNECTION;
+    }
+    boolean peerUltrapeer = peerRole.equalsIgnoreCase("True");
+    if (ultrapeer == peerUltrapeer) {
+      return PEER_CONNECTION;
+    }
+    return ultrapeer ? LEAF_CONNECTION : ULTRAPEER_CONNECTION;
+  }
+  /**
+   * Sceglie tra i codec proposti dal peer, nel suo ordine di preferenza, il primo che
+   * anche questo servent è disposto ad usare.
+   * @param offer i nomi dei codec proposti, separati da virgole.
+   * @return il codec scelto; se nessuno va bene quello basato sulla serializzazione.
+   */
+  private MessageCodec chooseCodec(String offer) {
+    String[] names = offer.split(",");
+    for (int i = 0; i < names.length; i++) {
+      MessageCodec candidate = MessageCodec.forName(names[i].trim());
+      if (candidate instanceof BinaryCodec && !servent.settings.isBinaryCodec()) {
+        continue;
+      }
+      if (candidate != null) {
+        return candidate;
+      }
+    }
+    return new SerializedCodec();
+  }
+  /**
+   * Indica se un elenco di nomi separati da virgole, come quello di una proposta
+   * nella stretta di mano, contiene il nome dato.
+   * @param offer l'elenco, o <code>null</code>.
+   * @param name il nome da cercare.
+   * @return <code>true</code> se il nome è nell'elenco.
+   */
+  private static boolean offers(String offer, String name) {
+    if (offer == null) {
+      return false;
+    }
+    String[] names = offer.split(",");
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].trim().equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Divide un messaggio della stretta di mano nella prima riga, con richiesta o
+   * risposta, e nelle intestazioni "Nome: valore" delle righe successive.
+   * @param message il messaggio ricevuto.
+   * @param headers dove aggiungere le intestazioni trovate.
+   * @return la prima riga del messaggio.
+   */
+  protected static String parseHandshake(String message, Map<String, String> headers) {
+    String[] lines = message.split(LINE_SEPARATOR);
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+      }
+    }
+    return lines[0];
+  }
+  /**
+   * Aggiunge un'intestazione ad un messaggio della stretta di mano.
+   * @param message il messaggio in costruzione.
+   * @param name il nome dell'intestazione.
+   * @param value il valore dell'intestazione.
+   */
+  protected static void appendHeader(StringBuilder message, String name, String value) {
+    message.append(LINE_SEPARATOR).append(name).append(": ").append(value);
+  }
+  /**
+   * Si occupa di processare una connessione in ingresso.
+   * @param socket il socket su cui è stata accettata la richiesta.
+   * @throws java.io.IOException in caso di problemi di comuniazione o richieste malformate.
+   */
+  private void processRequest(Socket socket) throws IOException {
+    socket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
+    String request = new DataInputStream(socket.getInputStream()).readUTF();
+    String response = acceptRequest(request, socket.getInetAddress());
+    DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
+    dataOut.writeUTF(response);
+    dataOut.flush();
+  }
+  /**
+   * Apre una connessione e fa una richiesta.
+   * @throws java.io.IOException
+   */
+  private void makeRequest() throws IOException {
+    if (peer.isUsed()) {
+      throw new IOException();
+    }
+    socket = new Socket(peer.getInetAddress(), peer.getConnectPort());
+    DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
+    dataOut.writeUTF(makeRequestLine());
+    dataOut.flush();
+    socket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
+    acceptResponse(new DataInputStream(socket.getInputStream()).readUTF());
+  }
   /**
    * Il flusso principale di una connessione consiste nel ricevere messaggio di query
    * e query hit e agire a seconda del loro contenuto, inoltrando o prendendo opportunamente
@@ -137,152 +358,729 @@ public class Connection extends Forwarder {
         makeRequest();
       }
     } catch (IOException e) {
+      closeSocket();
+      return;
+    }
+    if (mustClose) {
+      closeSocket();
       return;
     }
-    ObjectInputStream objIn = null;
+    DataInputStream in = null;
     try {
-      objOut = new ObjectOutputStream(socket.getOutputStream());
-      objOut.flush();
-      objIn = new ObjectInputStream(socket.getInputStream());
+      countingOut = new CountingOutputStream(socket.getOutputStream());
+      OutputStream rawOut = countingOut;
+      InputStream rawIn = socket.getInputStream();
+      // La compressione comincia subito dopo la stretta di mano, in entrambe le
+      // direzioni, e la flush di ogni gruppo di messaggi diventa una sync flush.
+      startCompression();
+      if (compression != null) {
+        rawOut = compression.new Output(rawOut);
+        rawIn = compression.new Input(rawIn);
+      }
+      out = new DataOutputStream(new BufferedOutputStream(rawOut,
+              Util.CONNECTION_BUFFER_SIZE));
+      in = new DataInputStream(new BufferedInputStream(rawIn, Util.CONNECTION_BUFFER_SIZE));
     } catch (IOException e) {
       servent.cache.remove(peer);
+      closeSocket();
       return;
     }
-    Sender sender;
-    (sender = new Sender()).start();
-    Message msg;
-    servent.connections.add(this);
-    servent.indexedConnections.put(peer, this);
+    if (!opened()) {
+      closeSocket();
+      closed();
+      return;
+    }
+    Thread sender = servent.newThread(new Sender());
+    sender.start();
     while (!servent.mustHalt && !mustClose) {
+      int length;
       try {
-        msg = (Message) objIn.readObject();
+        length = readFrame(in);
       } catch (SocketTimeoutException e) {
         continue;
       } catch (IOException e) {
         servent.cache.remove(peer);
         break;
-      } catch (ClassNotFoundException e) {
+      }
+      receive(readBuffer, 0, length);
+    }
+    Util.waitHelper(sender);
+    closeSocket();
+    closed();
+  }
+  /**
+   * Legge un frame dal flusso in ingresso lasciandone il contenuto nel buffer di
+   * lettura. Se il tempo di attesa scade prima dell'inizio del frame l'eccezione viene
+   * propagata, così che il chiamante possa controllare se deve terminare; se scade a
+   * frame iniziato la lettura prosegue, per non perdere l'allineamento.
+   * @param in il flusso da cui leggere.
+   * @return la lunghezza del contenuto del frame.
+   * @throws IOException in caso di errori o di frame non validi.
+   */
+  private int readFrame(DataInputStream in) throws IOException {
+    int first = in.read();
+    if (first < 0) {
+      throw new EOFException();
+    }
+    frameHeader[0] = (byte) first;
+    readFully(in, frameHeader, 1, MessageCodec.FRAME_HEADER_LENGTH - 1);
+    int length = ((frameHeader[0] & 0xff) << 24) | ((frameHeader[1] & 0xff) << 16) |
+            ((frameHeader[2] & 0xff) << 8) | (frameHeader[3] & 0xff);
+    if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+      throw new IOException("Frame di lunghezza non valida: " + length);
+    }
+    if (readBuffer.length < length) {
+      readBuffer = new byte[length];
+    }
+    readFully(in, readBuffer, 0, length);
+    return length;
+  }
+  /**
+   * Legge esattamente il numero di bytes richiesto, riprovando se il tempo di attesa
+   * del socket scade prima che il servent debba terminare.
+   * @param in il flusso da cui leggere.
+   * @param buffer dove scrivere i bytes letti.
+   * @param offset la posizione da cui scrivere.
+   * @param length il numero di bytes da leggere.
+   * @throws IOException in caso di errori o di fine prematura del flusso.
+   */
+  private void readFully(InputStream in, byte[] buffer, int offset, int length)
+          throws IOException {
+    while (length > 0) {
+      int read;
+      try {
+        read = in.read(buffer, offset, length);
+      } catch (SocketTimeoutException e) {
+        if (servent.mustHalt) {
+          throw e;
+        }
         continue;
       }
-      switch (msg.messageType) {
-        case PushMessage.TYPE_ID:
-          Connection tmpConn = servent.seenQueryHit.get(msg);
-          if (tmpConn == null) {
-            break;
-          }
-          PushMessage push = (PushMessage) msg;
-          if (push.target == null) {
-            push.target = peer.getInetAddress();
-          }
-          if (tmpConn == servent.fakeConnection && servent.firewalled) {
-            servent.fileServer.push((PushMessage) msg);
-          } else {
-            tmpConn.forward(msg, tmpConn);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+  /**
+   * Chiude il socket ignorando eventuali errori.
+   */
+  private void closeSocket() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+  /**
+   * Crea la compressione concordata con il peer. Va chiamato solo a stretta di mano
+   * riuscita, subito prima di aprire la connessione: da lì in poi la chiusura passa
+   * sempre per {@link #closed()}, che libera la memoria nativa del compressore,
+   * mentre una stretta di mano fallita la lascerebbe in attesa del garbage collector.
+   */
+  protected void startCompression() {
+    if (deflate) {
+      compression = new Compression();
+    }
+  }
+  /**
+   * Registra la connessione tra quelle attive del servent. Va chiamato quando la
+   * stretta di mano è conclusa e la connessione è pronta a scambiare messaggi.
+   * Due strette di mano con lo stesso peer, una in ingresso e una in uscita, possono
+   * incrociarsi e concludersi entrambe: la seconda a registrarsi viene segnata come da
+   * chiudere e non deve scambiare messaggi.
+   * @return <code>false</code> se con il peer c'è già un'altra connessione attiva.
+   */
+  protected boolean opened() {
+    if (!servent.connections.add(this)) {
+      mustClose = true;
+      servent.logger.appendMessage("Già connesso a \"" + peer + "\", chiudo il doppione");
+      return false;
+    }
+    sendQueryRoutes(servent.getQueryRoutes());
+    return true;
+  }
+  /**
+   * Comunica al peer la tabella di instradamento delle query del servent, se il peer
+   * ha accettato di riceverla. La prima volta la tabella viene mandata per intero
+   * dopo un azzeramento, in seguito solo la differenza con l'ultima mandata. Se un
+   * invio fallisce la volta successiva la tabella viene rimandata per intero.
+   * @param table la tabella corrente del servent.
+   */
+  synchronized void sendQueryRoutes(QueryRouteTable table) {
+    if (!peerQueryRouting || table == null || table.equals(sentRoutes)) {
+      return;
+    }
+    boolean queued;
+    if (sentRoutes == null || sentRoutes.getBits() != table.getBits()) {
+      queued = forward(new QueryRouteMessage(table.getBits()), this) &&
+              forward(new QueryRouteMessage(table.getBits(), table.diff(null)), this);
+    } else {
+      queued = forward(new QueryRouteMessage(table.getBits(), table.diff(sentRoutes)), this);
+    }
+    // Se un messaggio non è partito il peer ha una tabella diversa da quella che
+    // crediamo: la prossima volta si ricomincia con un azzeramento.
+    sentRoutes = queued ? table : null;
+  }
+  /**
+   * Indica se vale la pena mandare al peer una query che non potrà inoltrare oltre.
+   * @param query la query.
+   * @return <code>false</code> se la tabella di instradamento del peer esclude che
+   * possa rispondere, <code>true</code> se può rispondere o se la sua tabella non è nota.
+   */
+  boolean mayAnswer(QueryMessage query) {
+    QueryRouteTable table = peerRoutes;
+    return table == null || table.mayMatch(query.keyWords);
+  }
+  /**
+   * Aggiorna la tabella di instradamento del peer con un messaggio ricevuto. Una
+   * differenza non valida fa dimenticare la tabella, così che al peer arrivino di
+   * nuovo tutte le query fino al prossimo azzeramento.
+   * @param msg il messaggio ricevuto.
+   */
+  private void updatePeerRoutes(QueryRouteMessage msg) {
+    if (msg.variant == QueryRouteMessage.RESET) {
+      peerRoutes = null;
+      peerRouteBits = msg.bits;
+      return;
+    }
+    if (peerRouteBits != msg.bits) {
+      peerRoutes = null;
+      return;
+    }
+    QueryRouteTable base = peerRoutes;
+    try {
+      if (base == null) {
+        base = new QueryRouteTable(msg.bits);
+      }
+      peerRoutes = base.apply(msg.patch);
+    } catch (IllegalArgumentException e) {
+      peerRoutes = null;
+    } catch (IOException e) {
+      peerRoutes = null;
+      servent.logger.appendError("Tabella di instradamento non valida da " + peer);
+    }
+  }
+  /**
+   * Toglie la connessione da quelle attive del servent e, se questo non sta
+   * terminando, cerca di sostituirla con un'altra.
+   */
+  protected void closed() {
+    mustClose = true;
+    if (compression != null) {
+      compression.end();
+    }
+    // Un doppione non registrato non deve liberare il peer della connessione che
+    // invece resta attiva.
+    if (!servent.connections.remove(this)) {
+      return;
+    }
+    peer.setUsed(false);
+    servent.logger.appendMessage("Chiusa la connessione con \"" + peer + "\"");
+    if (!servent.mustHalt) {
+      servent.cacheConnect();
+    }
+  }
+  /**
+   * Gestisce il contenuto di un frame ricevuto dal peer. Le query hit e le push in
+   * formato binario che devono solo essere inoltrate seguono una via breve: si legge
+   * l'intestazione, si cerca la rotta con l'identificatore e si rispediscono i bytes
+   * ricevuti, senza ricostruire il messaggio. Tutto il resto viene ricostruito e
+   * passato a {@link #handle(Message)}.
+   * @param data il buffer che contiene il frame.
+   * @param offset la posizione del contenuto nel buffer.
+   * @param length la lunghezza del contenuto.
+   */
+  protected void receive(byte[] data, int offset, int length) {
+    if (codec instanceof BinaryCodec && BinaryCodec.hasValidHeader(data, offset, length) &&
+            relay(data, offset, length)) {
+      return;
+    }
+    Message msg;
+    try {
+      msg = codec.decode(data, offset, length);
+    } catch (IOException e) {
+      return;
+    }
+    handle(msg);
+  }
+  /**
+   * Inoltra una query hit o una push in formato binario senza ricostruirla, se questo
+   * servent non ne è la destinazione.
+   * @param data il buffer che contiene il frame.
+   * @param offset la posizione del contenuto nel buffer.
+   * @param length la lunghezza del contenuto.
+   * @return <code>true</code> se il messaggio è stato inoltrato o scartato,
+   * <code>false</code> se va ricostruito e gestito per intero.
+   */
+  private boolean relay(byte[] data, int offset, int length) {
+    byte type = data[offset + BinaryCodec.TYPE_OFFSET];
+    long idHigh = BinaryCodec.readLong(data, offset);
+    long idLow = BinaryCodec.readLong(data, offset + 8);
+    Connection dest;
+    int addressOffset;
+    if (type == QueryHitMessage.TYPE_ID) {
+      if (servent.hitCache != null && servent.queryKeys.get(idHigh, idLow) != null) {
+        // La hit va ricordata nella cache e quindi ricostruita.
+        return false;
+      }
+      dest = servent.getSeenTable().get(idHigh, idLow);
+      addressOffset = BinaryCodec.HIT_ADDRESS_OFFSET;
+    } else if (type == PushMessage.TYPE_ID) {
+      dest = servent.seenQueryHit.get(idHigh, idLow);
+      addressOffset = BinaryCodec.PUSH_ADDRESS_OFFSET;
+    } else {
+      return false;
+    }
+    if (dest == null) {
+      // Nessuna rotta: il messaggio verrebbe comunque scartato.
+      return true;
+    }
+    if (dest == servent.fakeConnection || length < addressOffset +
+            BinaryCodec.ADDRESS_FIELD_LENGTH) {
+      return false;
+    }
+    RawMessage raw = new RawMessage(data, offset, length);
+    raw.fillAddress(addressOffset, peer.getInetAddress());
+    if (type == QueryHitMessage.TYPE_ID) {
+      if (dest.mustClose) {
+        return true;
+      }
+      if ((raw.byteAt(BinaryCodec.HIT_FLAGS_OFFSET) & BinaryCodec.FLAG_FIREWALLED) != 0) {
+        servent.seenQueryHit.put(raw, this);
+      }
+      try {
+        raw.prepareForward();
+      } catch (DeadMessageException e) {
+        return true;
+      }
+    }
+    dest.forward(raw, dest);
+    relayedMessages++;
+    return true;
+  }
+  /**
+   * Gestisce un messaggio ricevuto dal peer, inoltrandolo o prendendo opportunamente
+   * atto dell'arrivo di un risultato richiesto.
+   * @param msg il messaggio ricevuto.
+   */
+  protected void handle(Message msg) {
+    switch (msg.messageType) {
+      case PushMessage.TYPE_ID:
+        Connection tmpConn = servent.seenQueryHit.get(msg);
+        if (tmpConn == null) {
+          break;
+        }
+        PushMessage push = (PushMessage) msg;
+        if (push.target == null) {
+          push.target = peer.getInetAddress();
+        }
+        if (tmpConn == servent.fakeConnection && servent.firewalled) {
+          servent.fileServer.push((PushMessage) msg);
+        } else {
+          tmpConn.forward(msg, tmpConn);
+        }
+        break;
+      case QueryMessage.TYPE_ID:
+        QueryMessage query = (QueryMessage) msg;
+        boolean firstVisit = servent.markSeen(query, this);
+        if (!firstVisit) {
+          // Un camminatore che ripassa di qui non ottiene di nuovo le stesse risposte
+          // ma prosegue il suo cammino.
+          if (query.walker && kind != ULTRAPEER_CONNECTION) {
+            try {
+              query.prepareForward();
+              servent.walkers.walk(query, this, false);
+            } catch (DeadMessageException e) {
+            }
           }
           break;
-        case QueryMessage.TYPE_ID:
-          QueryMessage query = (QueryMessage) msg;
-          if (servent.haveSeen(query)) {
-            break;
-          } else {
+        }
+        servent.recordReceivedQuery();
+        boolean fromCache = false;
+        QueryHitCache hitCache = servent.hitCache;
+        String key = hitCache == null ? null : QueryMessage.keyOf(query.keyWords);
+        if (key != null) {
+          List<QueryHitMessage> cached = hitCache.get(key, query.idHigh, query.idLow);
+          for (int i = 0; i < cached.size(); i++) {
+            forward(cached.get(i), this);
           }
-          servent.setSeen(query, this);
+          fromCache = !cached.isEmpty();
+          servent.queryKeys.put(query, key);
+        }
+        // Una foglia risponde alle query del suo ultrapeer ma non le inoltra.
+        if (kind != ULTRAPEER_CONNECTION) {
           try {
             query.prepareForward();
-            servent.forward(msg, this);
+            if (query.walker) {
+              servent.walkers.walk(query, this, true);
+            } else {
+              if (fromCache) {
+                query.setTtlAndHops((byte) (query.getTtl() / 2), query.getHops());
+              }
+              servent.forward(msg, this);
+            }
           } catch (DeadMessageException e) {
           }
-          String[] matches = servent.fileServer.getMatches(query.keyWords);
-          if (matches.length > 0) {
-            QueryHitMessage hit = new QueryHitMessage(query.messageId, matches,
-                    servent.firewalled ? servent.connectPort : servent.fileServerPort);
-            hit.firewalled = servent.firewalled;
-            forward(hit, this);
-            if (servent.firewalled) {
-              servent.seenQueryHit.put(hit, servent.fakeConnection);
-            }
+        }
+        // La ricerca tra i files condivisi legge la cartella dal disco: sull'event loop
+        // del trasporto non bloccante fermerebbe tutte le altre connessioni.
+        if (NioOverlay.isEventLoopThread()) {
+          final QueryMessage pending = query;
+          try {
+            servent.exec.execute(new Runnable() {
+              @Override
+              public void run() {
+                answer(pending);
+              }
+            });
+          } catch (RejectedExecutionException e) {
           }
+        } else {
+          answer(query);
+        }
+        break;
+      case QueryHitMessage.TYPE_ID:
+        Connection conn = servent.getDestination(msg);
+        if (conn == null) {
           break;
-        case QueryHitMessage.TYPE_ID:
-          Connection conn = servent.getDestination(msg);
-          if (conn == null) {
-            break;
+        }
+        QueryHitMessage hit = (QueryHitMessage) msg;
+        if (hit.address == null) {
+          hit.address = peer.getInetAddress();
+        }
+        if (servent.hitCache != null) {
+          String hitKey = servent.queryKeys.get(hit);
+          if (hitKey != null) {
+            servent.hitCache.add(hitKey, hit);
           }
-          QueryHitMessage hit = (QueryHitMessage) msg;
-          if (hit.address == null) {
-            hit.address = peer.getInetAddress();
+        }
+        if (conn == servent.fakeConnection) {
+          SearchResults results = servent.searches.get(hit);
+          if (results != null && !(hit.firewalled && servent.firewalled)) {
+            results.add(hit);
+            // Se ricevo una hit mia, la metto in quelle viste
+            // cos' se devo mandare una push la mando su questa connessione
+            servent.seenQueryHit.put(hit, this);
           }
-          if (conn == servent.fakeConnection) {
-            if (!(hit.firewalled && servent.firewalled)) {
-              servent.searches.get(hit).add(hit);
-              // Se ricevo una hit mia, la metto in quelle viste
-              // cos' se devo mandare una push la mando su questa connessione
+          break;
+        }
+        if (!conn.mustClose) {
+          try {
+            // se mi arriva una hit da forwardare,
+            // dico che se arriva una push spedirla col mio socket
+            if (hit.firewalled) {
               servent.seenQueryHit.put(hit, this);
             }
-            break;
-          }
-          if (!conn.mustClose) {
-            try {
-              // se mi arriva una hit da forwardare,
-              // dico che se arriva una push spedirla col mio socket
-              if (hit.firewalled) {
-                servent.seenQueryHit.put(hit, this);
-              }
-              msg.prepareForward();
-              conn.forward(msg, conn);
-            } catch (DeadMessageException e) {
-            }
-            break;
+            msg.prepareForward();
+            conn.forward(msg, conn);
+          } catch (DeadMessageException e) {
           }
-          break;
-        default:
-          continue;
-      }
-    }
-    servent.connections.remove(this);
-    servent.indexedConnections.remove(this.peer);
-    peer.setUsed(false);
-    Util.waitHelper(sender);
-    try {
-      socket.close();
-    } catch (IOException e) {
+        }
+        break;
+      case QueryRouteMessage.TYPE_ID:
+        updatePeerRoutes((QueryRouteMessage) msg);
+        break;
+      case QueryStatusMessage.TYPE_ID:
+        servent.walkers.handle((QueryStatusMessage) msg, this);
+        break;
+      default:
+        break;
     }
-    servent.logger.appendMessage("Chiusa la connessione con \"" + peer + "\"");
-    if (!servent.mustHalt) {
-      servent.cacheConnect();
+  }
+  /**
+   * Risponde ad una query con i files condivisi che corrispondono alle sue parole
+   * chiave, se ce ne sono.
+   * @param query la query ricevuta.
+   */
+  private void answer(QueryMessage query) {
+    String[] matches = servent.fileServer.getMatches(query.keyWords);
+    if (matches.length > 0) {
+      QueryHitMessage hit = new QueryHitMessage(query.idHigh, query.idLow, matches,
+              servent.firewalled ? servent.connectPort : servent.fileServerPort);
+      hit.firewalled = servent.firewalled;
+      forward(hit, this);
+      if (servent.firewalled) {
+        servent.seenQueryHit.put(hit, servent.fakeConnection);
+      }
     }
   }
   /**
-   * Invia la query specificata nel messaggio al peer servent di questa connessione.
+   * Accoda la query specificata nel messaggio per l'invio al peer servent di questa
+   * connessione.
    * @param msg il messaggio da inviare.
    */
   void sendQueryMessage(QueryMessage msg) {
+    forward(msg, this);
+    servent.recordQueryMessage(msg.walker);
+  }
+  /**
+   * Scrive il messaggio nel buffer della connessione. Il messaggio raggiunge il
+   * socket alla prossima flush, che il Sender esegue dopo ogni gruppo di messaggi.
+   * @param msg il messaggio da inviare.
+   * @param conn la connessione di destinazione, che coincide con questa.
+   */
+  @Override
+  protected void send(Message msg, Connection conn) {
     try {
-      objOut.writeObject(msg);
-      objOut.flush();
+      codec.writeFrame(msg, codec.encode(msg), out);
+      pendingMessages++;
     } catch (IOException e) {
       mustClose = true;
       interrupt();
     }
   }
+  /**
+   * Scrive sul socket in un colpo solo tutti i messaggi accumulati nel buffer e
+   * aggiorna le statistiche sulle flush.
+   */
   @Override
-  protected void send(Message msg, Connection conn) {
+  void flush() {
+    if (pendingMessages == 0) {
+      return;
+    }
     try {
-      objOut.writeObject(msg);
-      objOut.flush();
+      out.flush();
     } catch (IOException e) {
       mustClose = true;
       interrupt();
     }
+    long written = countingOut.getCount();
+    recordFlush(pendingMessages, written - writtenAtLastFlush);
+    writtenAtLastFlush = written;
+    pendingMessages = 0;
+  }
+  /**
+   * Aggiorna le statistiche sulle flush.
+   * @param messages il numero di messaggi scritti con la flush.
+   * @param bytes il numero di bytes scritti con la flush.
+   */
+  protected synchronized void recordFlush(int messages, long bytes) {
+    flushes++;
+    flushedMessages += messages;
+    flushedBytes += bytes;
+  }
+  /**
+   * @return il numero di flush eseguite sul socket della connessione.
+   */
+  public synchronized long getFlushCount() {
+    return flushes;
+  }
+  /**
+   * @return il numero di messaggi scritti sul socket della connessione.
+   */
+  public synchronized long getFlushedMessages() {
+    return flushedMessages;
+  }
+  /**
+   * @return il numero di bytes scritti sul socket della connessione.
+   */
+  public synchronized long getFlushedBytes() {
+    return flushedBytes;
+  }
+  /**
+   * @return il numero medio di messaggi scritti per ogni flush.
+   */
+  public synchronized double getMessagesPerFlush() {
+    return flushes == 0 ? 0 : (double) flushedMessages / flushes;
+  }
+  /**
+   * @return il numero medio di bytes scritti per ogni flush.
+   */
+  public synchronized double getBytesPerFlush() {
+    return flushes == 0 ? 0 : (double) flushedBytes / flushes;
+  }
+  /**
+   * @return il nome del codec concordato con il peer.
+   */
+  public String getCodecName() {
+    return codec.getName();
+  }
+  /**
+   * @return il numero medio di bytes per messaggio inviato, escluse le intestazioni
+   * dei frame.
+   */
+  public double getBytesPerMessage() {
+    long messages = codec.getEncodedMessages();
+    return messages == 0 ? 0 : (double) codec.getEncodedBytes() / messages;
+  }
+  /**
+   * @return il tempo medio in nanosecondi per tradurre un messaggio da inviare.
+   */
+  public double getEncodeNanosPerMessage() {
+    long messages = codec.getEncodedMessages();
+    return messages == 0 ? 0 : (double) codec.getEncodeNanos() / messages;
+  }
+  /**
+   * @return il numero di messaggi inviati riusando la traduzione fatta per un'altra
+   * connessione.
+   */
+  public long getSharedEncodings() {
+    return codec.getSharedEncodings();
+  }
+  /**
+   * Restituisce l'indirizzo udp su cui il peer esplora la rete, creandolo solo la
+   * prima volta o se la porta è cambiata.
+   * @return l'indirizzo e la porta di esplorazione del peer.
+   */
+  InetSocketAddress getExploreAddress() {
+    InetSocketAddress address = exploreAddress;
+    if (address == null || address.getPort() != peer.getExplorePort()) {
+      address = new InetSocketAddress(peer.getInetAddress(), peer.getExplorePort());
+      exploreAddress = address;
+    }
+    return address;
+  }
+  /**
+   * @return il nome della compressione concordata con il peer, o
+   * <code>"identity"</code> se la connessione è in chiaro.
+   */
+  public String getCompressionName() {
+    return compression == null ? "identity" : Compression.DEFLATE;
+  }
+  /**
+   * @return il rapporto tra i bytes inviati dopo e prima della compressione, 1 se la
+   * connessione è in chiaro.
+   */
+  public double getCompressionRatio() {
+    Compression c = compression;
+    return c == null ? 1 : c.getCompressionRatio();
+  }
+  /**
+   * @return il rapporto tra i bytes ricevuti prima e dopo la decompressione, 1 se la
+   * connessione è in chiaro.
+   */
+  public double getDecompressionRatio() {
+    Compression c = compression;
+    return c == null ? 1 : c.getDecompressionRatio();
+  }
+  /**
+   * @return il tempo medio in nanosecondi speso a comprimere per ogni messaggio
+   * inviato.
+   */
+  public double getDeflateNanosPerMessage() {
+    Compression c = compression;
+    long messages = getFlushedMessages();
+    return c == null || messages == 0 ? 0 : (double) c.getDeflateNanos() / messages;
+  }
+  /**
+   * @return il tempo medio in nanosecondi speso a decomprimere per ogni messaggio
+   * ricevuto.
+   */
+  public double getInflateNanosPerMessage() {
+    Compression c = compression;
+    long messages = codec.getDecodedMessages() + relayedMessages;
+    return c == null || messages == 0 ? 0 : (double) c.getInflateNanos() / messages;
+  }
+  /**
+   * @return il numero di messaggi inoltrati senza essere ricostruiti.
+   */
+  public long getRelayedMessages() {
+    return relayedMessages;
+  }
+  /**
+   * @return il tempo medio in nanosecondi per ricostruire un messaggio ricevuto.
+   */
+  public double getDecodeNanosPerMessage() {
+    long messages = codec.getDecodedMessages();
+    return messages == 0 ? 0 : (double) codec.getDecodeNanos() / messages;
   }
   /**
    * Il flusso dati in uscita della connessione.
    */
-  protected ObjectOutputStream objOut = null;
+  protected DataOutputStream out = null;
+  /**
+   * Il codec con cui i messaggi sono tradotti in frame e viceversa. Fino alla fine
+   * della stretta di mano è quello basato sulla serializzazione.
+   */
+  protected volatile MessageCodec codec;
+  /**
+   * Conta i bytes effettivamente scritti sul socket.
+   */
+  private CountingOutputStream countingOut = null;
+  /**
+   * Indica se durante la stretta di mano è stata concordata la compressione.
+   */
+  protected boolean deflate = false;
+  /**
+   * La compressione concordata con il peer, o <code>null</code> se la connessione è
+   * in chiaro. E' creata solo a stretta di mano riuscita e non cambia più.
+   */
+  protected volatile Compression compression = null;
+  /**
+   * L'indirizzo udp di esplorazione del peer, creato al primo invio.
+   */
+  private volatile InetSocketAddress exploreAddress = null;
+  /**
+   * I bytes scritti sul socket fino all'ultima flush.
+   */
+  private long writtenAtLastFlush = 0;
+  /**
+   * I messaggi scritti nel buffer dall'ultima flush. E' usato solo dal Sender.
+   */
+  private int pendingMessages = 0;
+  /**
+   * L'intestazione dell'ultimo frame letto.
+   */
+  private final byte[] frameHeader = new byte[MessageCodec.FRAME_HEADER_LENGTH];
+  /**
+   * Il buffer con il contenuto dell'ultimo frame letto, che cresce se necessario.
+   */
+  private byte[] readBuffer = new byte[1024];
+  /**
+   * Il numero di messaggi inoltrati senza essere ricostruiti. E' aggiornato solo dal
+   * thread che legge dalla connessione.
+   */
+  private volatile long relayedMessages = 0;
+  /**
+   * Indica se il peer ha accettato di scambiare le tabelle di instradamento delle query.
+   */
+  protected volatile boolean peerQueryRouting = false;
+  /**
+   * L'ultima tabella di instradamento mandata al peer.
+   */
+  private QueryRouteTable sentRoutes = null;
+  /**
+   * La tabella di instradamento ricevuta dal peer, o <code>null</code> se non è nota.
+   */
+  private volatile QueryRouteTable peerRoutes = null;
+  /**
+   * Il tipo di connessione, stabilito nella stretta di mano: tra pari, verso una foglia
+   * di questo servent o verso un ultrapeer di questo servent.
+   */
+  protected volatile int kind = PEER_CONNECTION;
+  /**
+   * Indica se nella stretta di mano questo servent ha annunciato il proprio ruolo,
+   * cioè se partecipa alla rete a due livelli.
+   */
+  private boolean announcedRole = false;
+  /**
+   * Il ruolo annunciato da questo servent nella stretta di mano.
+   */
+  private boolean announcedUltrapeer = false;
+  /**
+   * Il logaritmo del numero di posizioni della tabella annunciata dal peer con
+   * l'ultimo azzeramento. E' usato solo dal thread che legge dalla connessione.
+   */
+  private int peerRouteBits = 0;
+  /**
+   * Il numero di flush eseguite.
+   */
+  private long flushes = 0;
+  /**
+   * Il numero di messaggi scritti con tutte le flush.
+   */
+  private long flushedMessages = 0;
+  /**
+   * Il numero di bytes scritti con tutte le flush.
+   */
+  private long flushedBytes = 0;
   /**
    * Indica se la connessione deve terminare.
    */
-  protected boolean mustClose;
+  protected volatile boolean mustClose;
   /**
    * Il socket utilizzato per la connessione.
    */
@@ -294,17 +1092,71 @@ public class Connection extends Forwarder {
   /**
    * Il servent a cui questa connessione appartiene.
    */
-  private Servent servent;
+  protected final Servent servent;
   /**
    * La stringa di richiesta di connessione con un altro servent.
    */
-  public static final String REQUEST = "MINI-GNUTELLA CONNECT";
+  public static final String REQUEST = "MINI-GNUTELLA/0.2 CONNECT";
   /**
    * La stringa di connessione accettata.
    */
-  public static final String ACCEPTED = "MINI-GNUTELLA ACCEPTED";
+  public static final String ACCEPTED = "MINI-GNUTELLA/0.2 ACCEPTED";
+  /**
+   * La stringa di richiesta dei servent che usano un unico stream di oggetti, a cui
+   * si risponde sempre con un rifiuto.
+   */
+  protected static final String LEGACY_REQUEST = "MINI-GNUTELLA CONNECT";
   /**
-   * La stringa di connessione rifiutata.
+   * La stringa di connessione rifiutata, rimasta senza versione perché anche i servent
+   * della versione precedente la riconoscano.
    */
   public static final String REFUSED = "MINI-GNUTELLA REFUSED";
+  /**
+   * Il separatore tra le righe di un messaggio della stretta di mano.
+   */
+  protected static final String LINE_SEPARATOR = "\r\n";
+  /**
+   * L'intestazione della richiesta con i codec proposti, in ordine di preferenza.
+   */
+  protected static final String CODECS_HEADER = "X-Codecs";
+  /**
+   * L'intestazione della risposta con il codec scelto.
+   */
+  protected static final String CODEC_HEADER = "X-Codec";
+  /**
+   * L'intestazione con cui i peer concordano lo scambio delle tabelle di
+   * instradamento delle query.
+   */
+  protected static final String QUERY_ROUTING_HEADER = "X-Query-Routing";
+  /**
+   * La versione dello scambio delle tabelle di instradamento.
+   */
+  protected static final String QUERY_ROUTING_VERSION = "1";
+  /**
+   * L'intestazione con cui ogni servent dichiara se è un ultrapeer.
+   */
+  protected static final String ULTRAPEER_HEADER = "X-Ultrapeer";
+  /**
+   * L'intestazione con cui chi chiede la connessione propone le compressioni che
+   * conosce.
+   */
+  protected static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+  /**
+   * L'intestazione con cui chi accetta la connessione indica la compressione scelta,
+   * usata da entrambi i capi subito dopo la stretta di mano.
+   */
+  protected static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+  /**
+   * Una connessione tra pari: tra due ultrapeer, tra due foglie o con un peer che non
+   * conosce la rete a due livelli.
+   */
+  static final int PEER_CONNECTION = 0;
+  /**
+   * Una connessione di un ultrapeer verso una sua foglia.
+   */
+  static final int LEAF_CONNECTION = 1;
+  /**
+   * Una connessione di una foglia verso un suo ultrapeer.
+   */
+  static final int ULTRAPEER_CONNECTION = 2;
 }
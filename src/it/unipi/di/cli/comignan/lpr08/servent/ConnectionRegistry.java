@@ -0,0 +1,125 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * L'elenco delle connessioni attive di un servent. Offre due viste dello stesso
+ * insieme: un array da scorrere per inviare un messaggio a tutti i vicini e un
+ * indice per trovare la connessione con un certo peer.
+ * <p>
+ * L'array è copiato ad ogni modifica e mai alterato dopo la pubblicazione, per cui
+ * chi fa flooding ne legge un'istantanea senza prendere alcun lock e senza
+ * contendere con le connessioni che si aprono e si chiudono. Aggiunte e rimozioni,
+ * molto più rare degli invii, sono serializzate tra loro e aggiornano entrambe le
+ * viste insieme.
+ * @author Michele Comignano
+ */
+class ConnectionRegistry {
+  /**
+   * Crea un elenco vuoto.
+   */
+  ConnectionRegistry() {
+    snapshot = new Connection[0];
+    index = new ConcurrentHashMap<ServentDescriptor, Connection>();
+  }
+  /**
+   * Aggiunge una connessione, indicizzandola con il suo peer.
+   * @param conn la connessione da aggiungere.
+   * @return <code>false</code> se con lo stesso peer c'è già un'altra connessione, nel
+   * qual caso l'elenco resta invariato.
+   */
+  synchronized boolean add(Connection conn) {
+    if (index.putIfAbsent(conn.peer, conn) != null) {
+      return false;
+    }
+    Connection[] current = snapshot;
+    Connection[] next = new Connection[current.length + 1];
+    System.arraycopy(current, 0, next, 0, current.length);
+    next[current.length] = conn;
+    snapshot = next;
+    return true;
+  }
+  /**
+   * Toglie una connessione dall'elenco.
+   * @param conn la connessione da togliere.
+   * @return <code>true</code> se la connessione era nell'elenco.
+   */
+  synchronized boolean remove(Connection conn) {
+    Connection[] current = snapshot;
+    int i = 0;
+    while (i < current.length && current[i] != conn) {
+      i++;
+    }
+    if (i == current.length) {
+      return false;
+    }
+    index.remove(conn.peer, conn);
+    Connection[] next = new Connection[current.length - 1];
+    System.arraycopy(current, 0, next, 0, i);
+    System.arraycopy(current, i + 1, next, i, next.length - i);
+    snapshot = next;
+    return true;
+  }
+  /**
+   * Restituisce le connessioni attive in questo momento. L'array restituito non viene
+   * mai modificato, per cui può essere scorso liberamente, ma non va alterato.
+   * @return l'istantanea delle connessioni attive.
+   */
+  Connection[] snapshot() {
+    return snapshot;
+  }
+  /**
+   * Cerca la connessione con un peer.
+   * @param peer il descrittore del peer.
+   * @return la connessione o <code>null</code> se non ve n'è una attiva.
+   */
+  Connection get(ServentDescriptor peer) {
+    return index.get(peer);
+  }
+  /**
+   * @return il numero di connessioni attive.
+   */
+  int size() {
+    return snapshot.length;
+  }
+  /**
+   * Conta le connessioni attive di un certo tipo.
+   * @param kind il tipo di connessione, una delle costanti di {@link Connection}.
+   * @return il numero di connessioni di quel tipo.
+   */
+  int count(int kind) {
+    int n = 0;
+    for (Connection conn : snapshot) {
+      if (conn.kind == kind) {
+        n++;
+      }
+    }
+    return n;
+  }
+  /**
+   * L'istantanea corrente delle connessioni, sostituita ad ogni modifica.
+   */
+  private volatile Connection[] snapshot;
+  /**
+   * Le connessioni indicizzate con il descrittore del peer.
+   */
+  private final ConcurrentHashMap<ServentDescriptor, Connection> index;
+}
@@ -0,0 +1,58 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Un flusso in uscita che conta i bytes che lo attraversano, usato per misurare
+ * quanto viene effettivamente scritto su un socket.
+ * @author Michele Comignano
+ */
+class CountingOutputStream extends FilterOutputStream {
+  /**
+   * Crea un nuovo flusso che conta i bytes scritti su quello dato.
+   * @param out il flusso sottostante.
+   */
+  CountingOutputStream(OutputStream out) {
+    super(out);
+    count = 0;
+  }
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+  /**
+   * @return il numero di bytes scritti dalla creazione del flusso.
+   */
+  long getCount() {
+    return count;
+  }
+  /**
+   * Il numero di bytes scritti.
+   */
+  private volatile long count;
+}
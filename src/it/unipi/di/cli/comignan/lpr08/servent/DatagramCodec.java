@@ -0,0 +1,200 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Il formato binario compatto dei pacchetti udp di esplorazione. Un ping occupa 25
+ * bytes e un pong, con un indirizzo IPv4, 29; un pong multiplo ne occupa 21 più
+ * al più 18 per ogni peer con indirizzo IPv4. La serializzazione di Java ne richiede
+ * diverse centinaia per le sole intestazioni di classe. I messaggi vengono scritti e
+ * letti direttamente nei buffer dell'esploratore, senza flussi intermedi.
+ * <p>
+ * Ogni pacchetto comincia con un byte di formato seguito dall'intestazione comune ai
+ * messaggi nello stesso ordine di {@link BinaryCodec}: identificatore, tipo, ttl e
+ * inoltri. Il byte di formato distingue questi pacchetti da quelli serializzati,
+ * che cominciano sempre con il valore magico della serializzazione.
+ * @author Michele Comignano
+ */
+class DatagramCodec {
+  /**
+   * Indica se un pacchetto ricevuto è nel formato binario.
+   * @param in il buffer con il pacchetto, in lettura.
+   * @return <code>true</code> se il pacchetto comincia con il byte di formato.
+   */
+  static boolean isBinary(ByteBuffer in) {
+    return in.hasRemaining() && in.get(in.position()) == FORMAT;
+  }
+  /**
+   * Scrive un messaggio nel buffer dato.
+   * @param msg il messaggio, un ping o un pong.
+   * @param out il buffer, in scrittura, con spazio sufficiente per un pacchetto.
+   * @throws IOException se il messaggio non viaggia su udp.
+   */
+  static void write(Message msg, ByteBuffer out) throws IOException {
+    out.put(FORMAT);
+    out.putLong(msg.idHigh);
+    out.putLong(msg.idLow);
+    out.put(msg.messageType);
+    out.put(msg.getTtl());
+    out.put(msg.getHops());
+    switch (msg.messageType) {
+      case PingMessage.TYPE_ID:
+        PingMessage ping = (PingMessage) msg;
+        out.putShort((short) ping.connectPort);
+        out.putShort((short) ping.explorePort);
+        // Le opzioni stanno in coda, dove chi non le conosce non le legge.
+        out.put(ping.batches ? FLAG_BATCHES : 0);
+        break;
+      case PongMessage.TYPE_ID:
+        PongMessage pong = (PongMessage) msg;
+        out.putShort((short) pong.connectPort);
+        out.putShort((short) pong.explorePort);
+        putAddress(out, pong.address);
+        break;
+      case PongBatchMessage.TYPE_ID:
+        PongBatchMessage batch = (PongBatchMessage) msg;
+        out.put((byte) batch.peers.length);
+        for (PongBatchMessage.Peer peer : batch.peers) {
+          boolean uptime = peer.uptime != PongBatchMessage.UNKNOWN;
+          boolean files = peer.files != PongBatchMessage.UNKNOWN;
+          out.put((byte) ((uptime ? FLAG_UPTIME : 0) | (files ? FLAG_FILES : 0)));
+          out.putShort((short) peer.connectPort);
+          out.putShort((short) peer.explorePort);
+          putAddress(out, peer.address);
+          if (uptime) {
+            out.putInt(peer.uptime);
+          }
+          if (files) {
+            out.putInt(peer.files);
+          }
+        }
+        break;
+      default:
+        throw new IOException("Tipo di messaggio sconosciuto: " + msg.messageType);
+    }
+  }
+  /**
+   * Legge un messaggio dal buffer dato.
+   * @param in il buffer con il pacchetto, in lettura.
+   * @return il messaggio letto.
+   * @throws IOException se il pacchetto non è valido.
+   */
+  static Message read(ByteBuffer in) throws IOException {
+    try {
+      if (in.get() != FORMAT) {
+        throw new IOException("Formato del pacchetto sconosciuto");
+      }
+      long idHigh = in.getLong();
+      long idLow = in.getLong();
+      byte type = in.get();
+      byte ttl = in.get();
+      byte hops = in.get();
+      Message msg;
+      switch (type) {
+        case PingMessage.TYPE_ID:
+          PingMessage ping = new PingMessage(idHigh, idLow, in.getShort() & 0xffff,
+                  in.getShort() & 0xffff);
+          ping.batches = in.hasRemaining() && (in.get() & FLAG_BATCHES) != 0;
+          msg = ping;
+          break;
+        case PongMessage.TYPE_ID:
+          PongMessage pong = new PongMessage(idHigh, idLow, in.getShort() & 0xffff,
+                  in.getShort() & 0xffff);
+          pong.address = getAddress(in);
+          msg = pong;
+          break;
+        case PongBatchMessage.TYPE_ID:
+          PongBatchMessage.Peer[] peers = new PongBatchMessage.Peer[in.get() & 0xff];
+          for (int i = 0; i < peers.length; i++) {
+            byte flags = in.get();
+            int connectPort = in.getShort() & 0xffff;
+            int explorePort = in.getShort() & 0xffff;
+            InetAddress address = getAddress(in);
+            int uptime = (flags & FLAG_UPTIME) != 0 ? in.getInt() : PongBatchMessage.UNKNOWN;
+            int files = (flags & FLAG_FILES) != 0 ? in.getInt() : PongBatchMessage.UNKNOWN;
+            peers[i] = new PongBatchMessage.Peer(address, connectPort, explorePort, uptime, files);
+          }
+          msg = new PongBatchMessage(idHigh, idLow, peers);
+          break;
+        default:
+          throw new IOException("Tipo di messaggio sconosciuto: " + type);
+      }
+      msg.setTtlAndHops(ttl, hops);
+      return msg;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Pacchetto incompleto");
+    }
+  }
+  /**
+   * Scrive un indirizzo preceduto dalla sua lunghezza.
+   * @param out il buffer.
+   * @param address l'indirizzo, eventualmente <code>null</code>.
+   */
+  private static void putAddress(ByteBuffer out, InetAddress address) {
+    if (address == null) {
+      out.put((byte) 0);
+    } else {
+      byte[] raw = address.getAddress();
+      out.put((byte) raw.length);
+      out.put(raw);
+    }
+  }
+  /**
+   * Legge un indirizzo preceduto dalla sua lunghezza.
+   * @param in il buffer.
+   * @return l'indirizzo o <code>null</code> se assente.
+   * @throws IOException se la lunghezza non è valida.
+   */
+  private static InetAddress getAddress(ByteBuffer in) throws IOException {
+    int length = in.get() & 0xff;
+    if (length == 0) {
+      return null;
+    } else if (length != 4 && length != BinaryCodec.ADDRESS_LENGTH) {
+      throw new IOException("Indirizzo non valido");
+    }
+    byte[] raw = new byte[length];
+    in.get(raw);
+    return InetAddress.getByAddress(raw);
+  }
+  /**
+   * Il byte di formato dei pacchetti binari. Un pacchetto serializzato comincia con
+   * 0xAC.
+   */
+  static final byte FORMAT = 0x01;
+  /**
+   * L'opzione di un ping che accetta risposte con più peer.
+   */
+  static final byte FLAG_BATCHES = 0x01;
+  /**
+   * Indica che un peer di un pong multiplo riporta da quanto tempo è attivo.
+   */
+  static final byte FLAG_UPTIME = 0x01;
+  /**
+   * Indica che un peer di un pong multiplo riporta quanti files condivide.
+   */
+  static final byte FLAG_FILES = 0x02;
+  /**
+   * La dimensione massima di un pacchetto udp.
+   */
+  static final int MAX_PACKET_SIZE = 65507;
+}
@@ -30,7 +30,7 @@ import java.net.Socket;
  * Helper del servent per lo scaricamento dei files.
  * @author michele
  */
-class Downloader extends Thread {
+class Downloader implements Runnable {
   protected Downloader(Servent servent, InetAddress address, int port, String fileName) {
     this.servent = servent;
     this.port = port;
@@ -0,0 +1,268 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una ricerca dinamica: invece di mandare la query a tutti i vicini con il ttl massimo,
+ * il servent la manda a pochi vicini con un ttl basso, guarda quanti risultati
+ * arrivano e solo se non bastano la manda ad un vicino alla volta tra quelli non
+ * ancora interrogati, con un ttl scelto in base alla resa osservata fino a quel
+ * momento. La ricerca si ferma quando si raggiunge il numero di risultati voluto,
+ * quando scade il tempo a disposizione o quando non restano vicini da interrogare; i
+ * risultati già in viaggio continuano comunque ad arrivare.
+ * <p>
+ * Tutti i messaggi hanno lo stesso identificatore, così che le risposte finiscano
+ * nella stessa raccolta e che un peer raggiunto per più vie la consideri una volta
+ * sola. Il numero di peer raggiunti da una query è stimato supponendo che ogni peer
+ * abbia tanti vicini quanti questo servent: la stessa stima dà i messaggi risparmiati
+ * rispetto ad un flooding completo.
+ * <p>
+ * I passi della ricerca girano sul temporizzatore del servent e non si bloccano mai.
+ * @author Michele Comignano
+ */
+class DynamicQuery implements Runnable {
+  /**
+   * Prepara una ricerca dinamica.
+   * @param servent il servent che avvia la ricerca.
+   * @param query la query, con l'identificatore della ricerca.
+   * @param results dove arrivano i risultati della ricerca.
+   */
+  DynamicQuery(Servent servent, QueryMessage query, SearchResults results) {
+    this.servent = servent;
+    this.query = query;
+    this.results = results;
+    target = servent.settings.getDynamicQueryTarget();
+    budget = servent.settings.getDynamicQueryBudget();
+    queried = new ArrayList<Connection>();
+    stopped = false;
+    finished = false;
+  }
+  /**
+   * Avvia la ricerca con il primo passo, che sonda i vicini.
+   */
+  void start() {
+    started = System.currentTimeMillis();
+    int neighbours = servent.connections.size();
+    branching = Math.max(1, neighbours - 1);
+    synchronized (servent.cache) {
+      knownPeers = Math.max(servent.cache.size(), neighbours);
+    }
+    fullFlood = neighbours * horizon(Message.DEFAULT_TTL);
+    schedule(0);
+  }
+  /**
+   * Chiede di interrompere la ricerca al prossimo passo.
+   */
+  void stop() {
+    stopped = true;
+  }
+  /**
+   * Esegue un passo della ricerca e, se non è finita, programma il successivo.
+   */
+  public void run() {
+    if (stopped || servent.mustHalt || results.size() >= target ||
+            System.currentTimeMillis() - started >= budget) {
+      finish();
+      return;
+    }
+    List<Connection> fresh = new ArrayList<Connection>();
+    for (Connection conn : servent.connections.snapshot()) {
+      if (conn.mustClose || queried.contains(conn)) {
+        continue;
+      }
+      if (conn.kind == Connection.LEAF_CONNECTION) {
+        // Le foglie non inoltrano: ricevono la query una volta sola, se può interessarle.
+        if (conn.mayAnswer(query)) {
+          send(conn, 0);
+        }
+      } else {
+        fresh.add(conn);
+      }
+    }
+    if (fresh.isEmpty()) {
+      finish();
+      return;
+    }
+    if (queried.isEmpty()) {
+      for (int i = 0; i < fresh.size() && i < PROBE_NEIGHBOURS; i++) {
+        send(fresh.get(i), PROBE_TTL);
+      }
+    } else {
+      send(fresh.get(0), nextTtl(fresh.size()));
+    }
+    schedule(Util.DYNAMIC_QUERY_STEP_INTERVAL);
+  }
+  /**
+   * Sceglie il ttl per il prossimo vicino in modo che, con la resa osservata finora,
+   * i vicini rimasti bastino a raccogliere i risultati mancanti. Se finora non è
+   * arrivato nulla il ttl cresce di uno rispetto all'ultimo usato.
+   * @param remaining il numero di vicini ancora da interrogare.
+   * @return il ttl, al più quello di un flooding completo.
+   */
+  private int nextTtl(int remaining) {
+    int found = results.size();
+    if (found == 0) {
+      return Math.min(lastTtl + 1, Message.DEFAULT_TTL);
+    }
+    double perPeer = found / reached;
+    double needed = (target - found) / perPeer / remaining;
+    int ttl = PROBE_TTL;
+    while (ttl < Message.DEFAULT_TTL && horizon(ttl) < needed) {
+      ttl++;
+    }
+    return ttl;
+  }
+  /**
+   * Manda la query ad un vicino con il ttl dato.
+   * @param conn il vicino.
+   * @param ttl il ttl.
+   */
+  private void send(Connection conn, int ttl) {
+    QueryMessage msg = new QueryMessage(query.idHigh, query.idLow, query.keyWords);
+    msg.setTtlAndHops((byte) ttl, (byte) 0);
+    conn.sendQueryMessage(msg);
+    queried.add(conn);
+    reached += horizon(ttl);
+    lastTtl = Math.max(lastTtl, ttl);
+  }
+  /**
+   * Stima quanti peer raggiunge una query mandata ad un vicino con il ttl dato, cioè
+   * quanti messaggi costa. Una query non raggiunge più peer di quanti il servent ne
+   * conosca: senza questo limite la stima crescerebbe esponenzialmente con il ttl
+   * anche in una rete piccola.
+   * @param ttl il ttl.
+   * @return il numero stimato di peer raggiunti.
+   */
+  private double horizon(int ttl) {
+    double hosts = 0;
+    double level = 1;
+    for (int i = 0; i <= ttl; i++) {
+      hosts += level;
+      level *= branching;
+    }
+    return Math.min(hosts, knownPeers);
+  }
+  /**
+   * Programma il prossimo passo della ricerca.
+   * @param delay il ritardo in millisecondi.
+   */
+  private void schedule(long delay) {
+    try {
+      servent.timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      finish();
+    }
+  }
+  /**
+   * Conclude la ricerca e ne registra il risparmio.
+   */
+  private void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    savedMessages = Math.max(0, (long) (fullFlood - reached));
+    servent.recordDynamicQuery(queried.size(), savedMessages);
+  }
+  /**
+   * @return <code>true</code> se la ricerca non manda più messaggi.
+   */
+  boolean isFinished() {
+    return finished;
+  }
+  /**
+   * @return la stima dei messaggi risparmiati rispetto ad un flooding completo, nota
+   * quando la ricerca è finita.
+   */
+  long getSavedMessages() {
+    return savedMessages;
+  }
+  /**
+   * Il numero di vicini sondati al primo passo.
+   */
+  static final int PROBE_NEIGHBOURS = 3;
+  /**
+   * Il ttl delle query del primo passo.
+   */
+  static final int PROBE_TTL = 1;
+  /**
+   * Il servent che ha avviato la ricerca.
+   */
+  private final Servent servent;
+  /**
+   * La query originale.
+   */
+  private final QueryMessage query;
+  /**
+   * I risultati raccolti.
+   */
+  private final SearchResults results;
+  /**
+   * Il numero di risultati raggiunto il quale la ricerca si ferma.
+   */
+  private final int target;
+  /**
+   * Il tempo a disposizione della ricerca in millisecondi.
+   */
+  private final long budget;
+  /**
+   * I vicini già interrogati. E' usato solo dal temporizzatore.
+   */
+  private final List<Connection> queried;
+  /**
+   * L'istante di avvio della ricerca.
+   */
+  private long started;
+  /**
+   * Il numero di vicini supposto per ogni peer, meno quello da cui arriva la query.
+   */
+  private int branching;
+  /**
+   * Il numero di peer conosciuti all'avvio della ricerca.
+   */
+  private int knownPeers;
+  /**
+   * La stima dei messaggi di un flooding completo.
+   */
+  private double fullFlood;
+  /**
+   * La stima dei peer raggiunti, cioè dei messaggi spesi, finora.
+   */
+  private double reached;
+  /**
+   * L'ultimo ttl usato.
+   */
+  private int lastTtl;
+  /**
+   * Indica se è stato chiesto di interrompere la ricerca.
+   */
+  private volatile boolean stopped;
+  /**
+   * Indica se la ricerca è finita.
+   */
+  private volatile boolean finished;
+  /**
+   * La stima dei messaggi risparmiati.
+   */
+  private volatile long savedMessages;
+}
@@ -95,7 +95,7 @@ public class FileServer extends Thread {
     servent.exec.execute(new Pusher(push));
   }
 
-  private class Pusher extends Thread {
+  private class Pusher implements Runnable {
     public Pusher(PushMessage msg) {
       fileName = msg.fileName;
       address = msg.target;
@@ -150,6 +150,7 @@ public class FileServer extends Thread {
         if (files.get(i).toLowerCase().contains(keyWords[j].toLowerCase().subSequence(0,
                 keyWords[j].length()))) {
           results.add(files.get(i));
+          break;
         }
       }
     }
@@ -159,7 +160,7 @@ public class FileServer extends Thread {
   /**
    * Si occupa di gestire la richesta di un file.
    */
-  private class GetHandler extends Thread {
+  private class GetHandler implements Runnable {
     private Socket socket;
     private String request;
     public GetHandler(Socket socket, String request) {
@@ -203,7 +204,7 @@ public class FileServer extends Thread {
    * Gestisce una richiesta di tipo push che consiste nel ricevere il file offerto da un
    * servent coperto da firewall.
    */
-  private class PushHandler extends Thread {
+  private class PushHandler implements Runnable {
     private Socket socket;
     private String request;
     /**
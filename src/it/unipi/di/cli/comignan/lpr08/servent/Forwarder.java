@@ -17,9 +17,8 @@
 
 package it.unipi.di.cli.comignan.lpr08.servent;
 
-import java.util.Hashtable;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Il Forwarder è una classe astratta che va implementata da tutte quelle classi
@@ -32,10 +31,22 @@ import java.util.Queue;
 public abstract class Forwarder extends Thread {
   /**
    * Inizializza le risorse.
+   * @param settings le impostazioni del servent per cui lavora il forwarder.
    */
-  protected Forwarder() {
-    sendingQueue = new LinkedList<MessageWithTarget>();
-    seen = new Hashtable<Message, Connection>();
+  protected Forwarder(ServentSettings settings) {
+    this(settings, false);
+  }
+  /**
+   * Inizializza le risorse specificando se la coda di invio deve applicare il
+   * controllo di flusso.
+   * @param settings le impostazioni del servent per cui lavora il forwarder.
+   * @param flowControl indica se attivare il controllo di flusso sulla coda di invio.
+   */
+  protected Forwarder(ServentSettings settings, boolean flowControl) {
+    sendingQueue = new OutboundQueue(settings, flowControl);
+    seen = new RouteTable<Connection>(settings);
+    maxBatchSize = 1;
+    batchLinger = 0;
   }
   /**
    * Il metoto deve essere implementato per fornire le operazioni specifiche necessarie
@@ -48,6 +59,23 @@ public abstract class Forwarder extends Thread {
    * @param target la connessione verso il peer a cui il messaggio deve essere inviato.
    */
   abstract void send(Message msg, Connection target);
+  /**
+   * Viene invocato dal Sender dopo l'invio di ogni gruppo di messaggi prelevati
+   * insieme dalla coda. Chi scrive su un flusso bufferizzato lo ridefinisce per
+   * svuotare il buffer una sola volta per gruppo anzichè per ogni messaggio.
+   */
+  void flush() {
+  }
+  /**
+   * Stabilisce quanti messaggi il Sender può prelevare dalla coda e inviare prima di
+   * una flush e quanto a lungo può attenderne altri per riempire il gruppo.
+   * @param maxBatchSize il numero massimo di messaggi per gruppo.
+   * @param batchLinger l'attesa massima in millisecondi per completare un gruppo.
+   */
+  protected void setBatching(int maxBatchSize, long batchLinger) {
+    this.maxBatchSize = maxBatchSize;
+    this.batchLinger = batchLinger;
+  }
   /**
    * Inserisce un messaggio tra quelli visti assieme alla descrizione del
    * servent che lo ha inviato.
@@ -65,8 +93,65 @@ public abstract class Forwarder extends Thread {
   boolean haveSeen(Message msg) {
     return seen.get(msg) != null;
   }
-  void forward(Message msg, Connection dest) {
-    sendingQueue.add(new MessageWithTarget(msg, dest));
+  /**
+   * Segna un messaggio come visto se non lo era già, in un'unica operazione, così
+   * che due copie dello stesso messaggio arrivate insieme da vicini diversi non
+   * vengano entrambe inoltrate.
+   * @param msg il messaggio.
+   * @param origin la connessione da cui è arrivato.
+   * @return <code>true</code> se il messaggio non era ancora stato visto.
+   */
+  boolean markSeen(Message msg, Connection origin) {
+    return seen.putIfAbsent(msg, origin) == null;
+  }
+  /**
+   * Mette un messaggio in coda di invio verso la destinazione data. Se la coda è
+   * piena il chiamante attende per un tempo limitato, poi il messaggio viene scartato.
+   * Un event loop del trasporto non bloccante non attende mai: fermo lui si
+   * fermerebbero tutte le sue connessioni, compresa magari quella che deve svuotare
+   * la coda, e il messaggio viene scartato subito.
+   * @param msg il messaggio da inviare.
+   * @param dest la connessione verso cui inviarlo.
+   * @return <code>true</code> se il messaggio è stato accodato, <code>false</code> se
+   * è stato scartato.
+   */
+  boolean forward(Message msg, Connection dest) {
+    return sendingQueue.offer(new MessageWithTarget(msg, dest),
+            !NioOverlay.isEventLoopThread());
+  }
+  /**
+   * Preleva dalla coda di invio i messaggi già presenti, senza attendere. Serve a chi
+   * invia i messaggi senza un Sender dedicato.
+   * @param batch la lista in cui aggiungere i messaggi prelevati.
+   * @param max il numero massimo di messaggi da prelevare.
+   * @return il numero di messaggi prelevati.
+   */
+  int drainQueue(List<MessageWithTarget> batch, int max) {
+    return sendingQueue.drainTo(batch, max);
+  }
+  /**
+   * @return il numero di messaggi in attesa nella coda di invio.
+   */
+  int queueSize() {
+    return sendingQueue.size();
+  }
+  /**
+   * @return il numero di messaggi scartati perchè la coda di invio era piena.
+   */
+  long getDroppedMessages() {
+    return sendingQueue.getDropped();
+  }
+  /**
+   * @return il numero di messaggi scartati o rifiutati dal controllo di flusso.
+   */
+  long getShedMessages() {
+    return sendingQueue.getShed();
+  }
+  /**
+   * @return <code>true</code> se la coda di invio è satura e rifiuta i nuovi flooding.
+   */
+  boolean isFlowControlled() {
+    return sendingQueue.isSaturated();
   }
   Connection getDestination(Message msg) {
     return seen.get(msg);
@@ -74,27 +159,49 @@ public abstract class Forwarder extends Thread {
   void removeSeen(Message msg) {
     seen.remove(msg);
   }
+  /**
+   * @return la tabella dei messaggi visti, per leggerne dimensione e scadenze.
+   */
+  RouteTable<Connection> getSeenTable() {
+    return seen;
+  }
 
   /**
-   * Si occupa di inoltrare i messaggi di ping ricevuti da altri servent che
-   * erano stati messi in coda e inviare quelli creati ad hoc.
+   * Si occupa di inviare i messaggi messi in coda, restando in attesa sulla coda
+   * quando questa è vuota. I messaggi vengono prelevati a gruppi: a quello che
+   * sveglia il Sender si aggiungono quelli già in coda ed eventualmente quelli che
+   * arrivano entro il tempo di attesa stabilito, poi si invia tutto e si esegue una
+   * sola flush. Termina quando viene interrotto.
    */
-  protected class Sender extends Thread {
+  protected class Sender implements Runnable {
     @Override
     public void run() {
+      ArrayList<MessageWithTarget> batch = new ArrayList<MessageWithTarget>();
       while (true) {
-        if (sendingQueue.size() <= 0) {
-          try {
-            sleep(Util.NEW_MESSAGES_CHECK_INTERVAL);
-            continue;
-          } catch (InterruptedException e) {
-            break;
+        try {
+          batch.add(sendingQueue.take());
+          sendingQueue.drainTo(batch, maxBatchSize - batch.size());
+          if (batchLinger > 0) {
+            long deadline = System.currentTimeMillis() + batchLinger;
+            long remaining = batchLinger;
+            while (batch.size() < maxBatchSize && remaining > 0) {
+              MessageWithTarget next = sendingQueue.poll(remaining);
+              if (next == null) {
+                break;
+              }
+              batch.add(next);
+              sendingQueue.drainTo(batch, maxBatchSize - batch.size());
+              remaining = deadline - System.currentTimeMillis();
+            }
           }
+        } catch (InterruptedException e) {
+          break;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          send(batch.get(i).message, batch.get(i).target);
         }
-        MessageWithTarget msgWithRoute = sendingQueue.poll();
-        Message msg = msgWithRoute.message;
-        Connection target = msgWithRoute.target;
-        send(msg, target);
+        flush();
+        batch.clear();
       }
     }
   }
@@ -102,7 +209,7 @@ public abstract class Forwarder extends Thread {
   /**
    * Classe di comodo per memorizzare messaggi con destinazione da mettere in coda di invio.
    */
-  protected class MessageWithTarget {
+  protected static class MessageWithTarget {
     Message message;
     Connection target;
     MessageWithTarget(Message message, Connection target) {
@@ -111,13 +218,21 @@ public abstract class Forwarder extends Thread {
     }
   }
   /**
-   * Questa tabella hash tiene traccia dei messaggi di ping inviati o
-   * inoltrati dal NetworkExplorer per scartare i messaggi di pong di cui non
-   * si è mai avuta traccia. Di fatto questo è parte del sistema di routing.
+   * Questa tabella tiene traccia dei messaggi visti, inviati o inoltrati con la
+   * connessione da cui provengono, per scartare i duplicati e rimandare le risposte
+   * lungo la rotta inversa. Di fatto questo è parte del sistema di routing.
+   */
+  private final RouteTable<Connection> seen;
+  /**
+   * La coda dei messaggi in attesa di invio.
+   */
+  private final OutboundQueue sendingQueue;
+  /**
+   * Il numero massimo di messaggi inviati tra una flush e l'altra.
    */
-  private Hashtable<Message, Connection> seen;
+  private int maxBatchSize;
   /**
-   * La lista dei messaggi di ping da inoltrare in attesa di invio.
+   * L'attesa massima in millisecondi per completare un gruppo di messaggi.
    */
-  private Queue<MessageWithTarget> sendingQueue;
+  private long batchLinger;
 }
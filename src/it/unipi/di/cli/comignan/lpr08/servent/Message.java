@@ -18,9 +18,7 @@
 package it.unipi.di.cli.comignan.lpr08.servent;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Il generico messaggio con le caratteristiche comuni a tutti i messaggi.
@@ -28,10 +26,6 @@ import java.util.Random;
  * @author Michele Comignano
  */
 public abstract class Message implements Serializable {
-  /**
-   * Generatore di numeri casuali per la generazione degli identificatori.
-   */
-  private static Random random = new Random();
   /**
    * Il massimo numero di inoltri per un nuovo messaggio.
    */
@@ -39,12 +33,16 @@ public abstract class Message implements Serializable {
   /**
    * Il numero di bytes che compongono l'identificatore univoco.
    */
-  private static final int ID_LENGTH = 16;
+  static final int ID_LENGTH = 16;
+  /**
+   * La metà alta del valore di 128 bit che identifica univocamente il messaggio
+   * all'interno della rete Gnutella anche dopo inoltri successivi.
+   */
+  protected long idHigh;
   /**
-   * Un valore che identifica univocamente il messaggio all'interno della rete
-   * Gnutella anche dopo inoltri successivi.
+   * La metà bassa dell'identificatore univoco.
    */
-  protected byte[] messageId;
+  protected long idLow;
   /**
    * Identifica i tipo di messaggio (ping, pong, ...).
    */
@@ -54,29 +52,47 @@ public abstract class Message implements Serializable {
    */
   private byte ttl;
   /**
-   * Costruisce un nuovo messaggio del tipo dato.
+   * Il numero di volte che il messaggio è già stato inoltrato. Insieme al ttl dà
+   * la distanza percorsa, utile per decidere quali messaggi scartare per primi
+   * quando un peer non riesce a star dietro al traffico.
+   */
+  private byte hops;
+  /**
+   * L'ultima traduzione del messaggio fatta da un codec, condivisa tra tutte le
+   * connessioni verso cui il messaggio viene inoltrato. Non viaggia con il messaggio.
+   */
+  transient volatile MessageCodec.Encoding encoding;
+  /**
+   * Costruisce un nuovo messaggio del tipo dato con un nuovo identificatore univoco.
+   * L'identificatore è composto da due numeri casuali presi dal generatore del thread
+   * corrente: non serve che sia imprevedibile ma solo che non si ripeta, e così la
+   * costruzione di un messaggio non passa per un generatore condiviso tra i thread nè
+   * per il calcolo di un digest.
    * @param messageType il tipo del messaggio.
    */
   protected Message(byte messageType) {
-    messageId = new byte[ID_LENGTH];
-    random.nextBytes(messageId);
-    try {
-      messageId = MessageDigest.getInstance("SHA-256").digest(messageId);
-    } catch (NoSuchAlgorithmException e) {
-    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    this.idHigh = random.nextLong();
+    this.idLow = random.nextLong();
     this.messageType = messageType;
     this.ttl = DEFAULT_TTL;
+    this.hops = 0;
   }
   /**
    * Crea un nuovo messaggio di tipo dato che sarà identificato dall'id fornito.
    * Utile quando si riceve un messaggio di ping e si crea un messaggio di pong
-   * che dovendo seguire la rotta inversa, deve avere stesso identificatore.
-   * @param messageId l'identificatore univoco.
+   * che dovendo seguire la rotta inversa, deve avere stesso identificatore. In
+   * questo caso non viene generato alcun nuovo identificatore.
+   * @param idHigh la metà alta dell'identificatore univoco.
+   * @param idLow la metà bassa dell'identificatore univoco.
    * @param messageType il tipo del messaggio.
    */
-  protected Message(byte[] messageId, byte messageType) {
-    this(messageType);
-    this.messageId = messageId;
+  protected Message(long idHigh, long idLow, byte messageType) {
+    this.idHigh = idHigh;
+    this.idLow = idLow;
+    this.messageType = messageType;
+    this.ttl = DEFAULT_TTL;
+    this.hops = 0;
   }
   /**
    * Prepara il messaggio ad essere inoltrato decrementando il ttl e lanciando
@@ -87,37 +103,54 @@ public abstract class Message implements Serializable {
     if (ttl-- <= 0) {
       throw new DeadMessageException();
     }
+    hops++;
   }
   /**
-   * Ricava un intero dall'id univoco del messaggio. Nella messaggi di tipo diverso possono
+   * Ripristina ttl e numero di inoltri di un messaggio ricostruito da un codec.
+   * @param ttl il numero di inoltri ancora possibili.
+   * @param hops il numero di inoltri già subiti.
+   */
+  void setTtlAndHops(byte ttl, byte hops) {
+    this.ttl = ttl;
+    this.hops = hops;
+  }
+  /**
+   * @return il numero di inoltri ancora possibili.
+   */
+  byte getTtl() {
+    return ttl;
+  }
+  /**
+   * @return il numero di inoltri già subiti dal messaggio.
+   */
+  byte getHops() {
+    return hops;
+  }
+  /**
+   * Ricava un intero dall'id univoco del messaggio. Messaggi di tipo diverso possono
    * avere lo stesso id, ad esempio uno di ping e il rispettivo messaggio di pong. In entrambi
    * i casi sarà restituito lo stesso valore e questo è utile perchè questi messaggi sono
    * usati come chiavi di tabelle hash contenenti le connessioni di destinazione o
    * provenienza.
-   * @return
+   * @return il codice hash dell'identificatore.
    */
   @Override
   public int hashCode() {
-    int ret = 0;
-    for (int i = 0; i < messageId.length; i++) {
-      ret += messageId[i];
-    }
-    return ret;
+    long h = idHigh * 31 + idLow;
+    return (int) (h ^ (h >>> 32));
   }
   /**
-   * Segenedo l'idea della hashCode due messaggi anche di tipo diverso risulteranno uguali
+   * Seguendo l'idea della hashCode due messaggi anche di tipo diverso risulteranno uguali
    * se hanno lo stesso identificatore univoco.
-   * @param obj
-   * @return
+   * @param obj l'oggetto da confrontare.
+   * @return <code>true</code> se obj è un messaggio con lo stesso identificatore.
    */
   @Override
   public boolean equals(Object obj) {
-    if (obj == null) {
-      return false;
-    }
     if (!(obj instanceof Message)) {
       return false;
     }
-    return ((Message) obj).hashCode() == hashCode();
+    Message other = (Message) obj;
+    return other.idHigh == idHigh && other.idLow == idLow;
   }
 }
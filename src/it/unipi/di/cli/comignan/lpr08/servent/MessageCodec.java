@@ -0,0 +1,279 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Traduce i messaggi nella forma in cui viaggiano sulle connessioni tra servents e
+ * viceversa. Sulla connessione ogni messaggio occupa un frame composto da quattro
+ * bytes con la lunghezza del contenuto, seguiti dal contenuto prodotto dal codec.
+ * Delimitare i messaggi in questo modo permette di leggerli anche a pezzi, come
+ * accade con i canali non bloccanti.
+ * <p>
+ * I due capi di una connessione scelgono il codec durante la stretta di mano, in base
+ * al nome con cui ogni codec si presenta. Ogni istanza tiene il conto dei messaggi
+ * tradotti, dei bytes prodotti e letti e del tempo speso, per confrontare i codec sul
+ * traffico reale; un'istanza appartiene ad una sola connessione e ogni direzione è
+ * usata da un solo thread alla volta.
+ * <p>
+ * Lo stesso messaggio inoltrato a molti vicini viene tradotto una volta sola: la
+ * traduzione resta attaccata al messaggio e le connessioni che usano lo stesso codec
+ * la condividono. I codec che tengono ttl e numero di inoltri in una posizione fissa
+ * la condividono anche se questi cambiano, perchè i due bytes vengono scritti a parte
+ * ad ogni invio senza mai modificare la traduzione condivisa.
+ * @author Michele Comignano
+ */
+abstract class MessageCodec {
+  /**
+   * Traduce un messaggio nel contenuto di un frame, riusando se possibile la traduzione
+   * già fatta da un'altra connessione. I bytes restituiti sono condivisi e non vanno
+   * modificati; se il codec ha ttl e inoltri in posizione fissa il loro valore può non
+   * essere aggiornato, per cui vanno scritti con {@link #writeFrame} o {@link #putFrame}.
+   * @param msg il messaggio da tradurre.
+   * @return i bytes che rappresentano il messaggio, senza la lunghezza.
+   * @throws IOException se il messaggio non può essere tradotto.
+   */
+  final byte[] encode(Message msg) throws IOException {
+    Encoding cached = msg.encoding;
+    if (cached != null && cached.codec == getClass() && (getTtlOffset() >= 0 ||
+            (cached.ttl == msg.getTtl() && cached.hops == msg.getHops()))) {
+      sharedEncodings++;
+      return cached.data;
+    }
+    long start = System.nanoTime();
+    // Un messaggio ricevuto in binario e non ricostruito va ricostruito solo se ora
+    // deve viaggiare in un altro formato.
+    byte[] data = write(msg instanceof RawMessage ? ((RawMessage) msg).decode() : msg);
+    encodeNanos += System.nanoTime() - start;
+    encodedMessages++;
+    encodedBytes += data.length;
+    msg.encoding = new Encoding(getClass(), data, msg.getTtl(), msg.getHops());
+    return data;
+  }
+  /**
+   * Scrive un frame con la traduzione di un messaggio, aggiornando ttl e inoltri.
+   * @param msg il messaggio tradotto.
+   * @param data la traduzione restituita da {@link #encode}.
+   * @param out il flusso su cui scrivere.
+   * @throws IOException in caso di problemi di scrittura.
+   */
+  final void writeFrame(Message msg, byte[] data, DataOutputStream out) throws IOException {
+    out.writeInt(data.length);
+    int ttlOffset = getTtlOffset();
+    if (ttlOffset < 0) {
+      out.write(data);
+    } else {
+      out.write(data, 0, ttlOffset);
+      out.writeByte(msg.getTtl());
+      out.writeByte(msg.getHops());
+      out.write(data, ttlOffset + 2, data.length - ttlOffset - 2);
+    }
+  }
+  /**
+   * Aggiunge ad un buffer un frame con la traduzione di un messaggio, aggiornando ttl
+   * e inoltri. Il buffer deve avere spazio sufficiente.
+   * @param msg il messaggio tradotto.
+   * @param data la traduzione restituita da {@link #encode}.
+   * @param buffer il buffer in cui scrivere.
+   */
+  final void putFrame(Message msg, byte[] data, ByteBuffer buffer) {
+    buffer.putInt(data.length);
+    int ttlOffset = getTtlOffset();
+    if (ttlOffset < 0) {
+      buffer.put(data);
+    } else {
+      buffer.put(data, 0, ttlOffset);
+      buffer.put(msg.getTtl());
+      buffer.put(msg.getHops());
+      buffer.put(data, ttlOffset + 2, data.length - ttlOffset - 2);
+    }
+  }
+  /**
+   * Indica dove il codec scrive il ttl, seguito dal numero di inoltri.
+   * @return la posizione del ttl nella traduzione o -1 se non è fissa.
+   */
+  int getTtlOffset() {
+    return -1;
+  }
+  /**
+   * Ricostruisce un messaggio dal contenuto di un frame.
+   * @param data il buffer che contiene il frame.
+   * @param offset la posizione del contenuto nel buffer.
+   * @param length la lunghezza del contenuto.
+   * @return il messaggio ricostruito.
+   * @throws IOException se il contenuto non rappresenta un messaggio valido.
+   */
+  final Message decode(byte[] data, int offset, int length) throws IOException {
+    long start = System.nanoTime();
+    Message msg = read(data, offset, length);
+    decodeNanos += System.nanoTime() - start;
+    decodedMessages++;
+    decodedBytes += length;
+    return msg;
+  }
+  /**
+   * Traduce un messaggio, senza aggiornare le statistiche.
+   * @param msg il messaggio da tradurre.
+   * @return i bytes che rappresentano il messaggio.
+   * @throws IOException se il messaggio non può essere tradotto.
+   */
+  protected abstract byte[] write(Message msg) throws IOException;
+  /**
+   * Ricostruisce un messaggio, senza aggiornare le statistiche.
+   * @param data il buffer che contiene il frame.
+   * @param offset la posizione del contenuto nel buffer.
+   * @param length la lunghezza del contenuto.
+   * @return il messaggio ricostruito.
+   * @throws IOException se il contenuto non rappresenta un messaggio valido.
+   */
+  protected abstract Message read(byte[] data, int offset, int length) throws IOException;
+  /**
+   * @return il nome con cui il codec viene proposto nella stretta di mano.
+   */
+  abstract String getName();
+  /**
+   * Crea il codec con il nome dato.
+   * @param name il nome ricevuto nella stretta di mano.
+   * @return il codec o <code>null</code> se il nome non corrisponde ad alcun codec.
+   */
+  static MessageCodec forName(String name) {
+    if (BinaryCodec.NAME.equals(name)) {
+      return new BinaryCodec();
+    } else if (SerializedCodec.NAME.equals(name)) {
+      return new SerializedCodec();
+    }
+    return null;
+  }
+  /**
+   * @return il numero di messaggi tradotti in frame.
+   */
+  long getEncodedMessages() {
+    return encodedMessages;
+  }
+  /**
+   * @return il numero di bytes prodotti, escluse le intestazioni dei frame.
+   */
+  long getEncodedBytes() {
+    return encodedBytes;
+  }
+  /**
+   * @return il tempo complessivo in nanosecondi speso a tradurre messaggi.
+   */
+  long getEncodeNanos() {
+    return encodeNanos;
+  }
+  /**
+   * @return il numero di messaggi inviati riusando una traduzione già fatta.
+   */
+  long getSharedEncodings() {
+    return sharedEncodings;
+  }
+  /**
+   * @return il numero di messaggi ricostruiti.
+   */
+  long getDecodedMessages() {
+    return decodedMessages;
+  }
+  /**
+   * @return il numero di bytes letti, escluse le intestazioni dei frame.
+   */
+  long getDecodedBytes() {
+    return decodedBytes;
+  }
+  /**
+   * @return il tempo complessivo in nanosecondi speso a ricostruire messaggi.
+   */
+  long getDecodeNanos() {
+    return decodeNanos;
+  }
+  /**
+   * La lunghezza in bytes dell'intestazione di un frame.
+   */
+  static final int FRAME_HEADER_LENGTH = 4;
+  /**
+   * La massima lunghezza accettata per il contenuto di un frame. Un frame più lungo
+   * indica un peer malfunzionante e fa chiudere la connessione.
+   */
+  static final int MAX_FRAME_LENGTH = 256 * 1024;
+  /**
+   * Il numero di messaggi tradotti.
+   */
+  private volatile long encodedMessages;
+  /**
+   * Il numero di bytes prodotti.
+   */
+  private volatile long encodedBytes;
+  /**
+   * Il tempo speso a tradurre.
+   */
+  private volatile long encodeNanos;
+  /**
+   * Il numero di traduzioni riusate.
+   */
+  private volatile long sharedEncodings;
+  /**
+   * Il numero di messaggi ricostruiti.
+   */
+  private volatile long decodedMessages;
+  /**
+   * Il numero di bytes letti.
+   */
+  private volatile long decodedBytes;
+  /**
+   * Il tempo speso a ricostruire.
+   */
+  private volatile long decodeNanos;
+  /**
+   * La traduzione di un messaggio, con il codec che l'ha prodotta e i valori di ttl
+   * e inoltri al momento della traduzione. Non viene mai modificata.
+   */
+  static final class Encoding {
+    /**
+     * Crea una traduzione.
+     * @param codec la classe del codec.
+     * @param data i bytes prodotti.
+     * @param ttl il ttl del messaggio.
+     * @param hops il numero di inoltri del messaggio.
+     */
+    Encoding(Class<?> codec, byte[] data, byte ttl, byte hops) {
+      this.codec = codec;
+      this.data = data;
+      this.ttl = ttl;
+      this.hops = hops;
+    }
+    /**
+     * La classe del codec che ha prodotto la traduzione.
+     */
+    final Class<?> codec;
+    /**
+     * I bytes prodotti.
+     */
+    final byte[] data;
+    /**
+     * Il ttl al momento della traduzione.
+     */
+    final byte ttl;
+    /**
+     * Il numero di inoltri al momento della traduzione.
+     */
+    final byte hops;
+  }
+}
@@ -17,22 +17,46 @@
 
 package it.unipi.di.cli.comignan.lpr08.servent;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementa la componente attiva (relativamente al servent che
  * la avvia) dell'esplorazione della rete, inviando ping, attendendo pong da parte
  * di altri eventuali servent e catturando, per poi inoltrare, messaggi di ping
  * e pong generati e inoltrati da servents linitrofi (con cui vi sono connessioni attive).
+ * <p>
+ * Con la cache dei pong attiva un ping viene inoltrato solo se la cache non ha pong
+ * recenti con cui rispondere al posto dei servent più lontani: i ping periodici del
+ * servent tengono la cache aggiornata e la rete non viene più inondata ad ogni giro.
+ * Tutti i pacchetti partono dal socket su cui l'esploratore riceve, così che chi li
+ * riceve possa riconoscere il vicino da cui arriva un pong dalla porta di provenienza.
+ * <p>
+ * L'esploratore usa canali udp non bloccanti: ad ogni risveglio del selettore un
+ * ricevitore legge tutti i pacchetti arrivati e li affida, già tradotti, a un gruppo
+ * di thread che li gestiscono, scelto in base al peer da cui arrivano. Se richiesto
+ * più canali ricevono sulla stessa porta con <code>SO_REUSEPORT</code>, ognuno con il
+ * suo ricevitore. Ricezione e invio usano ognuno un proprio buffer
+ * diretto allocato una volta sola, grande quanto il massimo pacchetto udp, e ping e
+ * pong viaggiano nel formato compatto di {@link DatagramCodec} verso i vicini che
+ * hanno concordato il codec binario sulla connessione; agli altri si continua a
+ * mandare il formato serializzato, che viene riconosciuto e letto comunque.
  * @author Michele Comignano
  */
 class NetworkExplorer extends Forwarder {
@@ -40,168 +64,640 @@ class NetworkExplorer extends Forwarder {
    * Crea un nuovo esploratore di rete al servizio di un servent.
    * @param servent il riferimento al servent genitore.
    * @param explorePort la porta udp su cui attendere messaggi di ping e pong.
-   * @throws SocketException se ci sono problemi di rete.
+   * @throws IOException se ci sono problemi di rete.
    */
-  protected NetworkExplorer(Servent servent, int explorePort) throws SocketException {
-    super();
-    receiveSocket = new DatagramSocket(explorePort);
-    receiveSocket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
-    sendSocket = new DatagramSocket();
+  protected NetworkExplorer(Servent servent, int explorePort) throws IOException {
+    super(servent.settings);
+    int wanted = servent.settings.getExploreReceivers();
+    SocketOption<Boolean> reusePort = wanted > 1 ? reusePortOption() : null;
+    if (reusePort == null) {
+      wanted = 1;
+    }
+    channels = new DatagramChannel[wanted];
+    selectors = new Selector[wanted];
+    int opened = 0;
+    try {
+      for (; opened < wanted; opened++) {
+        DatagramChannel channel = DatagramChannel.open();
+        channels[opened] = channel;
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, Util.EXPLORE_RECEIVE_BUFFER_SIZE);
+        if (reusePort != null) {
+          channel.setOption(reusePort, true);
+        }
+        channel.bind(new InetSocketAddress(opened == 0 ? explorePort
+                : channels[0].socket().getLocalPort()));
+        channel.configureBlocking(false);
+        selectors[opened] = Selector.open();
+        channel.register(selectors[opened], SelectionKey.OP_READ);
+      }
+    } catch (IOException e) {
+      for (int i = 0; i <= opened && i < wanted; i++) {
+        if (selectors[i] != null) {
+          selectors[i].close();
+        }
+        if (channels[i] != null) {
+          channels[i].close();
+        }
+      }
+      throw e;
+    }
+    channel = channels[0];
+    this.explorePort = channel.socket().getLocalPort();
+    handlers = new Handler[servent.settings.getExploreHandlers()];
+    for (int i = 0; i < handlers.length; i++) {
+      handlers[i] = new Handler();
+    }
+    sendBuffer = ByteBuffer.allocateDirect(DatagramCodec.MAX_PACKET_SIZE);
+    codec = new SerializedCodec();
+    receivedPackets = new AtomicLong();
+    droppedPackets = new AtomicLong();
+    cachedPongs = new AtomicLong();
     this.servent = servent;
+    pongCache = servent.settings.isPongCache() ? new PongCache(Util.PONG_CACHE_LIFETIME) : null;
+    pingScheduler = new PingScheduler(this, servent);
   }
   /**
-   * Il flusso principale riceve messaggi di ping e pong e li gestisce.
-   * In particolare se si tratta di un messaggio di ping mai visto, mette un nuovo pong
-   * in coda invio, altrimenti lo scarta. Se vede un pong che riferisce un servent
-   * sconosciuto, aggiunge alla cache e crea una nuova connessione; in ogni
-   * caso lo inoltra sulla rotta che il corrispondente ping seguì all'andata.
+   * Cerca l'opzione <code>SO_REUSEPORT</code>, che esiste solo dalla versione 9 della
+   * piattaforma.
+   * @return l'opzione o <code>null</code> se la piattaforma non la conosce.
+   */
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> reusePortOption() {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class
+              .getField("SO_REUSEPORT").get(null);
+      DatagramChannel probe = DatagramChannel.open();
+      try {
+        return probe.supportedOptions().contains(option) ? option : null;
+      } finally {
+        probe.close();
+      }
+    } catch (NoSuchFieldException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+  /**
+   * Il flusso principale avvia i thread che gestiscono i pacchetti e quelli degli
+   * altri canali, poi riceve lui stesso dal primo canale finchè il servent non deve
+   * terminare.
    */
   @Override
   public void run() {
-    PingGenerator pingGenerator;
-    Sender sender;
-    (pingGenerator = new PingGenerator()).start();
-    (sender = new Sender()).start();
-    byte buffer[] = new byte[1024];
-    Message msg;
-    DatagramPacket pack = new DatagramPacket(buffer, buffer.length);
+    Thread sender = servent.newThread(new Sender());
+    Thread[] workers = new Thread[handlers.length + channels.length - 1];
+    for (int i = 0; i < handlers.length; i++) {
+      (workers[i] = servent.newThread(handlers[i])).start();
+    }
+    for (int i = 1; i < channels.length; i++) {
+      (workers[handlers.length + i - 1] = servent.newThread(new Receiver(i))).start();
+    }
+    sender.start();
+    pingScheduler.start();
     servent.logger.appendMessage("Esploratore di rete avviato e in ascolto sulla porta udp " +
-            receiveSocket.getLocalPort());
-    while (!servent.mustHalt) {
+            explorePort);
+    new Receiver(0).run();
+    pingScheduler.stop();
+    Util.waitHelper(sender);
+    for (Thread worker : workers) {
+      Util.waitHelper(worker);
+    }
+    for (int i = 0; i < channels.length; i++) {
       try {
-        receiveSocket.receive(pack);
-        ByteArrayInputStream byteIn = new ByteArrayInputStream(pack.getData());
-        ObjectInputStream objIn = new ObjectInputStream(byteIn);
-        msg = (Message) objIn.readObject();
-      } catch (ClassNotFoundException e) {
-        continue;
-      } catch (SocketTimeoutException e) {
-        continue;
+        selectors[i].close();
+        channels[i].close();
       } catch (IOException e) {
-        servent.logger.appendError("Errore dell'esploratore di rete", e);
-        continue;
       }
-      switch (msg.messageType) {
-        case PingMessage.TYPE_ID:
-          if (haveSeen(msg)) {
-            break;
-          }
-          PingMessage ping = (PingMessage) msg;
-          Connection origin = servent.indexedConnections.get(new ServentDescriptor(pack.getAddress(), ping.connectPort,
-                  ping.explorePort));
-          if (origin == null) {
-            break;
-          }
-          setSeen(ping, origin);
-          PongMessage tmpPong = new PongMessage(ping.messageId, servent.connectPort, receiveSocket.
-                  getLocalPort());
+    }
+  }
+  /**
+   * Affida un messaggio ricevuto al thread che gestisce i pacchetti del peer da cui
+   * arriva, scartandolo se quel thread ne ha già troppi in attesa.
+   * @param msg il messaggio.
+   * @param from l'indirizzo e la porta da cui è arrivato.
+   */
+  private void dispatch(Message msg, InetSocketAddress from) {
+    Handler handler = handlers[(from.hashCode() & Integer.MAX_VALUE) % handlers.length];
+    if (!handler.queue.offer(new Received(msg, from))) {
+      droppedPackets.incrementAndGet();
+    }
+  }
+  /**
+   * Legge un messaggio da un pacchetto ricevuto, nel formato binario o in quello
+   * serializzato.
+   * @param in il buffer con il pacchetto, in lettura.
+   * @param serialized il codec con cui leggere il formato serializzato.
+   * @return il messaggio.
+   * @throws IOException se il pacchetto non è valido o non contiene un messaggio di
+   * esplorazione.
+   */
+  private static Message decode(ByteBuffer in, MessageCodec serialized) throws IOException {
+    if (DatagramCodec.isBinary(in)) {
+      return DatagramCodec.read(in);
+    }
+    byte[] data = new byte[in.remaining()];
+    in.get(data);
+    Message msg = serialized.decode(data, 0, data.length);
+    // Un pacchetto serializzato può contenere qualsiasi messaggio con qualsiasi tipo
+    // dichiarato: si accettano solo quelli il cui tipo corrisponde alla classe.
+    boolean valid;
+    switch (msg.messageType) {
+      case PingMessage.TYPE_ID:
+        valid = msg instanceof PingMessage;
+        break;
+      case PongMessage.TYPE_ID:
+        valid = msg instanceof PongMessage;
+        break;
+      case PongBatchMessage.TYPE_ID:
+        valid = msg instanceof PongBatchMessage && ((PongBatchMessage) msg).peers != null;
+        break;
+      default:
+        valid = false;
+        break;
+    }
+    if (!valid) {
+      throw new IOException("Messaggio di esplorazione non valido");
+    }
+    return msg;
+  }
+  /**
+   * Gestisce un messaggio ricevuto.
+   * In particolare se si tratta di un messaggio di ping mai visto, mette un nuovo pong
+   * in coda invio, altrimenti lo scarta. Se vede un pong che riferisce un servent
+   * sconosciuto, aggiunge alla cache e crea una nuova connessione; in ogni
+   * caso lo inoltra sulla rotta che il corrispondente ping seguì all'andata. Un ping
+   * che accetta risposte multiple riceve un solo {@link PongBatchMessage} al posto del
+   * pong e di quelli presi dalla cache, e i pong multipli ricevuti sono trattati come
+   * tanti pong.
+   * Viene chiamato da più gestori insieme, ma mai per due messaggi dello stesso peer.
+   * @param msg il messaggio.
+   * @param from l'indirizzo e la porta da cui è arrivato.
+   */
+  private void handle(Message msg, InetSocketAddress from) {
+    switch (msg.messageType) {
+      case PingMessage.TYPE_ID:
+        PingMessage ping = (PingMessage) msg;
+        Connection origin = servent.connections.get(new ServentDescriptor(from.getAddress(), ping.connectPort,
+                ping.explorePort));
+        if (origin == null || !markSeen(ping, origin)) {
+          break;
+        }
+        List<PongMessage> cached = pongCache == null ? new ArrayList<PongMessage>()
+                : pongCache.select(ping, origin, ping.batches ? Util.PONG_BATCH_SIZE - 1
+                : Util.PONG_CACHE_REPLIES);
+        if (ping.batches) {
+          forward(batchFor(ping, origin, cached), origin);
+        } else {
+          PongMessage tmpPong = new PongMessage(ping.idHigh, ping.idLow, servent.connectPort,
+                  explorePort);
           forward(tmpPong, origin);
-          try {
-            ping.prepareForward();
-            ping.connectPort = servent.connectPort;
-            ping.explorePort = receiveSocket.getLocalPort();
-            synchronized (servent.connections) {
-              for (int i = 0; i < servent.connections.size(); i++) {
-                Connection conn = servent.connections.get(i);
-                if (conn != origin) {
-                  forward(ping, conn);
-                }
-              }
-            }
-          } catch (DeadMessageException e) {
+          for (int i = 0; i < cached.size(); i++) {
+            forward(cached.get(i), origin);
           }
+        }
+        if (!cached.isEmpty()) {
+          cachedPongs.addAndGet(cached.size());
           break;
-        case PongMessage.TYPE_ID:
-          PongMessage pong = (PongMessage) msg;
-          if (pong.address == null) {
-            pong.address = pack.getAddress();
-          }
-          ServentDescriptor peer = new ServentDescriptor(pong.address, pong.connectPort,
-                  pong.explorePort);
-          synchronized (servent.cache) {
-            int i = servent.cache.indexOf(peer);
-            if (i < 0) {
-              servent.logger.appendMessage("Esplorando ho scoperto \"" + peer + "\", aggiungo");
-              servent.cache.add(peer);
-            } else {
-              peer = servent.cache.get(i);
-            }
-            synchronized (servent.connections) {
-              if (!peer.isUsed() && servent.connections.size() < servent.connectionsLimit) {
-                servent.connect(peer);
-              }
+        }
+        try {
+          ping.prepareForward();
+          ping.connectPort = servent.connectPort;
+          ping.explorePort = explorePort;
+          for (Connection conn : servent.connections.snapshot()) {
+            if (conn != origin) {
+              forward(ping, conn);
             }
           }
-          Connection dest = getDestination(msg);
-          if (dest != null && servent.fakeConnection != dest) {
-            try {
-              msg.prepareForward();
-              forward(msg, dest);
-            } catch (DeadMessageException e) {
-            }
+        } catch (DeadMessageException e) {
+        }
+        break;
+      case PongMessage.TYPE_ID:
+        PongMessage pong = (PongMessage) msg;
+        if (pong.address == null) {
+          pong.address = from.getAddress();
+        }
+        ServentDescriptor peer = new ServentDescriptor(pong.address, pong.connectPort,
+                pong.explorePort);
+        if (pongCache != null && !servent.equals(peer)) {
+          Connection neighbour = neighbourAt(from.getAddress(), from.getPort());
+          if (neighbour != null) {
+            pongCache.add(neighbour, pong);
           }
-          break;
-        default:
-          break;
+        }
+        learn(peer);
+        relay(msg);
+        break;
+      case PongBatchMessage.TYPE_ID:
+        PongBatchMessage batch = (PongBatchMessage) msg;
+        for (int i = 0; i < batch.peers.length; i++) {
+          PongBatchMessage.Peer entry = batch.peers[i];
+          if (entry.address == null) {
+            entry.address = from.getAddress();
+          }
+          learn(new ServentDescriptor(entry.address, entry.connectPort, entry.explorePort));
+        }
+        // Il primo peer è chi ha risposto: per la cache dei pong vale quanto un pong.
+        if (pongCache != null && batch.peers.length > 0) {
+          Connection neighbour = neighbourAt(from.getAddress(), from.getPort());
+          if (neighbour != null) {
+            PongBatchMessage.Peer first = batch.peers[0];
+            PongMessage responder = new PongMessage(batch.idHigh, batch.idLow,
+                    first.connectPort, first.explorePort);
+            responder.address = first.address;
+            responder.setTtlAndHops(batch.getTtl(), batch.getHops());
+            pongCache.add(neighbour, responder);
+          }
+        }
+        relay(msg);
+        break;
+      default:
+        break;
+    }
+  }
+  /**
+   * Aggiunge un peer segnalato da un pong alla cache dei servent, o ne aggiorna
+   * l'istante in cui è stato visto, e vi si collega se servono altre connessioni.
+   * @param peer il peer.
+   */
+  private void learn(ServentDescriptor peer) {
+    // Il lucchetto della cache è conteso anche dagli event loop del trasporto non
+    // bloccante durante la stretta di mano: lo si tiene solo per aggiornare la cache.
+    boolean added;
+    synchronized (servent.cache) {
+      int i = servent.cache.indexOf(peer);
+      added = i < 0;
+      if (added) {
+        servent.cache.add(peer);
+      } else {
+        peer = servent.cache.get(i);
+        peer.touch();
       }
     }
-    Util.waitHelper(pingGenerator);
-    Util.waitHelper(sender);
-    sendSocket.close();
-    receiveSocket.close();
+    if (added) {
+      servent.logger.appendMessage("Esplorando ho scoperto \"" + peer + "\", aggiungo");
+    }
+    if (!peer.isUsed() && servent.needsConnections()) {
+      servent.connect(peer);
+    }
+  }
+  /**
+   * Inoltra una risposta ad un ping sulla rotta che il ping seguì all'andata.
+   * @param msg la risposta.
+   */
+  private void relay(Message msg) {
+    Connection dest = getDestination(msg);
+    if (dest != null && servent.fakeConnection != dest) {
+      try {
+        msg.prepareForward();
+        forward(msg, dest);
+      } catch (DeadMessageException e) {
+      }
+    }
+  }
+  /**
+   * Prepara la risposta multipla ad un ping: il servent stesso, i pong presi dalla
+   * cache e, fino a riempire il messaggio, i servent della cache visti di recente,
+   * prima quelli a cui si è collegati e poi gli altri.
+   * @param ping il ping a cui si risponde.
+   * @param origin la connessione da cui è arrivato il ping.
+   * @param cached i pong presi dalla cache dei pong.
+   * @return la risposta.
+   */
+  private PongBatchMessage batchFor(PingMessage ping, Connection origin, List<PongMessage> cached) {
+    List<PongBatchMessage.Peer> peers = new ArrayList<PongBatchMessage.Peer>();
+    Set<ServentDescriptor> added = new HashSet<ServentDescriptor>();
+    peers.add(new PongBatchMessage.Peer(null, servent.connectPort, explorePort,
+            (int) (servent.getUptime() / 1000), sharedFiles()));
+    added.add(origin.peer);
+    for (PongMessage pong : cached) {
+      if (added.add(new ServentDescriptor(pong.address, pong.connectPort, pong.explorePort))) {
+        peers.add(new PongBatchMessage.Peer(pong.address, pong.connectPort, pong.explorePort,
+                PongBatchMessage.UNKNOWN, PongBatchMessage.UNKNOWN));
+      }
+    }
+    long oldest = System.currentTimeMillis() - Util.HOST_CACHE_FRESHNESS;
+    synchronized (servent.cache) {
+      for (int pass = 0; pass < 2; pass++) {
+        for (ServentDescriptor descr : servent.cache) {
+          if (peers.size() >= Util.PONG_BATCH_SIZE) {
+            break;
+          }
+          if (descr.isUsed() == (pass == 0) && descr.getLastSeen().getTime() >= oldest &&
+                  added.add(descr)) {
+            peers.add(new PongBatchMessage.Peer(descr.getInetAddress(), descr.getConnectPort(),
+                    descr.getExplorePort(), PongBatchMessage.UNKNOWN, PongBatchMessage.UNKNOWN));
+          }
+        }
+      }
+    }
+    return new PongBatchMessage(ping.idHigh, ping.idLow,
+            peers.toArray(new PongBatchMessage.Peer[peers.size()]));
+  }
+  /**
+   * Conta i files condivisi dal servent, rileggendo la cartella condivisa al più una
+   * volta ogni {@link Util#PING_MIN_INTERVAL} millisecondi.
+   * @return il numero di files condivisi.
+   */
+  private int sharedFiles() {
+    long now = System.currentTimeMillis();
+    if (now - sharedFilesCounted >= Util.PING_MIN_INTERVAL) {
+      sharedFilesCount = servent.fileServer.getSharedFilesCount();
+      sharedFilesCounted = now;
+    }
+    return sharedFilesCount;
+  }
+  /**
+   * Cerca il vicino che ha mandato un pacchetto dal suo indirizzo e dalla porta udp
+   * da cui è partito.
+   * @param address l'indirizzo di provenienza.
+   * @param port la porta di provenienza.
+   * @return la connessione con il vicino o <code>null</code> se il pacchetto non
+   * arriva da un vicino, o da uno che non invia dalla sua porta di esplorazione.
+   */
+  private Connection neighbourAt(InetAddress address, int port) {
+    for (Connection conn : servent.connections.snapshot()) {
+      if (conn.peer.getExplorePort() == port && conn.peer.getInetAddress().equals(address)) {
+        return conn;
+      }
+    }
+    return null;
   }
 
   /**
-   * Si occupa di fabbricare nuovi messaggi di ping da inviare a tutti
-   * i servents con cui sono stabilite connessioni.
+   * Riceve i pacchetti da uno dei canali dell'esploratore. Si limita a leggerli e
+   * tradurli in messaggi, che affida ai thread di gestione: così il canale viene
+   * svuotato in fretta anche quando la gestione dei pong deve attendere i lock
+   * della cache e delle connessioni del servent.
    */
-  private class PingGenerator extends Thread {
-    @Override
+  private class Receiver implements Runnable {
+    /**
+     * Crea un ricevitore per uno dei canali.
+     * @param index l'indice del canale.
+     */
+    Receiver(int index) {
+      channel = channels[index];
+      selector = selectors[index];
+      buffer = ByteBuffer.allocateDirect(DatagramCodec.MAX_PACKET_SIZE);
+      codec = new SerializedCodec();
+    }
     public void run() {
-      PingMessage ping;
-      int i;
       while (!servent.mustHalt) {
-        synchronized (servent.connections) {
-          for (i = 0; i < servent.connections.size() && !servent.mustHalt; i++) {
-            ping = new PingMessage(servent.connectPort, receiveSocket.getLocalPort());
-            forward(ping, servent.connections.get(i));
-            setSeen(ping, servent.fakeConnection);
+        try {
+          selector.select(Util.SOCKET_SO_TIMEOUT);
+          selector.selectedKeys().clear();
+        } catch (IOException e) {
+          servent.logger.appendError("Errore dell'esploratore di rete", e);
+          continue;
+        }
+        receiveAvailable();
+      }
+    }
+    /**
+     * Riceve e smista tutti i pacchetti già arrivati sul canale.
+     */
+    private void receiveAvailable() {
+      while (!servent.mustHalt) {
+        buffer.clear();
+        SocketAddress from;
+        Message msg;
+        try {
+          from = channel.receive(buffer);
+          if (from == null) {
+            return;
           }
+          receivedPackets.incrementAndGet();
+          buffer.flip();
+          msg = decode(buffer, codec);
+        } catch (IOException e) {
+          servent.logger.appendError("Errore dell'esploratore di rete", e);
+          continue;
+        } catch (RuntimeException e) {
+          servent.logger.appendError("Pacchetto non valido", e);
+          continue;
         }
+        dispatch(msg, (InetSocketAddress) from);
+      }
+    }
+    /**
+     * Il canale da cui si riceve.
+     */
+    private final DatagramChannel channel;
+    /**
+     * Il selettore che sveglia il ricevitore quando arrivano pacchetti.
+     */
+    private final Selector selector;
+    /**
+     * Il buffer in cui si riceve ogni pacchetto.
+     */
+    private final ByteBuffer buffer;
+    /**
+     * Il codec con cui si leggono i pacchetti nel formato serializzato.
+     */
+    private final MessageCodec codec;
+  }
+  /**
+   * Gestisce, uno alla volta e nell'ordine di arrivo, i messaggi dei peer che gli
+   * sono stati assegnati.
+   */
+  private class Handler implements Runnable {
+    Handler() {
+      queue = new ArrayBlockingQueue<Received>(Util.EXPLORE_HANDLER_QUEUE_CAPACITY);
+    }
+    public void run() {
+      while (!servent.mustHalt) {
+        Received received;
         try {
-          sleep(Util.PING_SENDING_INTERVAL);
+          received = queue.poll(Util.SOCKET_SO_TIMEOUT, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
           continue;
         }
+        if (received != null) {
+          try {
+            handle(received.message, received.from);
+          } catch (RuntimeException e) {
+            // Un messaggio malformato non deve fermare il gestore: gli altri peer
+            // assegnati a lui resterebbero senza risposta.
+            servent.logger.appendError("Messaggio non valido da " + received.from, e);
+          }
+        }
       }
     }
+    /**
+     * I messaggi in attesa di essere gestiti.
+     */
+    private final ArrayBlockingQueue<Received> queue;
   }
+  /**
+   * Un messaggio ricevuto con l'indirizzo da cui è arrivato.
+   */
+  private static class Received {
+    Received(Message message, InetSocketAddress from) {
+      this.message = message;
+      this.from = from;
+    }
+    /**
+     * Il messaggio.
+     */
+    final Message message;
+    /**
+     * L'indirizzo e la porta da cui è arrivato.
+     */
+    final InetSocketAddress from;
+  }
+  /**
+   * Invia un messaggio al peer della connessione data, nel formato binario se il peer
+   * ha concordato il codec binario e in quello serializzato altrimenti. Un ping
+   * inoltrato a tutti i vicini viene tradotto una volta sola e lo stesso buffer viene
+   * riusato per tutti, cambiandone solo la destinazione.
+   * @param msg il messaggio da inviare.
+   * @param target la connessione verso il peer destinatario.
+   */
   @Override
   protected void send(Message msg, Connection target) {
-    DatagramPacket pack;
-    byte[] data;
-    ObjectOutputStream objOut;
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
     try {
-      byteOut.reset();
-      objOut = new ObjectOutputStream(byteOut);
-      objOut.writeObject(msg);
-      objOut.flush();
-      data = byteOut.toByteArray();
-      pack = new DatagramPacket(data, data.length, target.peer.getInetAddress(),
-              target.peer.getExplorePort());
-      sendSocket.send(pack);
+      ByteBuffer packet;
+      if (target.codec instanceof BinaryCodec) {
+        if (msg != lastSent || msg.getTtl() != lastTtl || msg.getHops() != lastHops) {
+          sendBuffer.clear();
+          DatagramCodec.write(msg, sendBuffer);
+          sendBuffer.flip();
+          lastSent = msg;
+          lastTtl = msg.getTtl();
+          lastHops = msg.getHops();
+        }
+        packet = sendBuffer;
+      } else {
+        byte[] data = codec.encode(msg);
+        if (lastSerialized == null || lastSerialized.array() != data) {
+          lastSerialized = ByteBuffer.wrap(data);
+        }
+        packet = lastSerialized;
+      }
+      packet.rewind();
+      if (channel.send(packet, target.getExploreAddress()) > 0) {
+        sentPackets++;
+      }
     } catch (IOException e) {
     }
   }
   /**
-   * Il socket su cui ricevere i messaggi.
+   * @return la porta udp su cui l'esploratore riceve.
+   */
+  int getExplorePort() {
+    return explorePort;
+  }
+  /**
+   * @return il programmatore dei ping dell'esploratore.
+   */
+  PingScheduler getPingScheduler() {
+    return pingScheduler;
+  }
+  /**
+   * @return il numero di pacchetti udp inviati.
+   */
+  long getSentPackets() {
+    return sentPackets;
+  }
+  /**
+   * @return il numero di pacchetti udp ricevuti.
+   */
+  long getReceivedPackets() {
+    return receivedPackets.get();
+  }
+  /**
+   * @return il numero di pacchetti ricevuti e scartati perchè chi doveva gestirli
+   * ne aveva già troppi in attesa.
+   */
+  long getDroppedPackets() {
+    return droppedPackets.get();
+  }
+  /**
+   * @return il numero di pong presi dalla cache in risposta ai ping ricevuti.
+   */
+  long getCachedPongs() {
+    return cachedPongs.get();
+  }
+  /**
+   * I canali su cui si ricevono i messaggi, tutti legati alla stessa porta.
+   */
+  private final DatagramChannel[] channels;
+  /**
+   * I selettori dei canali, uno per canale.
+   */
+  private final Selector[] selectors;
+  /**
+   * Il primo canale, da cui si inviano anche i messaggi.
+   */
+  private final DatagramChannel channel;
+  /**
+   * I gestori dei messaggi ricevuti; i messaggi di un peer vanno sempre allo stesso.
+   */
+  private final Handler[] handlers;
+  /**
+   * La porta udp su cui l'esploratore riceve.
+   */
+  private final int explorePort;
+  /**
+   * Il buffer da cui si inviano i pacchetti binari. E' usato solo dal Sender.
+   */
+  private final ByteBuffer sendBuffer;
+  /**
+   * L'ultimo messaggio tradotto nel buffer di invio, con il ttl e gli inoltri che
+   * aveva. E' usato solo dal Sender.
+   */
+  private Message lastSent;
+  /**
+   * Il ttl dell'ultimo messaggio tradotto nel buffer di invio.
+   */
+  private byte lastTtl;
+  /**
+   * Il numero di inoltri dell'ultimo messaggio tradotto nel buffer di invio.
+   */
+  private byte lastHops;
+  /**
+   * Il programmatore dei ping periodici ai vicini.
+   */
+  private final PingScheduler pingScheduler;
+  /**
+   * La cache dei pong recenti, o <code>null</code> se disattivata.
+   */
+  private final PongCache pongCache;
+  /**
+   * Il numero di pacchetti inviati. E' aggiornato solo dal Sender.
+   */
+  private volatile long sentPackets;
+  /**
+   * Il numero di pacchetti ricevuti su tutti i canali.
+   */
+  private final AtomicLong receivedPackets;
+  /**
+   * Il numero di pacchetti scartati perchè il loro gestore ne aveva troppi in attesa.
+   */
+  private final AtomicLong droppedPackets;
+  /**
+   * Il numero di pong presi dalla cache.
+   */
+  private final AtomicLong cachedPongs;
+  /**
+   * Il codec con cui il Sender scrive ping e pong nel formato serializzato.
+   */
+  private final MessageCodec codec;
+  /**
+   * L'ultimo pacchetto serializzato inviato, riusato finchè si invia lo stesso
+   * messaggio. E' usato solo dal Sender.
+   */
+  private ByteBuffer lastSerialized;
+  /**
+   * Il numero di files condivisi contati l'ultima volta.
    */
-  private DatagramSocket receiveSocket;
+  private volatile int sharedFilesCount;
   /**
-   * Il socket tramite cui si inviano i messaggi.
+   * L'istante in cui sono stati contati i files condivisi.
    */
-  private DatagramSocket sendSocket;
+  private volatile long sharedFilesCounted;
   /**
    * Il riferimento al Servent per cui lavora il NetworkExplorer.
    */
@@ -0,0 +1,586 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Una connessione gestita da uno degli event loop di {@link NioOverlay} anzichè da
+ * thread propri. Stretta di mano, lettura e scrittura dei frame avvengono tutte sul
+ * thread dell'event loop a cui la connessione è assegnata, quando il canale è
+ * pronto; chi inoltra un messaggio si limita ad accodarlo e a segnalare all'event
+ * loop che c'è qualcosa da scrivere.
+ * @author Michele Comignano
+ */
+class NioConnection extends Connection {
+  /**
+   * Prepara una connessione in uscita verso il peer dato.
+   * @param servent il servent a cui la connessione appartiene.
+   * @param peer il peer verso cui tentare la richiesta di connessione.
+   * @param loop l'event loop che gestirà la connessione.
+   */
+  NioConnection(Servent servent, ServentDescriptor peer, NioOverlay.EventLoop loop) {
+    super(servent, peer);
+    this.loop = loop;
+    state = CONNECTING;
+    init();
+  }
+  /**
+   * Prepara una connessione in ingresso su un canale già accettato.
+   * @param servent il servent a cui la connessione appartiene.
+   * @param channel il canale accettato.
+   * @param loop l'event loop che gestirà la connessione.
+   */
+  NioConnection(Servent servent, SocketChannel channel, NioOverlay.EventLoop loop) {
+    super(servent, (Socket) null);
+    this.channel = channel;
+    this.loop = loop;
+    state = AWAITING_REQUEST;
+    init();
+  }
+  /**
+   * Inizializza le risorse comuni ai due costruttori.
+   */
+  private void init() {
+    inBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    outBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    plainOut = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    batch = new ArrayList<MessageWithTarget>();
+    flushRequested = new AtomicBoolean(false);
+    maxBatchSize = servent.settings.getMaxBatchSize();
+  }
+  /**
+   * Non fa nulla. Le connessioni di questo tipo non hanno un thread proprio: sono
+   * Thread solo perchè lo è ogni {@link Forwarder}, ma nessuno le avvia e tutto il loro
+   * lavoro avviene nell'event loop, a partire da {@link #register(Selector)}.
+   */
+  @Override
+  public void run() {
+  }
+  /**
+   * Registra la connessione presso il selettore dell'event loop, avviando la
+   * connessione al peer se si tratta di una connessione in uscita. Va chiamato dal
+   * thread dell'event loop.
+   * @param selector il selettore dell'event loop.
+   */
+  void register(Selector selector) {
+    handshakeStart = System.currentTimeMillis();
+    try {
+      if (state == CONNECTING) {
+        if (peer.isUsed()) {
+          close();
+          return;
+        }
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        if (channel.connect(new InetSocketAddress(peer.getInetAddress(),
+                peer.getConnectPort()))) {
+          connected();
+        }
+      } else {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+      }
+    } catch (IOException e) {
+      close();
+    } catch (RuntimeException e) {
+      abort(e);
+    }
+  }
+  /**
+   * Chiude la connessione se la stretta di mano dura da più di
+   * {@link Util#SOCKET_SO_TIMEOUT} millisecondi, come fa il timeout del socket per
+   * le connessioni bloccanti: un peer che non manda la richiesta o non risponde non
+   * può tenere occupati per sempre il canale e i suoi buffer. Va chiamato dal thread
+   * dell'event loop.
+   * @param now l'istante corrente.
+   * @return <code>true</code> se la stretta di mano è ancora in corso.
+   */
+  boolean checkHandshake(long now) {
+    if (state == OPEN || state == CLOSED) {
+      return false;
+    }
+    if (now - handshakeStart < Util.SOCKET_SO_TIMEOUT) {
+      return true;
+    }
+    servent.logger.appendMessage("Stretta di mano scaduta con " +
+            (peer != null ? peer.toString() : String.valueOf(channel.socket().getInetAddress())));
+    close();
+    return false;
+  }
+  /**
+   * Gestisce gli eventi segnalati dal selettore per il canale. Va chiamato dal thread
+   * dell'event loop. Qualsiasi errore chiude la connessione senza propagarsi all'event loop.
+   */
+  void ready() {
+    try {
+      if (key.isConnectable()) {
+        if (channel.finishConnect()) {
+          connected();
+        }
+        return;
+      }
+      if (key.isReadable()) {
+        readAvailable();
+      }
+      if (key.isValid() && key.isWritable()) {
+        writePending();
+      }
+    } catch (IOException e) {
+      if (state == OPEN) {
+        servent.cache.remove(peer);
+      }
+      close();
+    } catch (RuntimeException e) {
+      abort(e);
+    }
+  }
+  /**
+   * Chiude la connessione dopo un errore inatteso. Un messaggio contraffatto o un
+   * errore nella sua gestione non deve fermare l'event loop e con lui tutte le altre
+   * connessioni: si chiude solo questa.
+   * @param e l'errore.
+   */
+  private void abort(RuntimeException e) {
+    servent.logger.appendError("Errore nella connessione con " + peer, e);
+    close();
+  }
+  /**
+   * Completa l'apertura del canale in uscita inviando la richiesta di connessione.
+   * @throws IOException in caso di problemi di comunicazione.
+   */
+  private void connected() throws IOException {
+    state = AWAITING_RESPONSE;
+    key.interestOps(SelectionKey.OP_READ);
+    appendUTF(makeRequestLine());
+    writePending();
+  }
+  /**
+   * Legge quanto disponibile sul canale e lo interpreta a seconda dello stato.
+   * @throws IOException in caso di errori o di dati non validi.
+   */
+  private void readAvailable() throws IOException {
+    if (channel.read(deflatedIn != null ? deflatedIn : inBuffer) < 0) {
+      throw new EOFException();
+    }
+    // Con la compressione si decomprime un pezzo alla volta nel buffer di lettura e
+    // si ricomincia finchè la decompressione produce qualcosa.
+    boolean more = true;
+    while (more && state != CLOSED) {
+      more = deflatedIn != null && inflateAvailable();
+      inBuffer.flip();
+      try {
+        while (state != CLOSED && inBuffer.hasRemaining()) {
+          if (state == OPEN) {
+            if (!readFrame()) {
+              break;
+            }
+          } else {
+            String line = readUTF();
+            if (line == null) {
+              break;
+            }
+            handshake(line);
+            if (compression != null && deflatedIn == null) {
+              // Quello che segue la stretta di mano è già compresso.
+              deflatedIn = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+              deflatedIn.put(inBuffer);
+              more = true;
+            }
+          }
+        }
+      } finally {
+        if (state != CLOSED) {
+          inBuffer.compact();
+        }
+      }
+    }
+  }
+  /**
+   * Decomprime nello spazio libero del buffer di lettura, ora in scrittura, quanto
+   * possibile dei bytes compressi ricevuti.
+   * @return <code>true</code> se sono stati prodotti dei bytes.
+   * @throws IOException se i bytes ricevuti non sono un flusso compresso valido.
+   */
+  private boolean inflateAvailable() throws IOException {
+    deflatedIn.flip();
+    int produced = 0;
+    // Anche senza bytes nuovi il decompressore può avere ancora qualcosa da
+    // restituire, se l'ultima volta lo spazio non bastava.
+    if (inBuffer.hasRemaining()) {
+      if (deflatedIn.hasRemaining()) {
+        compression.setInput(deflatedIn.array(), deflatedIn.arrayOffset() +
+                deflatedIn.position(), deflatedIn.remaining());
+      }
+      produced = compression.inflate(inBuffer.array(), inBuffer.arrayOffset() +
+              inBuffer.position(), inBuffer.remaining());
+      inBuffer.position(inBuffer.position() + produced);
+      deflatedIn.position(deflatedIn.limit() - compression.getRemainingInput());
+    }
+    deflatedIn.compact();
+    return produced > 0;
+  }
+  /**
+   * Gestisce una riga della stretta di mano a seconda dello stato della connessione.
+   * @param line la riga ricevuta.
+   * @throws IOException se la stretta di mano fallisce.
+   */
+  private void handshake(String line) throws IOException {
+    if (state == AWAITING_REQUEST) {
+      String response = acceptRequest(line, channel.socket().getInetAddress());
+      appendUTF(response);
+      if (mustClose) {
+        state = CLOSING;
+      } else {
+        startCompression();
+        state = OPEN;
+        if (!opened()) {
+          close();
+          return;
+        }
+      }
+      writePending();
+    } else if (state == AWAITING_RESPONSE) {
+      acceptResponse(line);
+      startCompression();
+      state = OPEN;
+      if (!opened()) {
+        close();
+        return;
+      }
+      writePending();
+    } else {
+      throw new IOException();
+    }
+  }
+  /**
+   * Legge una stringa nel formato di <code>DataOutput.writeUTF</code>.
+   * @return la stringa letta o <code>null</code> se non è ancora arrivata per intero.
+   * @throws IOException se la stringa non è valida.
+   */
+  private String readUTF() throws IOException {
+    if (inBuffer.remaining() < 2) {
+      return null;
+    }
+    int length = inBuffer.getShort(inBuffer.position()) & 0xffff;
+    if (inBuffer.remaining() < 2 + length) {
+      ensureInCapacity(2 + length);
+      return null;
+    }
+    String line = new DataInputStream(new ByteArrayInputStream(inBuffer.array(),
+            inBuffer.arrayOffset() + inBuffer.position(), 2 + length)).readUTF();
+    inBuffer.position(inBuffer.position() + 2 + length);
+    return line;
+  }
+  /**
+   * Legge un frame e gestisce il messaggio che contiene.
+   * @return <code>false</code> se il frame non è ancora arrivato per intero.
+   * @throws IOException se il frame non è valido.
+   */
+  private boolean readFrame() throws IOException {
+    if (inBuffer.remaining() < MessageCodec.FRAME_HEADER_LENGTH) {
+      return false;
+    }
+    int length = inBuffer.getInt(inBuffer.position());
+    if (length < 0 || length > MessageCodec.MAX_FRAME_LENGTH) {
+      throw new IOException("Frame di lunghezza non valida: " + length);
+    }
+    if (inBuffer.remaining() < MessageCodec.FRAME_HEADER_LENGTH + length) {
+      ensureInCapacity(MessageCodec.FRAME_HEADER_LENGTH + length);
+      return false;
+    }
+    int start = inBuffer.position() + MessageCodec.FRAME_HEADER_LENGTH;
+    inBuffer.position(start + length);
+    receive(inBuffer.array(), inBuffer.arrayOffset() + start, length);
+    return true;
+  }
+  /**
+   * Fa in modo che il buffer di lettura, ora in lettura, possa contenere un intero
+   * frame della dimensione data.
+   * @param needed il numero di bytes che il buffer deve poter contenere.
+   */
+  private void ensureInCapacity(int needed) {
+    if (inBuffer.capacity() < needed) {
+      ByteBuffer larger = ByteBuffer.allocate(needed);
+      larger.put(inBuffer);
+      larger.flip();
+      inBuffer = larger;
+    }
+  }
+  /**
+   * Accoda un messaggio e chiede all'event loop di scriverlo non appena possibile.
+   * @param msg il messaggio da inviare.
+   * @param dest la connessione di destinazione, che coincide con questa.
+   * @return <code>true</code> se il messaggio è stato accodato.
+   */
+  @Override
+  boolean forward(Message msg, Connection dest) {
+    boolean queued = super.forward(msg, dest);
+    if (queued && flushRequested.compareAndSet(false, true)) {
+      loop.requestFlush(this);
+    }
+    return queued;
+  }
+  /**
+   * Scrive i messaggi in coda. Va chiamato dal thread dell'event loop in risposta ad
+   * una richiesta di {@link #forward(Message, Connection)}.
+   */
+  void flushRequested() {
+    flushRequested.set(false);
+    if (mustClose) {
+      close();
+      return;
+    }
+    try {
+      writePending();
+    } catch (IOException e) {
+      close();
+    } catch (RuntimeException e) {
+      abort(e);
+    }
+  }
+  /**
+   * Chiede all'event loop di chiudere la connessione.
+   */
+  @Override
+  void disconnect() {
+    mustClose = true;
+    loop.requestFlush(this);
+  }
+  /**
+   * Scrive sul canale quanto già nel buffer di scrittura e, se questo si svuota e la
+   * connessione è aperta, un nuovo gruppo di messaggi prelevati dalla coda. Se il
+   * canale non accetta tutto si resta in attesa che sia di nuovo scrivibile.
+   * @throws IOException in caso di problemi di comunicazione.
+   */
+  private void writePending() throws IOException {
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    if (outBuffer.position() == 0 && state == OPEN) {
+      fillBatch();
+    }
+    if (outBuffer.position() > 0) {
+      outBuffer.flip();
+      channel.write(outBuffer);
+      outBuffer.compact();
+    }
+    boolean more = outBuffer.position() > 0 || (state == OPEN && queueSize() > 0);
+    if (state == CLOSING && outBuffer.position() == 0) {
+      close();
+    } else if (more) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    } else {
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+  }
+  /**
+   * Preleva dalla coda un gruppo di messaggi e li traduce in frame nel buffer di
+   * scrittura.
+   */
+  private void fillBatch() {
+    drainQueue(batch, maxBatchSize);
+    int start = outBuffer.position();
+    // Con la compressione i frame passano da un buffer in chiaro e il gruppo intero
+    // viene compresso con una sync flush.
+    ByteBuffer frames = compression != null ? plainOut : outBuffer;
+    int messages = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      byte[] data;
+      try {
+        data = codec.encode(batch.get(i).message);
+      } catch (IOException e) {
+        continue;
+      }
+      frames = ensureCapacity(frames, MessageCodec.FRAME_HEADER_LENGTH + data.length);
+      codec.putFrame(batch.get(i).message, data, frames);
+      messages++;
+    }
+    batch.clear();
+    if (compression == null) {
+      outBuffer = frames;
+    } else {
+      plainOut = frames;
+      if (messages > 0) {
+        int count = compression.deflate(plainOut.array(), plainOut.arrayOffset(),
+                plainOut.position(), true);
+        ensureOutCapacity(count);
+        outBuffer.put(compression.getDeflated(), 0, count);
+      }
+      plainOut.clear();
+    }
+    if (messages > 0) {
+      recordFlush(messages, outBuffer.position() - start);
+    }
+  }
+  /**
+   * Fa in modo che il buffer di scrittura, ora in scrittura, possa accogliere altri
+   * bytes.
+   * @param needed il numero di bytes da aggiungere.
+   */
+  private void ensureOutCapacity(int needed) {
+    outBuffer = ensureCapacity(outBuffer, needed);
+  }
+  /**
+   * Fa in modo che un buffer in scrittura possa accogliere altri bytes.
+   * @param buffer il buffer.
+   * @param needed il numero di bytes da aggiungere.
+   * @return il buffer stesso o uno più grande con lo stesso contenuto.
+   */
+  private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+    if (buffer.remaining() >= needed) {
+      return buffer;
+    }
+    ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+            buffer.position() + needed));
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+  /**
+   * Aggiunge al buffer di scrittura una stringa nel formato di
+   * <code>DataOutput.writeUTF</code>.
+   * @param line la stringa da scrivere.
+   * @throws IOException se la stringa non può essere codificata.
+   */
+  private void appendUTF(String line) throws IOException {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    new DataOutputStream(byteOut).writeUTF(line);
+    byte[] data = byteOut.toByteArray();
+    ensureOutCapacity(data.length);
+    outBuffer.put(data);
+  }
+  /**
+   * Chiude il canale e, se la connessione era aperta, la toglie da quelle attive.
+   * Va chiamato dal thread dell'event loop.
+   */
+  void close() {
+    if (state == CLOSED) {
+      return;
+    }
+    boolean wasOpen = state == OPEN;
+    state = CLOSED;
+    mustClose = true;
+    if (key != null) {
+      key.cancel();
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+    }
+    if (wasOpen) {
+      closed();
+    }
+  }
+  /**
+   * La connessione in uscita attende di essere stabilita.
+   */
+  private static final int CONNECTING = 0;
+  /**
+   * Si attende la risposta alla richiesta di connessione inviata.
+   */
+  private static final int AWAITING_RESPONSE = 1;
+  /**
+   * Si attende la richiesta di connessione del peer.
+   */
+  private static final int AWAITING_REQUEST = 2;
+  /**
+   * La connessione è aperta e scambia messaggi.
+   */
+  private static final int OPEN = 3;
+  /**
+   * La connessione è stata rifiutata e si chiude appena inviata la risposta.
+   */
+  private static final int CLOSING = 4;
+  /**
+   * La connessione è chiusa.
+   */
+  private static final int CLOSED = 5;
+  /**
+   * La dimensione iniziale dei buffer di lettura e scrittura, che crescono se serve.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  /**
+   * Lo stato della connessione.
+   */
+  private int state;
+  /**
+   * L'istante in cui la connessione è stata presa in carico dall'event loop, da cui
+   * si misura la durata della stretta di mano.
+   */
+  private long handshakeStart;
+  /**
+   * Il canale della connessione.
+   */
+  private SocketChannel channel;
+  /**
+   * La chiave di registrazione del canale presso il selettore.
+   */
+  private SelectionKey key;
+  /**
+   * L'event loop a cui la connessione è assegnata.
+   */
+  private final NioOverlay.EventLoop loop;
+  /**
+   * I bytes letti e non ancora interpretati.
+   */
+  private ByteBuffer inBuffer;
+  /**
+   * I bytes in attesa di essere scritti sul canale.
+   */
+  private ByteBuffer outBuffer;
+  /**
+   * I frame di un gruppo in attesa di essere compressi, usato solo con la
+   * compressione.
+   */
+  private ByteBuffer plainOut;
+  /**
+   * I bytes compressi letti e non ancora decompressi, o <code>null</code> finchè la
+   * compressione non è attiva.
+   */
+  private ByteBuffer deflatedIn;
+  /**
+   * Il gruppo di messaggi prelevato dalla coda, riusato ad ogni scrittura.
+   */
+  private ArrayList<MessageWithTarget> batch;
+  /**
+   * Il numero massimo di messaggi prelevati dalla coda per ogni scrittura.
+   */
+  private int maxBatchSize;
+  /**
+   * Indica se è già stata chiesta all'event loop una scrittura non ancora eseguita.
+   */
+  private AtomicBoolean flushRequested;
+}
@@ -0,0 +1,292 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Il trasporto alternativo della overlay network basato su canali non bloccanti.
+ * Un piccolo numero fisso di event loop, ognuno con il proprio selettore, gestisce
+ * accettazione, stretta di mano, lettura e scrittura dei frame di tutte le
+ * connessioni del servent. Le connessioni inattive non costano thread nè
+ * risvegli periodici: un event loop si sveglia solo quando un canale è pronto o
+ * quando qualcuno accoda un messaggio per una delle sue connessioni. Solo finchè ha
+ * strette di mano in corso si sveglia anche ogni {@link Util#HANDSHAKE_CHECK_TICK}
+ * millisecondi, per chiudere quelle che il peer lascia in sospeso.
+ * @author Michele Comignano
+ */
+class NioOverlay {
+  /**
+   * Crea il trasporto senza avviarlo.
+   * @param servent il servent per cui lavora il trasporto.
+   * @param eventLoops il numero di event loop da usare.
+   */
+  NioOverlay(Servent servent, int eventLoops) {
+    this.servent = servent;
+    loops = new EventLoop[eventLoops];
+    threads = new Thread[eventLoops];
+    nextLoop = new AtomicInteger(0);
+  }
+  /**
+   * Avvia gli event loop e, se richiesto, l'accettazione di connessioni in ingresso.
+   * @param port la porta tcp su cui accettare connessioni, o un valore negativo per
+   * non accettarne.
+   * @throws IOException se non è possibile aprire i selettori o la porta.
+   */
+  void start(int port) throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(Selector.open());
+    }
+    if (port >= 0) {
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(port));
+      serverChannel.configureBlocking(false);
+      loops[0].acceptOn(serverChannel);
+    }
+    for (int i = 0; i < loops.length; i++) {
+      threads[i] = new Thread(loops[i], "nio-overlay-" + i);
+      threads[i].start();
+    }
+  }
+  /**
+   * Avvia una connessione in uscita verso il peer dato.
+   * @param peer il peer a cui connettersi.
+   */
+  void connect(ServentDescriptor peer) {
+    EventLoop loop = nextLoop();
+    loop.register(new NioConnection(servent, peer, loop));
+  }
+  /**
+   * Ferma gli event loop chiudendo tutte le connessioni e la porta di ascolto.
+   */
+  void shutdown() {
+    for (int i = 0; i < loops.length; i++) {
+      if (loops[i] != null) {
+        loops[i].running = false;
+        loops[i].selector.wakeup();
+      }
+    }
+    for (int i = 0; i < threads.length; i++) {
+      if (threads[i] != null) {
+        try {
+          threads[i].join();
+        } catch (InterruptedException e) {
+        }
+      }
+    }
+    if (serverChannel != null) {
+      try {
+        serverChannel.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+  /**
+   * Indica se il thread corrente esegue un event loop, e quindi non deve mai restare
+   * bloccato.
+   * @return <code>true</code> se il thread corrente è quello di un event loop.
+   */
+  static boolean isEventLoopThread() {
+    return Boolean.TRUE.equals(EVENT_LOOP_THREAD.get());
+  }
+  /**
+   * Sceglie a rotazione l'event loop a cui assegnare una nuova connessione.
+   * @return l'event loop scelto.
+   */
+  private EventLoop nextLoop() {
+    return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+
+  /**
+   * Un event loop serve un sottoinsieme delle connessioni del servent. Le richieste
+   * che arrivano da altri thread, nuove registrazioni e scritture da eseguire,
+   * passano da code concorrenti e da un risveglio del selettore.
+   */
+  class EventLoop implements Runnable {
+    /**
+     * Crea un event loop sul selettore dato.
+     * @param selector il selettore dell'event loop.
+     */
+    EventLoop(Selector selector) {
+      this.selector = selector;
+      registrations = new ConcurrentLinkedQueue<NioConnection>();
+      flushes = new ConcurrentLinkedQueue<NioConnection>();
+      handshakes = new ArrayList<NioConnection>();
+      running = true;
+    }
+    /**
+     * Registra il canale di ascolto perchè questo event loop accetti le connessioni
+     * in ingresso. Va chiamato prima dell'avvio.
+     * @param channel il canale di ascolto.
+     * @throws IOException in caso di problemi di registrazione.
+     */
+    void acceptOn(ServerSocketChannel channel) throws IOException {
+      channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    /**
+     * Chiede all'event loop di prendere in carico una connessione.
+     * @param conn la connessione.
+     */
+    void register(NioConnection conn) {
+      registrations.add(conn);
+      selector.wakeup();
+    }
+    /**
+     * Chiede all'event loop di scrivere i messaggi in coda di una connessione.
+     * @param conn la connessione.
+     */
+    void requestFlush(NioConnection conn) {
+      flushes.add(conn);
+      selector.wakeup();
+    }
+    @Override
+    public void run() {
+      EVENT_LOOP_THREAD.set(Boolean.TRUE);
+      while (running && !servent.mustHalt) {
+        try {
+          selector.select(handshakes.isEmpty() ? 0 : Util.HANDSHAKE_CHECK_TICK);
+        } catch (IOException e) {
+          servent.logger.appendError("Errore dell'event loop", e);
+          break;
+        }
+        NioConnection conn;
+        while ((conn = registrations.poll()) != null) {
+          conn.register(selector);
+          handshakes.add(conn);
+        }
+        while ((conn = flushes.poll()) != null) {
+          conn.flushRequested();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+          } else {
+            ((NioConnection) key.attachment()).ready();
+          }
+        }
+        checkHandshakes();
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof NioConnection) {
+          ((NioConnection) key.attachment()).close();
+        }
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+      }
+    }
+    /**
+     * Chiude le strette di mano scadute e dimentica quelle concluse, al più una volta
+     * ogni {@link Util#HANDSHAKE_CHECK_TICK} millisecondi.
+     */
+    private void checkHandshakes() {
+      long now = System.currentTimeMillis();
+      if (handshakes.isEmpty() || now - lastHandshakeCheck < Util.HANDSHAKE_CHECK_TICK) {
+        return;
+      }
+      lastHandshakeCheck = now;
+      Iterator<NioConnection> i = handshakes.iterator();
+      while (i.hasNext()) {
+        if (!i.next().checkHandshake(now)) {
+          i.remove();
+        }
+      }
+    }
+    /**
+     * Accetta le connessioni in attesa assegnandole agli event loop a rotazione.
+     * @param channel il canale di ascolto.
+     */
+    private void accept(ServerSocketChannel channel) {
+      SocketChannel accepted;
+      try {
+        while ((accepted = channel.accept()) != null) {
+          EventLoop loop = nextLoop();
+          loop.register(new NioConnection(servent, accepted, loop));
+        }
+      } catch (IOException e) {
+      }
+    }
+    /**
+     * Il selettore dell'event loop.
+     */
+    private final Selector selector;
+    /**
+     * Le connessioni in attesa di essere registrate.
+     */
+    private final ConcurrentLinkedQueue<NioConnection> registrations;
+    /**
+     * Le connessioni con messaggi in coda da scrivere.
+     */
+    private final ConcurrentLinkedQueue<NioConnection> flushes;
+    /**
+     * Le connessioni registrate la cui stretta di mano potrebbe essere ancora in
+     * corso. Usata solo dal thread dell'event loop.
+     */
+    private final ArrayList<NioConnection> handshakes;
+    /**
+     * L'istante dell'ultimo controllo delle strette di mano.
+     */
+    private long lastHandshakeCheck;
+    /**
+     * Indica se l'event loop deve continuare.
+     */
+    private volatile boolean running;
+  }
+  /**
+   * Vale <code>true</code> nei thread degli event loop.
+   */
+  private static final ThreadLocal<Boolean> EVENT_LOOP_THREAD = new ThreadLocal<Boolean>();
+  /**
+   * Il servent per cui lavora il trasporto.
+   */
+  private final Servent servent;
+  /**
+   * Gli event loop.
+   */
+  private final EventLoop[] loops;
+  /**
+   * I thread che eseguono gli event loop.
+   */
+  private final Thread[] threads;
+  /**
+   * Il contatore usato per assegnare le connessioni agli event loop a rotazione.
+   */
+  private final AtomicInteger nextLoop;
+  /**
+   * Il canale di ascolto delle connessioni in ingresso.
+   */
+  private ServerSocketChannel serverChannel;
+}
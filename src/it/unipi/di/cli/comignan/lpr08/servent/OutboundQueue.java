@@ -0,0 +1,398 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import it.unipi.di.cli.comignan.lpr08.servent.Forwarder.MessageWithTarget;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * La coda dei messaggi in attesa di invio di un forwarder. E' limitata nella
+ * capacità e sicura rispetto all'uso da parte di più thread: chi preleva viene
+ * svegliato non appena arriva un messaggio, mentre chi accoda in una coda piena
+ * resta bloccato per un tempo limitato, dopodichè il messaggio viene scartato e
+ * conteggiato. In questo modo un peer lento rallenta chi gli inoltra messaggi
+ * senza però bloccarlo indefinitamente.
+ * <p>
+ * Internamente i messaggi sono divisi in corsie per priorità: query hit e push,
+ * attesi da un utente, gli stati delle ricerche a camminatori, che tengono fermo
+ * un camminatore finchè non arrivano, e le tabelle di instradamento delle query,
+ * che non vengono mai scartate, nella prima; query nella seconda; ping, pong
+ * e il resto nell'ultima. L'ordine tra messaggi della stessa corsia resta quello di arrivo.
+ * Le corsie sono servite da un round robin pesato: in ogni giro una corsia può
+ * cedere al più tanti messaggi quanto il suo peso, dando sempre la precedenza
+ * alle corsie più importanti, per cui anche il traffico meno importante avanza
+ * quando le altre corsie sono sempre piene.
+ * <p>
+ * Se il controllo di flusso è attivo, quando i messaggi in attesa superano la
+ * soglia alta la coda entra in stato di saturazione: le query già in coda che
+ * hanno percorso più strada vengono scartate per prime fino a tornare sotto la
+ * soglia e i nuovi messaggi di flooding (query e ping) vengono rifiutati finchè
+ * la coda non scende sotto la soglia bassa. Query hit e push non sono mai scartati
+ * in questo modo, perchè sono risposte già pagate dal resto della rete.
+ * <p>
+ * Le attese usano un lock esplicito anzichè il monitor dell'oggetto: un thread
+ * virtuale in attesa su una condizione libera il thread di sistema che lo esegue,
+ * mentre uno fermo in una <code>wait()</code> dentro un blocco sincronizzato lo
+ * terrebbe occupato.
+ * @author Michele Comignano
+ */
+class OutboundQueue {
+  /**
+   * Crea una nuova coda vuota.
+   * @param settings le impostazioni da cui leggere capacità, attesa massima, pesi
+   * delle corsie e soglie del controllo di flusso.
+   * @param flowControl indica se attivare il controllo di flusso.
+   */
+  @SuppressWarnings("unchecked")
+  OutboundQueue(ServentSettings settings, boolean flowControl) {
+    this.flowControl = flowControl;
+    highWater = settings.getFlowControlHighWater();
+    lowWater = settings.getFlowControlLowWater();
+    saturated = false;
+    shed = 0;
+    capacity = settings.getSendingQueueCapacity();
+    offerTimeout = settings.getSendingQueueOfferTimeout();
+    weights = settings.getLaneWeights();
+    credits = weights.clone();
+    lanes = (ArrayDeque<MessageWithTarget>[]) new ArrayDeque<?>[LANES];
+    for (int i = 0; i < LANES; i++) {
+      lanes[i] = new ArrayDeque<MessageWithTarget>();
+    }
+    size = 0;
+    dropped = 0;
+    lock = new ReentrantLock();
+    notEmpty = lock.newCondition();
+    notFull = lock.newCondition();
+  }
+  /**
+   * Stabilisce in quale corsia va accodato un messaggio.
+   * @param msg il messaggio.
+   * @return l'indice della corsia, 0 per la più importante.
+   */
+  static int laneOf(Message msg) {
+    switch (msg.messageType) {
+      case QueryHitMessage.TYPE_ID:
+      case PushMessage.TYPE_ID:
+      case QueryStatusMessage.TYPE_ID:
+      case QueryRouteMessage.TYPE_ID:
+        return HIT_LANE;
+      case QueryMessage.TYPE_ID:
+        return QUERY_LANE;
+      default:
+        return EXPLORE_LANE;
+    }
+  }
+  /**
+   * Indica se il messaggio fa parte di un flooding e può quindi essere rifiutato
+   * quando la coda è satura.
+   * @param msg il messaggio.
+   * @return <code>true</code> per query e ping.
+   */
+  private static boolean isFlood(Message msg) {
+    return msg.messageType == QueryMessage.TYPE_ID || msg.messageType == PingMessage.TYPE_ID;
+  }
+  /**
+   * Indica se il messaggio non può mai essere scartato, neppure con la coda piena.
+   * Sono le tabelle di instradamento delle query: rare e piccole, ma il peer applica
+   * ogni aggiornamento a quello precedente e uno perso guasterebbe tutti i successivi.
+   * @param msg il messaggio.
+   * @return <code>true</code> per le tabelle di instradamento.
+   */
+  private static boolean isUndroppable(Message msg) {
+    return msg.messageType == QueryRouteMessage.TYPE_ID;
+  }
+  /**
+   * Accoda un messaggio attendendo al più il tempo stabilito se la coda è piena.
+   * @param item il messaggio con la sua destinazione.
+   * @return <code>true</code> se il messaggio è stato accodato, <code>false</code> se
+   * è stato scartato.
+   */
+  boolean offer(MessageWithTarget item) {
+    return offer(item, true);
+  }
+  /**
+   * Accoda un messaggio, attendendo se la coda è piena solo se richiesto.
+   * @param item il messaggio con la sua destinazione.
+   * @param wait <code>false</code> per scartare subito il messaggio se la coda è piena,
+   * come deve fare chi non può restare bloccato.
+   * @return <code>true</code> se il messaggio è stato accodato, <code>false</code> se
+   * è stato scartato.
+   */
+  boolean offer(MessageWithTarget item, boolean wait) {
+    lock.lock();
+    try {
+      if (saturated && isFlood(item.message)) {
+        shed++;
+        return false;
+      }
+      boolean undroppable = isUndroppable(item.message);
+      if (size >= capacity && offerTimeout > 0 && wait && !undroppable) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(offerTimeout);
+        try {
+          while (size >= capacity && remaining > 0) {
+            remaining = notFull.awaitNanos(remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (size >= capacity && !undroppable) {
+        dropped++;
+        return false;
+      }
+      lanes[laneOf(item.message)].add(item);
+      size++;
+      if (flowControl && size > highWater) {
+        saturated = true;
+        shedQueries();
+      }
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Scarta le query in coda che hanno percorso più strada finchè i messaggi in attesa
+   * non tornano entro la soglia alta o non restano più query. Va chiamato tenendo il
+   * lock.
+   */
+  private void shedQueries() {
+    ArrayDeque<MessageWithTarget> queries = lanes[QUERY_LANE];
+    while (size > highWater && !queries.isEmpty()) {
+      MessageWithTarget farthest = null;
+      for (MessageWithTarget queued : queries) {
+        if (farthest == null || queued.message.getHops() > farthest.message.getHops()) {
+          farthest = queued;
+        }
+      }
+      queries.removeFirstOccurrence(farthest);
+      size--;
+      shed++;
+    }
+  }
+  /**
+   * Preleva il prossimo messaggio da inviare attendendo che ve ne sia uno.
+   * @return il messaggio prelevato.
+   * @throws InterruptedException se il thread viene interrotto durante l'attesa.
+   */
+  MessageWithTarget take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (size == 0) {
+        notEmpty.await();
+      }
+      MessageWithTarget item = next();
+      notFull.signalAll();
+      return item;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Preleva il prossimo messaggio attendendo al più il tempo indicato.
+   * @param timeout l'attesa massima in millisecondi.
+   * @return il messaggio prelevato o <code>null</code> se non ne è arrivato alcuno.
+   * @throws InterruptedException se il thread viene interrotto durante l'attesa.
+   */
+  MessageWithTarget poll(long timeout) throws InterruptedException {
+    lock.lock();
+    try {
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+      while (size == 0 && remaining > 0) {
+        remaining = notEmpty.awaitNanos(remaining);
+      }
+      if (size == 0) {
+        return null;
+      }
+      MessageWithTarget item = next();
+      notFull.signalAll();
+      return item;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Sposta nella lista data i messaggi già in coda, senza attendere, nell'ordine
+   * stabilito dalle priorità.
+   * @param batch la lista in cui aggiungere i messaggi prelevati.
+   * @param max il numero massimo di messaggi da prelevare.
+   * @return il numero di messaggi prelevati.
+   */
+  int drainTo(List<MessageWithTarget> batch, int max) {
+    lock.lock();
+    try {
+      int n = 0;
+      while (n < max && size > 0) {
+        batch.add(next());
+        n++;
+      }
+      if (n > 0) {
+        notFull.signalAll();
+      }
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * Sceglie il prossimo messaggio secondo il round robin pesato. Va chiamato solo
+   * con la coda non vuota e tenendo il lock.
+   * @return il messaggio prelevato.
+   */
+  private MessageWithTarget next() {
+    while (true) {
+      for (int i = 0; i < LANES; i++) {
+        if (credits[i] > 0 && !lanes[i].isEmpty()) {
+          credits[i]--;
+          size--;
+          if (saturated && size <= lowWater) {
+            saturated = false;
+          }
+          return lanes[i].poll();
+        }
+      }
+      // Le corsie non vuote hanno esaurito il loro turno: comincia un nuovo giro.
+      System.arraycopy(weights, 0, credits, 0, LANES);
+    }
+  }
+  /**
+   * @return il numero di messaggi in attesa di invio.
+   */
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * @return il numero di messaggi scartati perchè la coda era piena.
+   */
+  long getDropped() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * @return il numero di messaggi scartati o rifiutati dal controllo di flusso.
+   */
+  long getShed() {
+    lock.lock();
+    try {
+      return shed;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * @return <code>true</code> se la coda è satura e rifiuta i nuovi messaggi di flooding.
+   */
+  boolean isSaturated() {
+    lock.lock();
+    try {
+      return saturated;
+    } finally {
+      lock.unlock();
+    }
+  }
+  /**
+   * La corsia di query hit e push.
+   */
+  static final int HIT_LANE = 0;
+  /**
+   * La corsia delle query.
+   */
+  static final int QUERY_LANE = 1;
+  /**
+   * La corsia di ping, pong e degli altri messaggi.
+   */
+  static final int EXPLORE_LANE = 2;
+  /**
+   * Il numero di corsie.
+   */
+  static final int LANES = 3;
+  /**
+   * Il numero massimo di messaggi in attesa.
+   */
+  private final int capacity;
+  /**
+   * L'attesa massima in millisecondi per chi accoda in una coda piena.
+   */
+  private final long offerTimeout;
+  /**
+   * I messaggi in attesa divisi per corsia, ognuna nell'ordine di arrivo.
+   */
+  private final ArrayDeque<MessageWithTarget>[] lanes;
+  /**
+   * Quanti messaggi per giro può cedere ogni corsia.
+   */
+  private final int[] weights;
+  /**
+   * Quanti messaggi ogni corsia può ancora cedere nel giro corrente.
+   */
+  private final int[] credits;
+  /**
+   * Il numero complessivo di messaggi in attesa.
+   */
+  private int size;
+  /**
+   * Il conteggio dei messaggi scartati.
+   */
+  private long dropped;
+  /**
+   * Indica se il controllo di flusso è attivo.
+   */
+  private final boolean flowControl;
+  /**
+   * Superato questo numero di messaggi in attesa la coda diventa satura.
+   */
+  private final int highWater;
+  /**
+   * Sceso sotto questo numero di messaggi in attesa la coda non è più satura.
+   */
+  private final int lowWater;
+  /**
+   * Indica se la coda è satura.
+   */
+  private boolean saturated;
+  /**
+   * Il conteggio dei messaggi scartati o rifiutati dal controllo di flusso.
+   */
+  private long shed;
+  /**
+   * Il lock che protegge lo stato della coda.
+   */
+  private final ReentrantLock lock;
+  /**
+   * Segnalata quando arriva un messaggio.
+   */
+  private final Condition notEmpty;
+  /**
+   * Segnalata quando si libera posto nella coda.
+   */
+  private final Condition notFull;
+}
@@ -38,6 +38,20 @@ class PingMessage extends Message {
     super(TYPE_ID);
     this.connectPort = connectPort;
     this.explorePort = explorePort;
+    batches = true;
+  }
+  /**
+   * Ricostruisce un messaggio di ping ricevuto, con il suo identificatore.
+   * @param idHigh la metà alta dell'identificatore.
+   * @param idLow la metà bassa dell'identificatore.
+   * @param connectPort la porta tcp del mittente.
+   * @param explorePort la porta udp del mittente.
+   */
+  protected PingMessage(long idHigh, long idLow, int connectPort, int explorePort) {
+    super(idHigh, idLow, TYPE_ID);
+    this.connectPort = connectPort;
+    this.explorePort = explorePort;
+    batches = false;
   }
   /**
    * La porta su cui il mittende attende messaggi di esplorazione.
@@ -56,4 +70,10 @@ class PingMessage extends Message {
    * analoghe alle precedenti (explorePort).
    */
   protected int connectPort;
+  /**
+   * Indica se chi ha mandato il ping, e ogni servent che lo ha inoltrato, sa leggere e
+   * inoltrare un {@link PongBatchMessage}. Un servent che non lo conosce non scrive
+   * questo campo quando inoltra il ping, per cui chi lo riceve lo trova falso.
+   */
+  protected boolean batches;
 }
@@ -0,0 +1,171 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import it.unipi.di.cli.comignan.lpr08.common.ServentDescriptor;
+import java.util.IdentityHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Programma i ping periodici dell'esploratore di rete. Ogni vicino ha la sua scadenza
+ * e riceve un ping tutto suo, così che i ping non partano verso tutti nello stesso
+ * istante e, giro dopo giro, non si sincronizzino con quelli degli altri servent.
+ * <p>
+ * L'intervallo tra due ping dipende da quanto è fornita la cache dei servent: se ha
+ * molti peer liberi visti di recente si pinga di rado, se si sta esaurendo si pinga
+ * spesso; ad ogni ping l'intervallo viene poi spostato a caso di una frazione. Le
+ * scadenze sono controllate da un compito periodico sul timer condiviso del servent,
+ * che guarda le connessioni da una loro copia senza prendere alcun lock.
+ * @author Michele Comignano
+ */
+class PingScheduler implements Runnable {
+  /**
+   * Crea il programmatore dei ping di un esploratore.
+   * @param explorer l'esploratore da cui partono i ping.
+   * @param servent il servent dell'esploratore.
+   */
+  PingScheduler(NetworkExplorer explorer, Servent servent) {
+    this.explorer = explorer;
+    this.servent = servent;
+    due = new IdentityHashMap<Connection, Long>();
+    interval = Util.PING_MIN_INTERVAL;
+  }
+  /**
+   * Avvia il controllo periodico delle scadenze sul timer del servent.
+   */
+  void start() {
+    try {
+      future = servent.timer.scheduleWithFixedDelay(this, Util.PING_SCHEDULER_TICK,
+              Util.PING_SCHEDULER_TICK, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+    }
+  }
+  /**
+   * Ferma il controllo delle scadenze.
+   */
+  void stop() {
+    ScheduledFuture<?> f = future;
+    if (f != null) {
+      f.cancel(false);
+    }
+  }
+  /**
+   * Manda un ping ai vicini per cui è scaduto l'intervallo e programma il successivo.
+   * Un vicino appena collegato riceve il primo ping dopo un ritardo casuale entro
+   * l'intervallo minimo.
+   */
+  public void run() {
+    if (servent.mustHalt) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Connection[] targets = servent.connections.snapshot();
+    IdentityHashMap<Connection, Long> next = new IdentityHashMap<Connection, Long>();
+    boolean updated = false;
+    for (Connection conn : targets) {
+      Long when = due.get(conn);
+      if (when == null) {
+        when = now + ThreadLocalRandom.current().nextLong(Util.PING_MIN_INTERVAL);
+      } else if (when <= now) {
+        if (!updated) {
+          interval = interval();
+          updated = true;
+        }
+        PingMessage ping = new PingMessage(servent.connectPort, explorer.getExplorePort());
+        explorer.setSeen(ping, servent.fakeConnection);
+        explorer.forward(ping, conn);
+        sentPings++;
+        when = now + jitter(interval);
+      }
+      next.put(conn, when);
+    }
+    // Le connessioni chiuse non compaiono nella nuova tabella e vengono dimenticate.
+    due = next;
+  }
+  /**
+   * Calcola l'intervallo tra i ping in base a quanti peer liberi e visti di recente
+   * ci sono nella cache del servent: il minimo con la cache vuota, il massimo quando
+   * ce ne sono {@link Util#FRESH_PEERS_PER_CONNECTION} per ogni connessione che il
+   * servent può avere.
+   * @return l'intervallo in millisecondi.
+   */
+  private long interval() {
+    long oldest = System.currentTimeMillis() - Util.HOST_CACHE_FRESHNESS;
+    int fresh = 0;
+    synchronized (servent.cache) {
+      for (ServentDescriptor descr : servent.cache) {
+        if (!descr.isUsed() && descr.getLastSeen().getTime() >= oldest) {
+          fresh++;
+        }
+      }
+    }
+    double fill = Math.min(1.0, fresh / (double) Math.max(1,
+            servent.connectionsLimit * Util.FRESH_PEERS_PER_CONNECTION));
+    return Util.PING_MIN_INTERVAL + (long) ((Util.PING_MAX_INTERVAL - Util.PING_MIN_INTERVAL) * fill);
+  }
+  /**
+   * Sposta a caso un intervallo di al più {@link Util#PING_JITTER_PERCENT} per cento,
+   * in più o in meno.
+   * @param interval l'intervallo.
+   * @return l'intervallo spostato.
+   */
+  private static long jitter(long interval) {
+    long range = interval * Util.PING_JITTER_PERCENT / 100;
+    return interval - range + ThreadLocalRandom.current().nextLong(2 * range + 1);
+  }
+  /**
+   * @return l'ultimo intervallo calcolato tra i ping a un vicino, prima dello
+   * spostamento casuale.
+   */
+  long getInterval() {
+    return interval;
+  }
+  /**
+   * @return il numero di ping inviati.
+   */
+  long getSentPings() {
+    return sentPings;
+  }
+  /**
+   * L'esploratore da cui partono i ping.
+   */
+  private final NetworkExplorer explorer;
+  /**
+   * Il servent dell'esploratore.
+   */
+  private final Servent servent;
+  /**
+   * L'istante del prossimo ping per ogni vicino. E' usata solo dal timer.
+   */
+  private IdentityHashMap<Connection, Long> due;
+  /**
+   * L'ultimo intervallo calcolato.
+   */
+  private volatile long interval;
+  /**
+   * Il numero di ping inviati. E' aggiornato solo dal timer.
+   */
+  private volatile long sentPings;
+  /**
+   * Il controllo periodico in corso sul timer.
+   */
+  private volatile ScheduledFuture<?> future;
+}
@@ -0,0 +1,106 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+
+/**
+ * Il messaggio con cui un servent risponde ad un ping con più peer in un solo
+ * pacchetto: sè stesso, come farebbe con un pong, e i peer buoni che conosce. Chi
+ * entra nella rete riempie così la sua cache dei servent con un solo giro di ping,
+ * invece di attendere decine di pong che tornano uno alla volta, inoltro dopo inoltro.
+ * <p>
+ * Viaggia come un pong: ha l'identificatore del ping a cui risponde e torna indietro
+ * lungo la sua rotta. Viene mandato solo in risposta ai ping che dichiarano di
+ * conoscerlo, cioè quelli che hanno attraversato solo servent capaci di inoltrarlo.
+ * @author Michele Comignano
+ */
+class PongBatchMessage extends Message {
+  /**
+   * Crea un nuovo messaggio con i peer dati.
+   * @param idHigh la metà alta dell'identificatore del ping a cui si risponde.
+   * @param idLow la metà bassa dell'identificatore del ping a cui si risponde.
+   * @param peers i peer segnalati, il primo dei quali è il servent che risponde.
+   */
+  PongBatchMessage(long idHigh, long idLow, Peer[] peers) {
+    super(idHigh, idLow, TYPE_ID);
+    this.peers = peers;
+  }
+  /**
+   * Un peer segnalato in un messaggio.
+   */
+  static class Peer implements Serializable {
+    /**
+     * Crea la descrizione di un peer.
+     * @param address l'indirizzo del peer, o <code>null</code> se è il servent che
+     * risponde e non conosce il proprio.
+     * @param connectPort la porta tcp del peer.
+     * @param explorePort la porta udp del peer.
+     * @param uptime da quanti secondi il peer è attivo, o {@link #UNKNOWN}.
+     * @param files il numero di files condivisi dal peer, o {@link #UNKNOWN}.
+     */
+    Peer(InetAddress address, int connectPort, int explorePort, int uptime, int files) {
+      this.address = address;
+      this.connectPort = connectPort;
+      this.explorePort = explorePort;
+      this.uptime = uptime;
+      this.files = files;
+    }
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = 1L;
+    /**
+     * L'indirizzo del peer; come nei pong è riempito al primo approdo se manca.
+     */
+    protected InetAddress address;
+    /**
+     * La porta tcp su cui il peer accetta connessioni.
+     */
+    protected final int connectPort;
+    /**
+     * La porta udp su cui il peer esplora la rete.
+     */
+    protected final int explorePort;
+    /**
+     * Da quanti secondi il peer è attivo, o {@link #UNKNOWN}.
+     */
+    protected final int uptime;
+    /**
+     * Il numero di files condivisi dal peer, o {@link #UNKNOWN}.
+     */
+    protected final int files;
+  }
+  /**
+   * serialVersionUID
+   */
+  private static final long serialVersionUID = 1L;
+  /**
+   * Il codice che identifica un messaggio di pong multiplo.
+   */
+  protected static final byte TYPE_ID = 0x02;
+  /**
+   * Il valore dei campi facoltativi di un peer quando non sono noti.
+   */
+  static final int UNKNOWN = -1;
+  /**
+   * I peer segnalati, il primo dei quali è il servent che risponde.
+   */
+  protected Peer[] peers;
+}
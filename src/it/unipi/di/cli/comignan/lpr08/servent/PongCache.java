@@ -0,0 +1,144 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * La cache dei pong recenti dell'esploratore di rete. Per ogni vicino ricorda, per
+ * ogni distanza, l'ultimo pong arrivato da quel vicino con quel numero di passi: così
+ * chi riceve un ping può rispondere con i servent già noti invece di inoltrarlo, e le
+ * risposte mescolano peer vicini e lontani scoperti attraverso vicini diversi.
+ * <p>
+ * Un pong resta buono per un tempo limitato, dopodichè viene ignorato; se nessun
+ * vicino ha pong buoni la cache non serve e i ping vanno inoltrati come prima.
+ * @author Michele Comignano
+ */
+class PongCache {
+  /**
+   * Crea una cache vuota.
+   * @param lifetime per quanto tempo un pong resta buono, in millisecondi.
+   */
+  PongCache(long lifetime) {
+    this.lifetime = lifetime;
+    entries = new HashMap<Connection, Entry[]>();
+  }
+  /**
+   * Ricorda un pong arrivato da un vicino.
+   * @param from il vicino da cui è arrivato il pong.
+   * @param pong il pong, con l'indirizzo del servent che descrive già noto.
+   */
+  synchronized void add(Connection from, PongMessage pong) {
+    int hops = pong.getHops();
+    if (hops < 0 || hops >= Message.DEFAULT_TTL) {
+      return;
+    }
+    Entry[] slots = entries.get(from);
+    if (slots == null) {
+      slots = new Entry[Message.DEFAULT_TTL];
+      entries.put(from, slots);
+    }
+    slots[hops] = new Entry(pong.address, pong.connectPort, pong.explorePort,
+            System.currentTimeMillis());
+  }
+  /**
+   * Sceglie i pong con cui rispondere ad un ping, prendendo a turno un pong per ogni
+   * vicino dalle distanze minori alle maggiori. Sono esclusi il vicino che ha mandato
+   * il ping e i pong che lo descrivono, oltre a quelli scaduti o più lontani di quanto
+   * il ping sarebbe arrivato se inoltrato.
+   * @param ping il ping a cui rispondere.
+   * @param origin il vicino da cui è arrivato il ping.
+   * @param max il numero massimo di pong.
+   * @return i pong, con l'identificatore del ping, o una lista vuota se la cache non
+   * ha pong buoni per questo ping.
+   */
+  synchronized List<PongMessage> select(PingMessage ping, Connection origin, int max) {
+    List<PongMessage> pongs = new ArrayList<PongMessage>();
+    long now = System.currentTimeMillis();
+    int maxHops = Math.min(ping.getTtl() - 1, Message.DEFAULT_TTL - 1);
+    InetAddress originAddress = origin.peer.getInetAddress();
+    for (int hops = 0; hops <= maxHops && pongs.size() < max; hops++) {
+      Iterator<Map.Entry<Connection, Entry[]>> it = entries.entrySet().iterator();
+      while (it.hasNext() && pongs.size() < max) {
+        Map.Entry<Connection, Entry[]> neighbour = it.next();
+        if (neighbour.getKey().mustClose) {
+          it.remove();
+          continue;
+        }
+        Entry entry = neighbour.getValue()[hops];
+        if (neighbour.getKey() == origin || entry == null || now - entry.time > lifetime ||
+                (entry.connectPort == ping.connectPort && entry.address.equals(originAddress))) {
+          continue;
+        }
+        PongMessage pong = new PongMessage(ping.idHigh, ping.idLow, entry.connectPort,
+                entry.explorePort);
+        pong.address = entry.address;
+        pong.setTtlAndHops(Message.DEFAULT_TTL, (byte) (hops + 1));
+        pongs.add(pong);
+      }
+    }
+    return pongs;
+  }
+  /**
+   * Un pong ricordato dalla cache.
+   */
+  private static class Entry {
+    /**
+     * Crea una voce della cache.
+     * @param address l'indirizzo del servent.
+     * @param connectPort la porta tcp del servent.
+     * @param explorePort la porta udp del servent.
+     * @param time l'istante di arrivo del pong.
+     */
+    Entry(InetAddress address, int connectPort, int explorePort, long time) {
+      this.address = address;
+      this.connectPort = connectPort;
+      this.explorePort = explorePort;
+      this.time = time;
+    }
+    /**
+     * L'indirizzo del servent.
+     */
+    final InetAddress address;
+    /**
+     * La porta tcp del servent.
+     */
+    final int connectPort;
+    /**
+     * La porta udp del servent.
+     */
+    final int explorePort;
+    /**
+     * L'istante di arrivo del pong.
+     */
+    final long time;
+  }
+  /**
+   * Per quanto tempo un pong resta buono, in millisecondi.
+   */
+  private final long lifetime;
+  /**
+   * Per ogni vicino, l'ultimo pong arrivato per ogni numero di passi.
+   */
+  private final Map<Connection, Entry[]> entries;
+}
@@ -46,12 +46,13 @@ class PongMessage extends Message {
   protected InetAddress address;
   /**
    * Crea un nuovo messaggio di pong.
-   * @param messageId il codice identificativo del messaggio.
+   * @param idHigh la metà alta dell'identificatore del ping a cui si risponde.
+   * @param idLow la metà bassa dell'identificatore del ping a cui si risponde.
    * @param connectPort la porta del servent da segnalare.
    * @param explorePort la porta di ascolto dell'esploratore di rete.
    */
-  protected PongMessage(byte[] messageId, int connectPort, int explorePort) {
-    super(messageId, TYPE_ID);
+  protected PongMessage(long idHigh, long idLow, int connectPort, int explorePort) {
+    super(idHigh, idLow, TYPE_ID);
     this.connectPort = connectPort;
     this.explorePort = explorePort;
     // Un pong appena generato se dietro un firewall non ha idea del proprio host
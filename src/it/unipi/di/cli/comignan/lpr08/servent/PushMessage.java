@@ -26,8 +26,8 @@ import java.net.InetAddress;
  * @author Michele Comignano
  */
 public class PushMessage extends Message {
-  protected PushMessage(byte[] messageId, String fileName, int fileServerPort) {
-    super(messageId, TYPE_ID);
+  protected PushMessage(long idHigh, long idLow, String fileName, int fileServerPort) {
+    super(idHigh, idLow, TYPE_ID);
     this.fileName = fileName;
     target = null;
     this.fileServerPort = fileServerPort;
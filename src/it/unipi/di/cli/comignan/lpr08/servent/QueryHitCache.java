@@ -0,0 +1,237 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * La cache delle query hit che attraversano il servent. Le hit sono raccolte per
+ * insieme di parole chiave normalizzato, così che una query ripetuta, magari con le
+ * parole in un altro ordine o con maiuscole diverse, possa ricevere subito le
+ * risposte già viste senza che tutti i file server della rete debbano ripetere la
+ * ricerca.
+ * <p>
+ * Ogni voce vive per un tempo limitato dalla sua creazione, anche se nel frattempo
+ * arrivano altre hit per le stesse parole, per non servire per sempre risultati
+ * vecchi. La memoria occupata è stimata e limitata: superato il limite vengono
+ * dimenticate le voci usate meno di recente. Non sono ricordate le hit dei servent
+ * dietro un firewall, che si possono raggiungere solo lungo la rotta originale, nè
+ * quelle che arrivano già da una cache.
+ * @author Michele Comignano
+ */
+class QueryHitCache {
+  /**
+   * Crea una cache vuota.
+   * @param lifetime per quanto tempo vive una voce, in millisecondi.
+   * @param maxBytes la memoria massima stimata occupata dalle voci.
+   */
+  QueryHitCache(long lifetime, long maxBytes) {
+    this.lifetime = lifetime;
+    this.maxBytes = maxBytes;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+  /**
+   * Cerca le hit ricordate per una query.
+   * @param key la chiave della query.
+   * @param idHigh la metà alta dell'identificatore della query.
+   * @param idLow la metà bassa dell'identificatore della query.
+   * @return nuove hit con l'identificatore della query, segnate come prese dalla cache;
+   * una lista vuota se non ce ne sono.
+   */
+  synchronized List<QueryHitMessage> get(String key, long idHigh, long idLow) {
+    lookups++;
+    List<QueryHitMessage> hits = new ArrayList<QueryHitMessage>();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return hits;
+    }
+    if (System.currentTimeMillis() - entry.created > lifetime) {
+      entries.remove(key);
+      bytes -= entry.bytes;
+      return hits;
+    }
+    found++;
+    for (int i = 0; i < entry.hits.size(); i++) {
+      CachedHit cached = entry.hits.get(i);
+      QueryHitMessage hit = new QueryHitMessage(idHigh, idLow, cached.matches,
+              cached.fileServerPort);
+      hit.address = cached.address;
+      hit.cached = true;
+      hits.add(hit);
+    }
+    return hits;
+  }
+  /**
+   * Ricorda una hit arrivata in risposta ad una query.
+   * @param key la chiave della query.
+   * @param hit la hit, con l'indirizzo del servent che risponde già noto.
+   */
+  synchronized void add(String key, QueryHitMessage hit) {
+    if (hit.firewalled || hit.cached || hit.address == null) {
+      return;
+    }
+    Entry entry = entries.get(key);
+    if (entry == null || System.currentTimeMillis() - entry.created > lifetime) {
+      if (entry != null) {
+        bytes -= entry.bytes;
+      }
+      entry = new Entry();
+      entry.bytes = ENTRY_OVERHEAD + 2 * key.length();
+      bytes += entry.bytes;
+      entries.put(key, entry);
+    }
+    if (entry.hits.size() >= Util.QUERY_HIT_CACHE_MAX_HITS) {
+      return;
+    }
+    for (int i = 0; i < entry.hits.size(); i++) {
+      CachedHit other = entry.hits.get(i);
+      if (other.fileServerPort == hit.fileServerPort && other.address.equals(hit.address) &&
+              Arrays.equals(other.matches, hit.matches)) {
+        return;
+      }
+    }
+    CachedHit cached = new CachedHit(hit.address, hit.fileServerPort, hit.matches);
+    entry.hits.add(cached);
+    entry.bytes += cached.bytes;
+    bytes += cached.bytes;
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().bytes;
+      eldest.remove();
+    }
+  }
+  /**
+   * @return il numero di query cercate nella cache.
+   */
+  synchronized long getLookups() {
+    return lookups;
+  }
+  /**
+   * @return il numero di query a cui la cache ha risposto.
+   */
+  synchronized long getHits() {
+    return found;
+  }
+  /**
+   * @return il numero di voci nella cache, comprese quelle scadute non ancora rimosse.
+   */
+  synchronized int size() {
+    return entries.size();
+  }
+  /**
+   * @return la stima in bytes della memoria occupata dalle voci.
+   */
+  synchronized long getBytes() {
+    return bytes;
+  }
+  /**
+   * Le hit ricordate per un insieme di parole chiave.
+   */
+  private static class Entry {
+    /**
+     * L'istante di creazione della voce.
+     */
+    final long created = System.currentTimeMillis();
+    /**
+     * Le hit ricordate.
+     */
+    final List<CachedHit> hits = new ArrayList<CachedHit>();
+    /**
+     * La stima della memoria occupata dalla voce.
+     */
+    long bytes;
+  }
+  /**
+   * Una hit ricordata, senza l'identificatore della query a cui rispondeva.
+   */
+  private static class CachedHit {
+    /**
+     * Crea una hit ricordata e ne stima la memoria occupata.
+     * @param address l'indirizzo del servent che ha risposto.
+     * @param fileServerPort la porta del suo file server.
+     * @param matches i nomi dei files trovati.
+     */
+    CachedHit(InetAddress address, int fileServerPort, String[] matches) {
+      this.address = address;
+      this.fileServerPort = fileServerPort;
+      this.matches = matches;
+      long size = HIT_OVERHEAD;
+      for (int i = 0; i < matches.length; i++) {
+        size += STRING_OVERHEAD + 2 * matches[i].length();
+      }
+      bytes = size;
+    }
+    /**
+     * L'indirizzo del servent che ha risposto.
+     */
+    final InetAddress address;
+    /**
+     * La porta del file server.
+     */
+    final int fileServerPort;
+    /**
+     * I nomi dei files trovati.
+     */
+    final String[] matches;
+    /**
+     * La stima della memoria occupata.
+     */
+    final long bytes;
+  }
+  /**
+   * La stima della memoria occupata da una voce vuota, compresa la sua chiave.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+  /**
+   * La stima della memoria occupata da una hit, esclusi i nomi dei files.
+   */
+  private static final int HIT_OVERHEAD = 64;
+  /**
+   * La stima della memoria occupata da una stringa, esclusi i caratteri.
+   */
+  private static final int STRING_OVERHEAD = 48;
+  /**
+   * Per quanto tempo vive una voce, in millisecondi.
+   */
+  private final long lifetime;
+  /**
+   * La memoria massima stimata occupata dalle voci.
+   */
+  private final long maxBytes;
+  /**
+   * Le voci, dalla usata meno di recente alla più recente.
+   */
+  private final LinkedHashMap<String, Entry> entries;
+  /**
+   * La stima della memoria occupata dalle voci.
+   */
+  private long bytes;
+  /**
+   * Il numero di query cercate.
+   */
+  private long lookups;
+  /**
+   * Il numero di query a cui la cache ha risposto.
+   */
+  private long found;
+}
@@ -27,17 +27,17 @@ public class QueryHitMessage extends Message {
   /**
    * Crea un nuovo messaggio con i risultati di una ricerca nel caso il servent che lo
    * emette abbia un file server pubblicamente accessibile.
-   * @param messageId
+   * @param idHigh la metà alta dell'identificatore della query a cui si risponde.
+   * @param idLow la metà bassa dell'identificatore della query a cui si risponde.
    * @param matches
    * @param fileServerPort
    */
-  protected QueryHitMessage(byte[] messageId, String[] matches, int fileServerPort) {
-    super(TYPE_ID);
+  protected QueryHitMessage(long idHigh, long idLow, String[] matches, int fileServerPort) {
+    super(idHigh, idLow, TYPE_ID);
     this.fileServerPort = fileServerPort;
     this.firewalled = false;
     this.matches = matches;
     this.address = null;
-    this.messageId = messageId;
   }
   /**
    * serialVersionUID
@@ -48,6 +48,11 @@ public class QueryHitMessage extends Message {
   protected String[] matches;
   protected int[] sizes;
   protected boolean firewalled;
+  /**
+   * Indica se la hit è stata presa dalla cache di un servent intermedio invece di
+   * arrivare dal servent che condivide i files.
+   */
+  protected boolean cached;
   /**
    * L'identificatore del messaggio di pong.
    */
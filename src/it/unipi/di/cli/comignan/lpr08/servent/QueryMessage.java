@@ -17,6 +17,8 @@
 
 package it.unipi.di.cli.comignan.lpr08.servent;
 
+import java.util.TreeSet;
+
 /**
  * Il messaggio di ricerca per inoltrare la ricerca di una stringa attraverso la rete.
  * @author Michele Comignano
@@ -34,6 +36,11 @@ class QueryMessage extends Message {
    * La stringa di ricerca per cui cercare corrispondenze.
    */
   protected String[] keyWords;
+  /**
+   * Indica se la query è un camminatore casuale, inoltrato ad un solo vicino per
+   * volta, anzichè una query da inondare.
+   */
+  protected boolean walker;
   /**
    * Crea un nuovo messaggio di query con ttl di dafault.
    * @param keyWords la chiave di ricerca.
@@ -42,4 +49,41 @@ class QueryMessage extends Message {
     super(TYPE_ID);
     this.keyWords = keyWords;
   }
+  /**
+   * Ricostruisce un messaggio di query ricevuto, con il suo identificatore.
+   * @param idHigh la metà alta dell'identificatore.
+   * @param idLow la metà bassa dell'identificatore.
+   * @param keyWords la chiave di ricerca.
+   */
+  protected QueryMessage(long idHigh, long idLow, String[] keyWords) {
+    super(idHigh, idLow, TYPE_ID);
+    this.keyWords = keyWords;
+  }
+  /**
+   * Normalizza le parole chiave di una query: minuscole, senza spazi ai lati, senza
+   * ripetizioni e in ordine alfabetico. Query con la stessa chiave trovano gli stessi
+   * files.
+   * @param keyWords le parole chiave.
+   * @return la chiave della query, o <code>null</code> se non restano parole.
+   */
+  static String keyOf(String[] keyWords) {
+    TreeSet<String> words = new TreeSet<String>();
+    for (int i = 0; i < keyWords.length; i++) {
+      String word = keyWords[i].trim().toLowerCase();
+      if (word.length() > 0) {
+        words.add(word);
+      }
+    }
+    if (words.isEmpty()) {
+      return null;
+    }
+    StringBuilder key = new StringBuilder();
+    for (String word : words) {
+      if (key.length() > 0) {
+        key.append(' ');
+      }
+      key.append(word);
+    }
+    return key.toString();
+  }
 }
@@ -0,0 +1,91 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+/**
+ * Il messaggio con cui un servent comunica ad un vicino la propria tabella di
+ * instradamento delle query. Un messaggio di azzeramento dice al vicino di ripartire
+ * da una tabella vuota della dimensione indicata; uno di aggiornamento contiene la
+ * differenza compressa da applicare alla tabella corrente. Non viene mai inoltrato.
+ * @author Michele Comignano
+ */
+class QueryRouteMessage extends Message {
+  /**
+   * Crea un messaggio di azzeramento.
+   * @param bits il logaritmo in base due del numero di posizioni della nuova tabella.
+   */
+  QueryRouteMessage(int bits) {
+    super(TYPE_ID);
+    this.variant = RESET;
+    this.bits = bits;
+    this.patch = new byte[0];
+  }
+  /**
+   * Crea un messaggio di aggiornamento.
+   * @param bits il logaritmo in base due del numero di posizioni della tabella.
+   * @param patch la differenza compressa.
+   */
+  QueryRouteMessage(int bits, byte[] patch) {
+    super(TYPE_ID);
+    this.variant = PATCH;
+    this.bits = bits;
+    this.patch = patch;
+  }
+  /**
+   * Ricostruisce un messaggio ricevuto.
+   * @param idHigh la metà alta dell'identificatore.
+   * @param idLow la metà bassa dell'identificatore.
+   * @param variant il tipo di messaggio, azzeramento o aggiornamento.
+   * @param bits il logaritmo in base due del numero di posizioni della tabella.
+   * @param patch la differenza compressa, vuota per un azzeramento.
+   */
+  QueryRouteMessage(long idHigh, long idLow, byte variant, int bits, byte[] patch) {
+    super(idHigh, idLow, TYPE_ID);
+    this.variant = variant;
+    this.bits = bits;
+    this.patch = patch;
+  }
+  /**
+   * serialVersionUID
+   */
+  private static final long serialVersionUID = 1L;
+  /**
+   * Il codice che identifica un messaggio di tabella di instradamento.
+   */
+  protected static final byte TYPE_ID = 0x30;
+  /**
+   * Il tipo di un messaggio di azzeramento.
+   */
+  static final byte RESET = 0;
+  /**
+   * Il tipo di un messaggio di aggiornamento.
+   */
+  static final byte PATCH = 1;
+  /**
+   * Azzeramento o aggiornamento.
+   */
+  protected byte variant;
+  /**
+   * Il logaritmo in base due del numero di posizioni della tabella.
+   */
+  protected int bits;
+  /**
+   * La differenza compressa.
+   */
+  protected byte[] patch;
+}
@@ -0,0 +1,224 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Una tabella di instradamento delle query, sul modello del Query Routing Protocol di
+ * Gnutella: una mappa di bit che riassume i nomi dei files condivisi da un servent,
+ * così che i vicini possano evitare di mandargli query a cui non potrà rispondere.
+ * <p>
+ * Il file server considera un file corrispondente ad una query se il suo nome
+ * contiene almeno una delle parole chiave. Per non perdere mai risultati, la tabella
+ * non contiene parole intere ma tutte le sequenze di tre caratteri dei nomi: se una
+ * parola chiave è contenuta in un nome, tutte le sue sequenze sono nella tabella. Una
+ * risposta negativa è quindi certa, una positiva solo probabile. Parole chiave più
+ * corte di tre caratteri non si possono verificare e fanno sempre passare la query.
+ * <p>
+ * Le tabelle viaggiano come differenza rispetto all'ultima inviata, compressa: la
+ * prima volta rispetto ad una tabella vuota, poi solo per i bit cambiati. Una tabella
+ * non viene mai modificata dopo essere stata costruita.
+ * @author Michele Comignano
+ */
+class QueryRouteTable {
+  /**
+   * Crea una tabella vuota.
+   * @param bits il logaritmo in base due del numero di posizioni.
+   */
+  QueryRouteTable(int bits) {
+    if (bits < MIN_BITS || bits > MAX_BITS) {
+      throw new IllegalArgumentException();
+    }
+    this.bits = bits;
+    words = new long[(1 << bits) / 64];
+  }
+  /**
+   * Costruisce la tabella che riassume i nomi di files dati.
+   * @param fileNames i nomi dei files condivisi.
+   * @param bits il logaritmo in base due del numero di posizioni.
+   * @return la tabella.
+   */
+  static QueryRouteTable fromFileNames(List<String> fileNames, int bits) {
+    QueryRouteTable table = new QueryRouteTable(bits);
+    for (int i = 0; i < fileNames.size(); i++) {
+      String name = fileNames.get(i).toLowerCase();
+      for (int j = 0; j + GRAM_LENGTH <= name.length(); j++) {
+        int slot = slotOf(name, j, bits);
+        table.words[slot >>> 6] |= 1L << slot;
+      }
+    }
+    return table;
+  }
+  /**
+   * Indica se il servent che ha questa tabella potrebbe rispondere ad una query.
+   * @param keyWords le parole chiave della query.
+   * @return <code>false</code> solo se nessuno dei files riassunti nella tabella può
+   * corrispondere alla query.
+   */
+  boolean mayMatch(String[] keyWords) {
+    for (int i = 0; i < keyWords.length; i++) {
+      if (mayContain(keyWords[i].toLowerCase())) {
+        return true;
+      }
+    }
+    return false;
+  }
+  /**
+   * Indica se un nome riassunto nella tabella potrebbe contenere la parola data.
+   * @param word la parola, già in minuscolo.
+   * @return <code>false</code> se nessun nome la contiene di sicuro.
+   */
+  private boolean mayContain(String word) {
+    if (word.length() < GRAM_LENGTH) {
+      return true;
+    }
+    for (int j = 0; j + GRAM_LENGTH <= word.length(); j++) {
+      int slot = slotOf(word, j, bits);
+      if ((words[slot >>> 6] & (1L << slot)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  /**
+   * Calcola la posizione di una sequenza di caratteri con l'hash moltiplicativo del
+   * Query Routing Protocol.
+   * @param s la stringa.
+   * @param start l'inizio della sequenza.
+   * @param bits il logaritmo del numero di posizioni.
+   * @return la posizione.
+   */
+  private static int slotOf(String s, int start, int bits) {
+    int h = 0;
+    for (int k = 0; k < GRAM_LENGTH; k++) {
+      h = h * 31 + s.charAt(start + k);
+    }
+    return (h * 0x4F1BBCDC) >>> (32 - bits);
+  }
+  /**
+   * Calcola la differenza compressa tra questa tabella e una precedente.
+   * @param previous la tabella precedente, della stessa dimensione, o <code>null</code>
+   * per una tabella vuota.
+   * @return la differenza da applicare a previous per ottenere questa tabella.
+   */
+  byte[] diff(QueryRouteTable previous) {
+    byte[] raw = new byte[words.length * 8];
+    for (int i = 0; i < words.length; i++) {
+      long word = previous == null ? words[i] : words[i] ^ previous.words[i];
+      for (int k = 0; k < 8; k++) {
+        raw[i * 8 + k] = (byte) (word >>> (56 - 8 * k));
+      }
+    }
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    deflater.setInput(raw);
+    deflater.finish();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    byte[] chunk = new byte[1024];
+    while (!deflater.finished()) {
+      out.write(chunk, 0, deflater.deflate(chunk));
+    }
+    deflater.end();
+    return out.toByteArray();
+  }
+  /**
+   * Applica una differenza compressa a questa tabella.
+   * @param patch la differenza prodotta da {@link #diff(QueryRouteTable)}.
+   * @return la nuova tabella.
+   * @throws IOException se la differenza non è valida per questa tabella.
+   */
+  QueryRouteTable apply(byte[] patch) throws IOException {
+    byte[] raw = new byte[words.length * 8];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(patch);
+      int n = 0;
+      while (n < raw.length && !inflater.finished()) {
+        int read = inflater.inflate(raw, n, raw.length - n);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += read;
+      }
+      // La differenza deve coprire esattamente la tabella, nè più nè meno.
+      if (n != raw.length || !inflater.finished()) {
+        throw new IOException("Differenza della tabella di instradamento non valida");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Differenza della tabella di instradamento non valida");
+    } finally {
+      inflater.end();
+    }
+    QueryRouteTable table = new QueryRouteTable(bits);
+    for (int i = 0; i < words.length; i++) {
+      long word = 0;
+      for (int k = 0; k < 8; k++) {
+        word = (word << 8) | (raw[i * 8 + k] & 0xff);
+      }
+      table.words[i] = words[i] ^ word;
+    }
+    return table;
+  }
+  /**
+   * @return il logaritmo in base due del numero di posizioni.
+   */
+  int getBits() {
+    return bits;
+  }
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof QueryRouteTable)) {
+      return false;
+    }
+    return Arrays.equals(words, ((QueryRouteTable) obj).words);
+  }
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(words);
+  }
+  /**
+   * La lunghezza delle sequenze di caratteri inserite nella tabella.
+   */
+  static final int GRAM_LENGTH = 3;
+  /**
+   * Il numero minimo di bit dell'indice di una posizione.
+   */
+  static final int MIN_BITS = 10;
+  /**
+   * Il numero massimo di bit dell'indice di una posizione.
+   */
+  static final int MAX_BITS = 20;
+  /**
+   * Il numero di bit dell'indice di una posizione nelle tabelle di questo servent.
+   */
+  static final int DEFAULT_BITS = 16;
+  /**
+   * Il logaritmo in base due del numero di posizioni.
+   */
+  private final int bits;
+  /**
+   * Le posizioni della tabella, 64 per ogni elemento.
+   */
+  private final long[] words;
+}
@@ -0,0 +1,72 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+/**
+ * Il messaggio con cui un camminatore casuale chiede al servent che ha avviato la
+ * ricerca se deve proseguire, e con cui questo risponde. Ha lo stesso identificatore
+ * del camminatore: la richiesta torna indietro lungo la rotta della query, come una
+ * query hit, e la risposta ripercorre all'andata la strada fatta dalla richiesta.
+ * @author Michele Comignano
+ */
+class QueryStatusMessage extends Message {
+  /**
+   * Crea un nuovo messaggio per il camminatore dato.
+   * @param walker il camminatore.
+   * @param variant richiesta, prosecuzione o arresto.
+   */
+  QueryStatusMessage(QueryMessage walker, byte variant) {
+    super(walker.idHigh, walker.idLow, TYPE_ID);
+    this.variant = variant;
+    setTtlAndHops(Util.WALKER_TTL, (byte) 0);
+  }
+  /**
+   * Ricostruisce un messaggio ricevuto.
+   * @param idHigh la metà alta dell'identificatore.
+   * @param idLow la metà bassa dell'identificatore.
+   * @param variant richiesta, prosecuzione o arresto.
+   */
+  QueryStatusMessage(long idHigh, long idLow, byte variant) {
+    super(idHigh, idLow, TYPE_ID);
+    this.variant = variant;
+  }
+  /**
+   * serialVersionUID
+   */
+  private static final long serialVersionUID = 1L;
+  /**
+   * Il codice che identifica un messaggio di stato di una ricerca.
+   */
+  protected static final byte TYPE_ID = 0x31;
+  /**
+   * Il tipo della richiesta di un camminatore.
+   */
+  static final byte CHECK = 0;
+  /**
+   * Il tipo della risposta che fa proseguire il camminatore.
+   */
+  static final byte CONTINUE = 1;
+  /**
+   * Il tipo della risposta che ferma il camminatore.
+   */
+  static final byte STOP = 2;
+  /**
+   * Richiesta, prosecuzione o arresto.
+   */
+  protected byte variant;
+}
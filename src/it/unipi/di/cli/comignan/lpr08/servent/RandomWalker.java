@@ -0,0 +1,264 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Gestisce le ricerche a camminatori casuali. Un camminatore è una query che ad ogni
+ * passo viene mandata ad un solo vicino scelto a caso anzichè a tutti: costa un
+ * messaggio per passo invece di un'inondazione e, con un ttl molto più alto, arriva
+ * lontano. Una ricerca parte con più camminatori, ognuno con un proprio
+ * identificatore così che non si scartino a vicenda come copie; le loro risposte
+ * finiscono comunque nella stessa raccolta.
+ * <p>
+ * Ogni {@link Util#WALKER_CHECK_HOPS} passi il servent che ha il camminatore lo tiene
+ * fermo e chiede al servent che ha avviato la ricerca se deve proseguire. La
+ * richiesta torna indietro lungo la rotta della query e la risposta ripercorre la
+ * strada della richiesta; se la risposta non arriva in tempo il camminatore viene
+ * abbandonato, per cui un camminatore non sopravvive mai al servent che lo ha
+ * avviato. Un camminatore che ripassa da un servent già visitato prosegue senza
+ * ottenere di nuovo le sue risposte. Le foglie non camminano: ricevono una copia
+ * della query da non inoltrare se la loro tabella di instradamento ammette una
+ * risposta.
+ * <p>
+ * Le query inondate e i camminatori usano le stesse connessioni: si distinguono solo
+ * per un'opzione della query.
+ * @author Michele Comignano
+ */
+class RandomWalker {
+  /**
+   * Crea il gestore dei camminatori di un servent.
+   * @param servent il servent.
+   */
+  RandomWalker(Servent servent) {
+    this.servent = servent;
+    parked = new RouteTable<Parked>(Util.WALKER_CHECK_TIMEOUT,
+            servent.settings.getMaxRouteEntries());
+    checks = new RouteTable<Connection>(servent.settings);
+  }
+  /**
+   * Fa partire i camminatori di una nuova ricerca, registrandone le rotte.
+   * @param first la query della ricerca, che diventa il primo camminatore.
+   * @param results la raccolta dei risultati della ricerca.
+   * @param count il numero di camminatori, almeno 1.
+   * @return i camminatori partiti.
+   */
+  QueryMessage[] launch(QueryMessage first, SearchResults results, int count) {
+    QueryMessage[] walkers = new QueryMessage[count];
+    List<Connection> peers = candidates(null);
+    int offset = peers.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(peers.size());
+    for (int i = 0; i < count; i++) {
+      QueryMessage walker = i == 0 ? first : new QueryMessage(first.keyWords);
+      walker.walker = true;
+      walker.setTtlAndHops(Util.WALKER_TTL, (byte) 0);
+      walkers[i] = walker;
+      if (i > 0) {
+        servent.searches.put(walker, results);
+      }
+      servent.setSeen(walker, servent.fakeConnection);
+      // Se i vicini sono meno dei camminatori, alcuni partono dallo stesso vicino e
+      // si separano al passo successivo.
+      if (!peers.isEmpty()) {
+        peers.get((offset + i) % peers.size()).sendQueryMessage(walker);
+      }
+    }
+    informLeaves(first, null);
+    return walkers;
+  }
+  /**
+   * Fa compiere un passo ad un camminatore ricevuto, già preparato per l'inoltro.
+   * @param walker il camminatore.
+   * @param from la connessione da cui è arrivato.
+   * @param firstVisit indica se il camminatore è passato di qui per la prima volta.
+   */
+  void walk(QueryMessage walker, Connection from, boolean firstVisit) {
+    if (firstVisit) {
+      informLeaves(walker, from);
+    }
+    if (walker.getHops() % Util.WALKER_CHECK_HOPS == 0) {
+      Connection back = servent.getSeenTable().get(walker);
+      if (back == servent.fakeConnection) {
+        // Il camminatore è tornato da chi lo ha avviato: la risposta è già qui.
+        if (!isWanted(walker)) {
+          return;
+        }
+      } else if (back != null) {
+        parked.put(walker, new Parked(walker, from));
+        checks.put(walker, servent.fakeConnection);
+        send(back, new QueryStatusMessage(walker, QueryStatusMessage.CHECK));
+        return;
+      }
+    }
+    step(walker, from);
+  }
+  /**
+   * Gestisce un messaggio di stato ricevuto: una richiesta viene inoltrata verso chi
+   * ha avviato la ricerca o, se la ricerca è di questo servent, ottiene risposta; una
+   * risposta viene inoltrata verso il camminatore fermo o, se il camminatore è fermo
+   * qui, lo fa proseguire o lo abbandona.
+   * @param msg il messaggio.
+   * @param from la connessione da cui è arrivato.
+   */
+  void handle(QueryStatusMessage msg, Connection from) {
+    if (msg.variant == QueryStatusMessage.CHECK) {
+      Connection back = servent.getSeenTable().get(msg);
+      if (back == null) {
+        return;
+      }
+      if (back == servent.fakeConnection) {
+        send(from, new QueryStatusMessage(msg.idHigh, msg.idLow, isWanted(msg)
+                ? QueryStatusMessage.CONTINUE : QueryStatusMessage.STOP));
+        return;
+      }
+      checks.put(msg, from);
+      relay(msg, back);
+      return;
+    }
+    Connection next = checks.remove(msg);
+    if (next == null) {
+      return;
+    }
+    if (next != servent.fakeConnection) {
+      relay(msg, next);
+      return;
+    }
+    Parked walker = parked.remove(msg);
+    if (walker != null && msg.variant == QueryStatusMessage.CONTINUE) {
+      step(walker.walker, walker.from);
+    }
+  }
+  /**
+   * Indica se la ricerca a cui appartiene un camminatore ha ancora bisogno di
+   * risultati. Va chiamato solo dal servent che l'ha avviata.
+   * @param msg un messaggio con l'identificatore del camminatore.
+   * @return <code>true</code> se la ricerca non è stata fermata e non ha ancora
+   * abbastanza risultati.
+   */
+  private boolean isWanted(Message msg) {
+    SearchResults results = servent.searches.get(msg);
+    return results != null && results.size() < servent.settings.getDynamicQueryTarget();
+  }
+  /**
+   * Manda un camminatore ad un vicino scelto a caso, evitando quello da cui è
+   * arrivato finchè ce ne sono altri.
+   * @param walker il camminatore.
+   * @param from la connessione da cui è arrivato.
+   */
+  private void step(QueryMessage walker, Connection from) {
+    List<Connection> peers = candidates(from);
+    if (peers.isEmpty()) {
+      if (from == null || from.mustClose || from.kind == Connection.LEAF_CONNECTION) {
+        return;
+      }
+      peers.add(from);
+    }
+    peers.get(ThreadLocalRandom.current().nextInt(peers.size())).sendQueryMessage(walker);
+  }
+  /**
+   * Manda una copia non inoltrabile della query alle foglie che potrebbero
+   * rispondere.
+   * @param query la query.
+   * @param from la connessione da cui è arrivata, da saltare.
+   */
+  private void informLeaves(QueryMessage query, Connection from) {
+    QueryMessage copy = null;
+    for (Connection conn : servent.connections.snapshot()) {
+      if (conn != from && conn.kind == Connection.LEAF_CONNECTION && conn.mayAnswer(query)) {
+        if (copy == null) {
+          copy = new QueryMessage(query.idHigh, query.idLow, query.keyWords);
+          copy.setTtlAndHops((byte) 0, query.getHops());
+        }
+        conn.sendQueryMessage(copy);
+      }
+    }
+  }
+  /**
+   * Elenca i vicini a cui si può mandare un camminatore.
+   * @param from la connessione da escludere, o <code>null</code>.
+   * @return i vicini, foglie escluse.
+   */
+  private List<Connection> candidates(Connection from) {
+    List<Connection> peers = new ArrayList<Connection>();
+    for (Connection conn : servent.connections.snapshot()) {
+      if (conn != from && !conn.mustClose && conn.kind != Connection.LEAF_CONNECTION) {
+        peers.add(conn);
+      }
+    }
+    return peers;
+  }
+  /**
+   * Inoltra un messaggio di stato se ha ancora ttl.
+   * @param msg il messaggio.
+   * @param dest la connessione verso cui inoltrarlo.
+   */
+  private void relay(QueryStatusMessage msg, Connection dest) {
+    try {
+      msg.prepareForward();
+      send(dest, msg);
+    } catch (DeadMessageException e) {
+    }
+  }
+  /**
+   * Accoda un messaggio di stato e lo conteggia tra i messaggi dei camminatori.
+   * @param dest la connessione verso cui inviarlo.
+   * @param msg il messaggio.
+   */
+  private void send(Connection dest, QueryStatusMessage msg) {
+    dest.forward(msg, dest);
+    servent.recordQueryMessage(true);
+  }
+  /**
+   * Un camminatore fermo in attesa di sapere se deve proseguire.
+   */
+  private static class Parked {
+    /**
+     * Ricorda un camminatore fermo.
+     * @param walker il camminatore.
+     * @param from la connessione da cui è arrivato.
+     */
+    Parked(QueryMessage walker, Connection from) {
+      this.walker = walker;
+      this.from = from;
+    }
+    /**
+     * Il camminatore.
+     */
+    final QueryMessage walker;
+    /**
+     * La connessione da cui è arrivato.
+     */
+    final Connection from;
+  }
+  /**
+   * Il servent per cui lavora il gestore.
+   */
+  private final Servent servent;
+  /**
+   * I camminatori fermi qui in attesa di una risposta, dimenticati se la risposta non
+   * arriva entro {@link Util#WALKER_CHECK_TIMEOUT}.
+   */
+  private final RouteTable<Parked> parked;
+  /**
+   * Le connessioni da cui sono arrivate le richieste dei camminatori, lungo cui
+   * rimandare le risposte.
+   */
+  private final RouteTable<Connection> checks;
+}
@@ -0,0 +1,91 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Un messaggio ricevuto nel formato binario che il servent deve solo inoltrare.
+ * Dell'intero messaggio vengono interpretati solo identificatore, tipo, ttl e
+ * numero di inoltri; il resto resta nei bytes ricevuti, che vengono rispediti così
+ * come sono, salvo i pochi campi di lunghezza fissa che un servent intermedio può
+ * dover completare. In questo modo una query hit o una push di passaggio non
+ * costano la costruzione di stringhe e indirizzi che nessuno leggerà.
+ * <p>
+ * Se il messaggio deve essere inviato ad un peer che usa un altro codec viene
+ * ricostruito per intero solo in quel momento.
+ * @author Michele Comignano
+ */
+class RawMessage extends Message {
+  /**
+   * Crea un messaggio copiando la sua traduzione binaria, di cui legge l'intestazione.
+   * @param data il buffer che contiene la traduzione.
+   * @param offset la posizione della traduzione nel buffer.
+   * @param length la lunghezza della traduzione.
+   */
+  RawMessage(byte[] data, int offset, int length) {
+    super(BinaryCodec.readLong(data, offset), BinaryCodec.readLong(data, offset + 8),
+            data[offset + BinaryCodec.TYPE_OFFSET]);
+    frame = new byte[length];
+    System.arraycopy(data, offset, frame, 0, length);
+    setTtlAndHops(frame[BinaryCodec.TTL_OFFSET], frame[BinaryCodec.HOPS_OFFSET]);
+    // La traduzione binaria è già pronta: ttl e inoltri vengono aggiornati all'invio.
+    encoding = new MessageCodec.Encoding(BinaryCodec.class, frame, getTtl(), getHops());
+  }
+  /**
+   * Completa un campo indirizzo del messaggio se è ancora vuoto, come farebbe il
+   * primo servent che riceve il messaggio completo.
+   * @param fieldOffset la posizione del campo nella traduzione.
+   * @param address l'indirizzo da scrivere.
+   */
+  void fillAddress(int fieldOffset, InetAddress address) {
+    if (frame[fieldOffset] != 0) {
+      return;
+    }
+    byte[] raw = address.getAddress();
+    frame[fieldOffset] = (byte) raw.length;
+    System.arraycopy(raw, 0, frame, fieldOffset + 1, raw.length);
+  }
+  /**
+   * Legge un byte della traduzione.
+   * @param offset la posizione del byte.
+   * @return il byte letto.
+   */
+  byte byteAt(int offset) {
+    return frame[offset];
+  }
+  /**
+   * Ricostruisce per intero il messaggio, con ttl e inoltri correnti.
+   * @return il messaggio completo.
+   * @throws IOException se la traduzione non è valida.
+   */
+  Message decode() throws IOException {
+    Message msg = BinaryCodec.parse(frame, 0, frame.length);
+    msg.setTtlAndHops(getTtl(), getHops());
+    return msg;
+  }
+  /**
+   * serialVersionUID
+   */
+  private static final long serialVersionUID = 1L;
+  /**
+   * La traduzione binaria del messaggio, compresa l'intestazione.
+   */
+  private final byte[] frame;
+}
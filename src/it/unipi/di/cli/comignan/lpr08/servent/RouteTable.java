@@ -0,0 +1,467 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+/**
+ * Una tabella di instradamento che associa l'identificatore univoco di un messaggio
+ * ad un valore, tipicamente la connessione da cui il messaggio è arrivato e verso cui
+ * vanno rimandate le risposte.
+ * <p>
+ * A differenza di una <code>Hashtable</code> indicizzata con i messaggi, le chiavi
+ * sono le due metà dell'identificatore conservate in array di <code>long</code> e i
+ * conflitti sono risolti con l'indirizzamento aperto a scansione lineare: cercare,
+ * inserire e togliere non allocano nulla e non seguono catene di puntatori. Le
+ * rimozioni spostano all'indietro gli elementi successivi dello stesso gruppo, per
+ * cui non restano segnaposto a rallentare le ricerche. La tabella raddoppia quando
+ * è piena per metà.
+ * <p>
+ * Le associazioni scadono dopo un tempo di vita fissato: una rotta vecchia non serve
+ * più, perchè le risposte arrivano entro pochi secondi, e senza scadenza la tabella
+ * di un nodo molto attraversato crescerebbe per tutta la vita del processo. Le
+ * scadenze sono gestite da una ruota temporale: ogni identificatore inserito viene
+ * annotato nel settore del tick corrente e quando un settore diventa abbastanza
+ * vecchio i suoi identificatori vengono tolti in blocco, con un costo costante per
+ * ogni inserimento. La ruota avanza pigramente ad ogni operazione, senza thread
+ * dedicati. Oltre al tempo di vita c'è un limite al numero di associazioni: se
+ * viene superato si tolgono per prime le più vecchie.
+ * <p>
+ * Tutti i metodi sono sincronizzati sulla tabella.
+ * @param <V> il tipo dei valori associati agli identificatori.
+ * @author Michele Comignano
+ */
+class RouteTable<V> {
+  /**
+   * Crea una tabella vuota.
+   * @param lifetime il tempo di vita in millisecondi di ogni associazione, almeno 1.
+   * @param maxEntries il numero massimo di associazioni, almeno 1.
+   */
+  RouteTable(long lifetime, int maxEntries) {
+    this.maxEntries = maxEntries;
+    tickLength = (lifetime + WHEEL_SLOTS - 2) / (WHEEL_SLOTS - 1);
+    ticksToLive = (lifetime + tickLength - 1) / tickLength;
+    origin = System.nanoTime();
+    wheel = new long[WHEEL_SLOTS][];
+    wheelHeads = new int[WHEEL_SLOTS];
+    wheelCounts = new int[WHEEL_SLOTS];
+    oldestTick = 0;
+    allocate(MIN_SLOTS);
+    size = 0;
+    expired = 0;
+    evicted = 0;
+  }
+  /**
+   * Crea una tabella con tempo di vita e limite letti dalle impostazioni.
+   * @param settings le impostazioni del servent.
+   */
+  RouteTable(ServentSettings settings) {
+    this(settings.getRouteLifetime(), settings.getMaxRouteEntries());
+  }
+  /**
+   * Cerca il valore associato all'identificatore di un messaggio.
+   * @param msg il messaggio con l'identificatore da cercare.
+   * @return il valore o <code>null</code> se l'identificatore non è presente.
+   */
+  V get(Message msg) {
+    return get(msg.idHigh, msg.idLow);
+  }
+  /**
+   * Cerca il valore associato ad un identificatore.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @return il valore o <code>null</code> se l'identificatore non è presente.
+   */
+  @SuppressWarnings("unchecked")
+  synchronized V get(long high, long low) {
+    advance();
+    int i = find(high, low);
+    return i < 0 ? null : (V) values[i];
+  }
+  /**
+   * Associa un valore all'identificatore di un messaggio, sostituendo quello
+   * eventualmente già presente.
+   * @param msg il messaggio con l'identificatore.
+   * @param value il valore, diverso da <code>null</code>.
+   * @return il valore precedente o <code>null</code> se non ve n'era uno.
+   */
+  V put(Message msg, V value) {
+    return put(msg.idHigh, msg.idLow, value, true);
+  }
+  /**
+   * Associa un valore all'identificatore di un messaggio solo se questo non è già
+   * presente. Permette di verificare e segnare un messaggio come visto in un'unica
+   * operazione.
+   * @param msg il messaggio con l'identificatore.
+   * @param value il valore, diverso da <code>null</code>.
+   * @return il valore già presente, lasciato invariato, o <code>null</code> se il
+   * nuovo valore è stato inserito.
+   */
+  V putIfAbsent(Message msg, V value) {
+    return put(msg.idHigh, msg.idLow, value, false);
+  }
+  /**
+   * Inserisce o aggiorna un'associazione.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @param value il valore, diverso da <code>null</code>.
+   * @param replace indica se sostituire un valore già presente.
+   * @return il valore precedente o <code>null</code> se non ve n'era uno.
+   */
+  @SuppressWarnings("unchecked")
+  private synchronized V put(long high, long low, V value, boolean replace) {
+    if (value == null) {
+      throw new NullPointerException();
+    }
+    long now = advance();
+    int mask = values.length - 1;
+    int i = slotOf(high, low, mask);
+    while (values[i] != null) {
+      if (highs[i] == high && lows[i] == low) {
+        V old = (V) values[i];
+        if (replace) {
+          // Una rotta aggiornata riparte da capo: la vecchia annotazione sulla ruota
+          // non corrisponderà più e sarà ignorata.
+          values[i] = value;
+          ticks[i] = now;
+          schedule(high, low, now);
+        }
+        return old;
+      }
+      i = (i + 1) & mask;
+    }
+    highs[i] = high;
+    lows[i] = low;
+    values[i] = value;
+    ticks[i] = now;
+    schedule(high, low, now);
+    if (++size * 2 > values.length) {
+      resize(values.length * 2);
+    }
+    while (size > maxEntries) {
+      evictOldest();
+    }
+    return null;
+  }
+  /**
+   * Toglie l'associazione con l'identificatore di un messaggio.
+   * @param msg il messaggio con l'identificatore.
+   * @return il valore che era associato o <code>null</code> se non ve n'era uno.
+   */
+  V remove(Message msg) {
+    return remove(msg.idHigh, msg.idLow);
+  }
+  /**
+   * Toglie l'associazione con un identificatore.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @return il valore che era associato o <code>null</code> se non ve n'era uno.
+   */
+  @SuppressWarnings("unchecked")
+  synchronized V remove(long high, long low) {
+    advance();
+    int i = find(high, low);
+    if (i < 0) {
+      return null;
+    }
+    V old = (V) values[i];
+    delete(i);
+    return old;
+  }
+  /**
+   * @return il numero di identificatori presenti.
+   */
+  synchronized int size() {
+    advance();
+    return size;
+  }
+  /**
+   * @return il numero di associazioni tolte perchè scadute.
+   */
+  synchronized long getExpired() {
+    advance();
+    return expired;
+  }
+  /**
+   * @return il numero di associazioni tolte, prima della scadenza, per restare entro
+   * il limite.
+   */
+  synchronized long getEvicted() {
+    return evicted;
+  }
+  /**
+   * Fa avanzare la ruota fino al tick corrente togliendo le associazioni scadute. Va
+   * chiamato tenendo il lock.
+   * @return il tick corrente.
+   */
+  private long advance() {
+    long now = (System.nanoTime() - origin) / 1000000 / tickLength;
+    long last = now - ticksToLive;
+    if (oldestTick > last) {
+      return now;
+    }
+    // Dopo una lunga inattività basta un giro di ruota: i settori non possono
+    // contenere tick più vecchi di oldestTick né più recenti dell'ultimo giro.
+    long end = Math.min(last, oldestTick + WHEEL_SLOTS - 1);
+    for (long tick = oldestTick; tick <= end; tick++) {
+      int slot = (int) (tick % WHEEL_SLOTS);
+      long[] keys = wheel[slot];
+      for (int k = wheelHeads[slot]; k < wheelCounts[slot]; k++) {
+        if (dropIfStamped(keys[2 * k], keys[2 * k + 1], tick)) {
+          expired++;
+        }
+      }
+      clearSlot(slot);
+    }
+    oldestTick = last + 1;
+    return now;
+  }
+  /**
+   * Toglie l'associazione più vecchia ancora presente. Va chiamato tenendo il lock e
+   * solo con la tabella non vuota.
+   */
+  private void evictOldest() {
+    while (true) {
+      int slot = (int) (oldestTick % WHEEL_SLOTS);
+      if (wheelHeads[slot] == wheelCounts[slot]) {
+        clearSlot(slot);
+        oldestTick++;
+        continue;
+      }
+      int k = wheelHeads[slot]++;
+      long[] keys = wheel[slot];
+      if (dropIfStamped(keys[2 * k], keys[2 * k + 1], oldestTick)) {
+        evicted++;
+        return;
+      }
+    }
+  }
+  /**
+   * Annota un identificatore nel settore della ruota di un tick. Va chiamato tenendo
+   * il lock.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @param tick il tick di inserimento.
+   */
+  private void schedule(long high, long low, long tick) {
+    int slot = (int) (tick % WHEEL_SLOTS);
+    long[] keys = wheel[slot];
+    int count = wheelCounts[slot];
+    if (keys == null) {
+      keys = wheel[slot] = new long[2 * WHEEL_SLOT_CAPACITY];
+    } else if (2 * count == keys.length) {
+      long[] larger = new long[keys.length * 2];
+      System.arraycopy(keys, 0, larger, 0, keys.length);
+      keys = wheel[slot] = larger;
+    }
+    keys[2 * count] = high;
+    keys[2 * count + 1] = low;
+    wheelCounts[slot] = count + 1;
+  }
+  /**
+   * Svuota un settore della ruota, liberando la memoria se era cresciuto molto.
+   * @param slot il settore.
+   */
+  private void clearSlot(int slot) {
+    wheelHeads[slot] = 0;
+    wheelCounts[slot] = 0;
+    if (wheel[slot] != null && wheel[slot].length > 2 * WHEEL_SLOT_CAPACITY * 16) {
+      wheel[slot] = null;
+    }
+  }
+  /**
+   * Toglie un'associazione solo se è ancora quella annotata nel tick dato, e non è
+   * stata nel frattempo tolta o aggiornata.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @param tick il tick dell'annotazione.
+   * @return <code>true</code> se l'associazione è stata tolta.
+   */
+  private boolean dropIfStamped(long high, long low, long tick) {
+    int i = find(high, low);
+    if (i < 0 || ticks[i] != tick) {
+      return false;
+    }
+    delete(i);
+    return true;
+  }
+  /**
+   * Cerca la posizione di un identificatore. Va chiamato tenendo il lock.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @return la posizione o -1 se l'identificatore non è presente.
+   */
+  private int find(long high, long low) {
+    int mask = values.length - 1;
+    int i = slotOf(high, low, mask);
+    while (values[i] != null) {
+      if (highs[i] == high && lows[i] == low) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+  /**
+   * Svuota una posizione riportando indietro gli elementi successivi che senza di
+   * essa non sarebbero più raggiungibili dalla loro posizione naturale. Va chiamato
+   * tenendo il lock.
+   * @param hole la posizione da svuotare.
+   */
+  private void delete(int hole) {
+    int mask = values.length - 1;
+    int i = (hole + 1) & mask;
+    while (values[i] != null) {
+      int home = slotOf(highs[i], lows[i], mask);
+      // L'elemento in i può occupare il buco solo se la sua posizione naturale non
+      // cade, ciclicamente, tra il buco escluso e i incluso.
+      boolean reachable = hole <= i ? (hole < home && home <= i) : (hole < home || home <= i);
+      if (!reachable) {
+        highs[hole] = highs[i];
+        lows[hole] = lows[i];
+        ticks[hole] = ticks[i];
+        values[hole] = values[i];
+        hole = i;
+      }
+      i = (i + 1) & mask;
+    }
+    values[hole] = null;
+    size--;
+  }
+  /**
+   * Porta la tabella al numero di posizioni dato reinserendo tutti gli elementi.
+   * Va chiamato tenendo il lock.
+   * @param slots il nuovo numero di posizioni, una potenza di due.
+   */
+  private void resize(int slots) {
+    long[] oldHighs = highs;
+    long[] oldLows = lows;
+    long[] oldTicks = ticks;
+    Object[] oldValues = values;
+    allocate(slots);
+    int mask = slots - 1;
+    for (int j = 0; j < oldValues.length; j++) {
+      if (oldValues[j] != null) {
+        int i = slotOf(oldHighs[j], oldLows[j], mask);
+        while (values[i] != null) {
+          i = (i + 1) & mask;
+        }
+        highs[i] = oldHighs[j];
+        lows[i] = oldLows[j];
+        ticks[i] = oldTicks[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+  /**
+   * Alloca gli array delle posizioni, tutte vuote.
+   * @param slots il numero di posizioni.
+   */
+  private void allocate(int slots) {
+    highs = new long[slots];
+    lows = new long[slots];
+    ticks = new long[slots];
+    values = new Object[slots];
+  }
+  /**
+   * Calcola la posizione naturale di un identificatore mescolandone tutti i bit, così
+   * che anche identificatori che differiscono di poco finiscano lontani.
+   * @param high la metà alta dell'identificatore.
+   * @param low la metà bassa dell'identificatore.
+   * @param mask il numero di posizioni meno uno.
+   * @return la posizione naturale.
+   */
+  private static int slotOf(long high, long low, int mask) {
+    long h = high * 0x9E3779B97F4A7C15L ^ low;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+  /**
+   * Il numero minimo di posizioni della tabella.
+   */
+  private static final int MIN_SLOTS = 64;
+  /**
+   * Il numero di settori della ruota temporale.
+   */
+  private static final int WHEEL_SLOTS = 64;
+  /**
+   * Il numero di identificatori che un settore può annotare prima di ingrandirsi.
+   */
+  private static final int WHEEL_SLOT_CAPACITY = 16;
+  /**
+   * Le metà alte degli identificatori.
+   */
+  private long[] highs;
+  /**
+   * Le metà basse degli identificatori.
+   */
+  private long[] lows;
+  /**
+   * I tick di inserimento delle associazioni.
+   */
+  private long[] ticks;
+  /**
+   * I valori associati; una posizione è libera se il suo valore è <code>null</code>.
+   */
+  private Object[] values;
+  /**
+   * Il numero di identificatori presenti.
+   */
+  private int size;
+  /**
+   * Il numero massimo di identificatori.
+   */
+  private final int maxEntries;
+  /**
+   * La durata in millisecondi di un tick della ruota.
+   */
+  private final long tickLength;
+  /**
+   * Il numero di tick dopo cui un'associazione scade.
+   */
+  private final long ticksToLive;
+  /**
+   * L'istante, in nanosecondi, corrispondente al tick 0.
+   */
+  private final long origin;
+  /**
+   * I settori della ruota: per ognuno gli identificatori inseriti nel suo tick, a
+   * coppie di metà alta e bassa.
+   */
+  private final long[][] wheel;
+  /**
+   * Per ogni settore, la prima annotazione non ancora esaminata.
+   */
+  private final int[] wheelHeads;
+  /**
+   * Per ogni settore, il numero di annotazioni.
+   */
+  private final int[] wheelCounts;
+  /**
+   * Il tick più vecchio le cui annotazioni non sono ancora state esaminate.
+   */
+  private long oldestTick;
+  /**
+   * Il conteggio delle associazioni scadute.
+   */
+  private long expired;
+  /**
+   * Il conteggio delle associazioni tolte per restare entro il limite.
+   */
+  private long evicted;
+}
@@ -25,15 +25,18 @@ import java.net.InetAddress;
  * @author michele
  */
 public class SearchResult {
-  protected SearchResult(byte[] searchId, InetAddress address, int fileServerPort, String fileName,
-          boolean firewalled) {
+  protected SearchResult(long searchIdHigh, long searchIdLow, InetAddress address, int fileServerPort, String fileName,
+          boolean firewalled, boolean cached) {
     this.address = address;
-    this.searchId = searchId;
+    this.searchIdHigh = searchIdHigh;
+    this.searchIdLow = searchIdLow;
     this.fileServerPort = fileServerPort;
     this.fileName = fileName;
     this.firewalled = firewalled;
+    this.cached = cached;
   }
-  protected byte[] searchId;
+  protected long searchIdHigh;
+  protected long searchIdLow;
   protected InetAddress address;
   public InetAddress getAddress() {
     return address;
@@ -50,4 +53,13 @@ public class SearchResult {
   }
   protected String fileName;
   protected boolean firewalled;
+  /**
+   * Indica se il risultato arriva dalla cache di un servent intermedio, e potrebbe
+   * quindi non essere più disponibile.
+   * @return <code>true</code> se il risultato è stato preso da una cache.
+   */
+  public boolean isCached() {
+    return cached;
+  }
+  protected boolean cached;
 }
\ No newline at end of file
@@ -17,6 +17,7 @@
 
 package it.unipi.di.cli.comignan.lpr08.servent;
 
+import java.net.InetAddress;
 import java.util.Vector;
 
 /**
@@ -33,14 +34,79 @@ public class SearchResults extends Vector<SearchResult> {
    * ivi contenuti.
    */
   protected Message id;
+  /**
+   * La ricerca dinamica che raccoglie i risultati, se la ricerca è stata avviata in
+   * questo modo.
+   */
+  transient volatile DynamicQuery query;
+  /**
+   * Le parole chiave normalizzate della ricerca, o <code>null</code> se la ricerca non
+   * può essere condivisa.
+   */
+  transient String key;
+  /**
+   * L'istante di avvio della ricerca.
+   */
+  transient long started;
+  /**
+   * Il numero di chiamanti che condividono la ricerca e non l'hanno ancora fermata.
+   * E' protetto dal lock delle ricerche attive del servent.
+   */
+  transient int callers;
+  /**
+   * I camminatori casuali della ricerca, o <code>null</code> se la query è stata
+   * inondata.
+   */
+  transient QueryMessage[] walkers;
   protected SearchResults(Message id) {
     this.id = id;
+    started = System.currentTimeMillis();
+    callers = 1;
   }
-  protected void add(QueryHitMessage hit) {
+  /**
+   * Restituisce la stima dei messaggi risparmiati dalla ricerca rispetto ad un
+   * flooding completo. E' nota solo quando una ricerca dinamica ha smesso di
+   * interrogare vicini; per le altre ricerche vale sempre 0.
+   * @return la stima dei messaggi risparmiati.
+   */
+  public long getSavedMessages() {
+    DynamicQuery q = query;
+    return q == null ? 0 : q.getSavedMessages();
+  }
+  /**
+   * Aggiunge i risultati contenuti in una query hit. Un file dello stesso servent già
+   * presente non viene aggiunto di nuovo, come succede quando risponde sia il servent
+   * sia la cache di un servent intermedio; se però la nuova hit arriva direttamente
+   * dal servent, il risultato non è più considerato preso da una cache.
+   * @param hit la query hit.
+   */
+  protected synchronized void add(QueryHitMessage hit) {
     for (int i = 0; i < hit.matches.length; i++) {
-      add(new SearchResult(hit.messageId, hit.address, hit.fileServerPort, hit.matches[i],
-              hit.firewalled));
+      SearchResult known = find(hit.address, hit.fileServerPort, hit.matches[i]);
+      if (known == null) {
+        add(new SearchResult(hit.idHigh, hit.idLow, hit.address, hit.fileServerPort,
+                hit.matches[i], hit.firewalled, hit.cached));
+      } else if (!hit.cached) {
+        known.cached = false;
+      }
+    }
+  }
+  /**
+   * Cerca un risultato già raccolto.
+   * @param address l'indirizzo del servent.
+   * @param fileServerPort la porta del file server.
+   * @param fileName il nome del file.
+   * @return il risultato o <code>null</code> se non c'è.
+   */
+  private SearchResult find(InetAddress address, int fileServerPort, String fileName) {
+    for (int i = 0; i < size(); i++) {
+      SearchResult result = get(i);
+      if (result.fileServerPort == fileServerPort && result.fileName.equals(fileName) &&
+              result.address.equals(address)) {
+        return result;
+      }
     }
+    return null;
   }
 }
 
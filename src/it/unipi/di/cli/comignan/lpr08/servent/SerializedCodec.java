@@ -0,0 +1,61 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Il codec che usa la serializzazione di Java, un frame per messaggio. A differenza
+ * di un unico flusso di oggetti per tutta la connessione, ogni frame è
+ * indipendente dagli altri e nulla resta referenziato dopo la lettura.
+ * @author Michele Comignano
+ */
+class SerializedCodec extends MessageCodec {
+  @Override
+  String getName() {
+    return NAME;
+  }
+  @Override
+  protected byte[] write(Message msg) throws IOException {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream(256);
+    ObjectOutputStream objOut = new ObjectOutputStream(byteOut);
+    objOut.writeObject(msg);
+    objOut.close();
+    return byteOut.toByteArray();
+  }
+  @Override
+  protected Message read(byte[] data, int offset, int length) throws IOException {
+    ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(data, offset,
+            length));
+    try {
+      return (Message) objIn.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Messaggio sconosciuto: " + e.getMessage());
+    } catch (ClassCastException e) {
+      throw new IOException("Il frame non contiene un messaggio");
+    }
+  }
+  /**
+   * Il nome del codec nella stretta di mano.
+   */
+  static final String NAME = "serialized";
+}
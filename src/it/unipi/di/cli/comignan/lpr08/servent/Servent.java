@@ -27,14 +27,16 @@ import java.net.InetAddress;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Vector;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Il Servent rappresenza la principale entità nella rete Mini-Gnutella, esso agisce sia da server 
@@ -58,6 +60,27 @@ public class Servent extends Forwarder implements ServentRemote {
    */
   public Servent(ServentGroup cache, int connectPort, int explorePort, int fileServerPort,
           String sharedFolder, int connectionsLimit, SimpleLogger logger, boolean firewalled) {
+    this(cache, connectPort, explorePort, fileServerPort, sharedFolder, connectionsLimit, logger,
+            firewalled, new ServentSettings());
+  }
+  /**
+   * Crea un nuovo Servent come il costruttore precedente, permettendo di specificare
+   * le impostazioni di funzionamento.
+   * @param cache la cache con i servents conosciuti dall'ultima connessione.
+   * @param explorePort la porta udp per lo scambio di pacchetti di ping e pong.
+   * @param connectPort la porta tcp per le connessioni agli altri servents.
+   * @param fileServerPort la porta di ascolto del file server.
+   * @param sharedFolder il percorso della cartella condivisa.
+   * @param connectionsLimit il nassimo numero di connessioni da stabilire.
+   * @param logger un logger da usare per mostrare i messaggi.
+   * @param firewalled indica se il servent è dietro un firewall.
+   * @param settings le impostazioni di funzionamento del servent.
+   */
+  public Servent(ServentGroup cache, int connectPort, int explorePort, int fileServerPort,
+          String sharedFolder, int connectionsLimit, SimpleLogger logger, boolean firewalled,
+          ServentSettings settings) {
+    super(settings);
+    this.settings = settings;
     this.sharedFolder = sharedFolder;
     this.cache = cache;
     this.logger = logger;
@@ -66,44 +89,80 @@ public class Servent extends Forwarder implements ServentRemote {
     this.explorePort = explorePort;
     this.fileServerPort = fileServerPort;
     seenBSs = new LinkedList<BootstrapServerRemote>();
-    exec = Executors.newCachedThreadPool();
     initDone = false;
     mustHalt = true;
     this.firewalled = firewalled;
-    connections = new LinkedList<Connection>();
-    indexedConnections = new Hashtable<ServentDescriptor, Connection>();
-    fakeConnection = new Connection((Servent) null, (ServentDescriptor) null);
-    searches = new Hashtable<Message, SearchResults>();
-    seenQueryHit = new Hashtable<Message, Connection>();
+    connections = new ConnectionRegistry();
+    fakeConnection = new Connection(this, (ServentDescriptor) null);
+    searches = new RouteTable<SearchResults>(settings);
+    activeSearches = new HashMap<String, SearchResults>();
+    seenQueryHit = new RouteTable<Connection>(settings);
+    queryKeys = new RouteTable<String>(settings);
+    receivedQueries = new AtomicLong();
+    coalescedSearches = new AtomicLong();
+    floodMessages = new AtomicLong();
+    walkerMessages = new AtomicLong();
+    walkers = new RandomWalker(this);
+    queryForwards = new AtomicLong();
+    suppressedQueryForwards = new AtomicLong();
+    dynamicQueries = new AtomicLong();
+    dynamicQueryNeighbours = new AtomicLong();
+    savedQueryMessages = new AtomicLong();
   }
   @Override
   public void run() {
+    virtualThreads = settings.isVirtualThreads() && Threads.isVirtualAvailable();
+    exec = Threads.newExecutor(virtualThreads, "servent-task-");
+    threadFactory = Threads.newFactory(virtualThreads, "servent-sender-");
+    timer = Threads.newTimer("servent-timer");
+    if (settings.isQueryHitCache()) {
+      hitCache = new QueryHitCache(Util.QUERY_HIT_CACHE_LIFETIME, settings.getQueryHitCacheBytes());
+    }
     mustHalt = false;
+    startTime = System.currentTimeMillis();
     ServerSocket serverSocket = null;
     fileServer = null;
-    Thread reliableManager = null, queryMessageForwarder = null, networkExplorer = null;
+    Thread reliableManager = null, queryMessageForwarder = null;
     try {
       fileServer = new FileServer(sharedFolder, this, fileServerPort);
+      if (settings.isNioTransport()) {
+        overlay = new NioOverlay(this, settings.getEventLoops());
+        overlay.start(firewalled ? -1 : connectPort);
+      }
       if (!firewalled) {
-        serverSocket = new ServerSocket(connectPort);
-        serverSocket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
+        if (overlay == null) {
+          serverSocket = new ServerSocket(connectPort);
+          serverSocket.setSoTimeout(Util.SOCKET_SO_TIMEOUT);
+        }
         (networkExplorer = new NetworkExplorer(this, explorePort)).start();
         (reliableManager = new ReliableManager()).start();
         fileServer.start();
       }
-      (queryMessageForwarder = new Sender()).start();
+      (queryMessageForwarder = newThread(new Sender())).start();
     } catch (IOException e) {
       logger.appendError("Impossibile avviare il servent", e);
       mustHalt = true;
     }
+    if (settings.isVirtualThreads() && !virtualThreads) {
+      logger.appendError("Thread virtuali non disponibili, uso i thread di sistema");
+    }
     if (!mustHalt) {
       cacheConnect();
       logger.appendMessage("Servent avviato");
     }
     initDone = true;
+    long routesUpdated = System.currentTimeMillis();
     while (!mustHalt) {
+      if (settings.isQueryRouting() &&
+              System.currentTimeMillis() - routesUpdated >= Util.QUERY_ROUTES_UPDATE_INTERVAL) {
+        updateQueryRoutes();
+        routesUpdated = System.currentTimeMillis();
+      }
+      if (isTwoTier()) {
+        checkRole();
+      }
       try {
-        if (!firewalled) {
+        if (serverSocket != null) {
           Socket dataSocket = serverSocket.accept();
           exec.execute(new Connection(this, dataSocket));
         } else {
@@ -125,9 +184,13 @@ public class Servent extends Forwarder implements ServentRemote {
     Util.waitHelper(networkExplorer);
     Util.waitHelper(queryMessageForwarder);
     Util.waitHelper(fileServer);
-    for (int i = 0; i < connections.size(); i++) {
-      connections.get(i).interrupt();
+    if (overlay != null) {
+      overlay.shutdown();
     }
+    for (Connection conn : connections.snapshot()) {
+      conn.interrupt();
+    }
+    timer.shutdownNow();
     exec.shutdown();
     try {
       if (!exec.awaitTermination(10, TimeUnit.SECONDS)) {
@@ -136,18 +199,32 @@ public class Servent extends Forwarder implements ServentRemote {
     } catch (InterruptedException e) {
     }
   }
+  /**
+   * Crea un thread, non ancora avviato, secondo il modello di esecuzione scelto nelle
+   * impostazioni.
+   * @param task il compito che il thread dovrà eseguire.
+   * @return il nuovo thread.
+   */
+  Thread newThread(Runnable task) {
+    return threadFactory.newThread(task);
+  }
+  /**
+   * Indica se connessioni, trasferimenti e mittenti del servent girano su thread
+   * virtuali.
+   * @return <code>true</code> se il servent usa i thread virtuali.
+   */
+  public boolean isUsingVirtualThreads() {
+    return virtualThreads;
+  }
   /**
    * Restituisce i descrittori dei servents con cui questo ha delle connessioni in corso.
    * @return i descrittori dei servents con cui questo ha delle connessioni in corso.
    */
   public LinkedList<ServentDescriptor> getConnectedServents() {
     LinkedList<ServentDescriptor> conectedServents = new LinkedList<ServentDescriptor>();
-    synchronized (connections) {
-      for (int i = 0; i < connections.size(); i++) {
-        ServentDescriptor elem = connections.get(i).peer;
-        if (elem.isUsed()) {
-          conectedServents.add(elem);
-        }
+    for (Connection conn : connections.snapshot()) {
+      if (conn.peer.isUsed()) {
+        conectedServents.add(conn.peer);
       }
     }
     return conectedServents;
@@ -164,9 +241,13 @@ public class Servent extends Forwarder implements ServentRemote {
   }
   public void download(SearchResult res) {
     if (res.firewalled) {
-      PushMessage push = new PushMessage(res.searchId, res.fileName, fileServerPort);
+      PushMessage push = new PushMessage(res.searchIdHigh, res.searchIdLow, res.fileName, fileServerPort);
       Connection conn = seenQueryHit.get(push);
-      conn.send(push, conn);
+      if (conn == null) {
+        logger.appendError("Impossibile scaricare \"" + res.fileName + "\", risultato scaduto");
+        return;
+      }
+      conn.forward(push, conn);
     } else {
       exec.execute(new Downloader(this, res.address, res.fileServerPort, res.fileName));
     }
@@ -178,7 +259,7 @@ public class Servent extends Forwarder implements ServentRemote {
     synchronized (cache) {
       for (int i = 0; i < cache.size(); i++) {
         ServentDescriptor descr = cache.get(i);
-        if (connections.size() >= connectionsLimit) {
+        if (!needsConnections()) {
           break;
         } else if (!descr.isUsed()) {
           connect(cache.get(i));
@@ -235,7 +316,11 @@ public class Servent extends Forwarder implements ServentRemote {
     return !mustHalt;
   }
   protected void connect(ServentDescriptor peer) {
-    exec.execute(new Connection(this, peer));
+    if (overlay != null) {
+      overlay.connect(peer);
+    } else {
+      exec.execute(new Connection(this, peer));
+    }
   }
   public void connect(String host, int connectPort) {
     InetAddress address;
@@ -272,7 +357,7 @@ public class Servent extends Forwarder implements ServentRemote {
     if (!this.equals(peer) && !cache.contains(peer)) {
       logger.appendMessage("Un bootstrap server segnala in modo asincrono \"" + peer + "\"");
       cache.add(peer);
-      if (connections.size() < connectionsLimit) {
+      if (needsConnections()) {
         connect(peer);
       }
     }
@@ -290,21 +375,78 @@ public class Servent extends Forwarder implements ServentRemote {
    */
   public SearchResults search(String query) {
     String[] keyWords = query.split(" ");
-    QueryMessage msg = new QueryMessage(keyWords);
-    SearchResults results = new SearchResults(msg);
-    searches.put(msg, results);
-    synchronized (connections) {
-      int i;
-      for (i = 0; i < connections.size(); i++) {
-        connections.get(i).sendQueryMessage(msg);
+    String key = QueryMessage.keyOf(keyWords);
+    QueryMessage msg;
+    SearchResults results;
+    synchronized (activeSearches) {
+      // Una ricerca recente con le stesse parole chiave è ancora in corso: il nuovo
+      // chiamante ne condivide i risultati invece di inondare di nuovo la rete.
+      results = key == null ? null : activeSearches.get(key);
+      if (results != null && System.currentTimeMillis() - results.started <
+              Util.SEARCH_COALESCING_WINDOW && searches.get(results.id) == results) {
+        results.callers++;
+        coalescedSearches.incrementAndGet();
+        return results;
+      }
+      msg = new QueryMessage(keyWords);
+      results = new SearchResults(msg);
+      results.key = key;
+      if (key != null) {
+        activeSearches.put(key, results);
       }
-      if (i > 0) {
-        setSeen(msg, fakeConnection);
+    }
+    searches.put(msg, results);
+    int count = settings.getRandomWalkers();
+    if (count > 0) {
+      results.walkers = walkers.launch(msg, results, count);
+      return results;
+    }
+    if (settings.isDynamicQuerying() && timer != null) {
+      setSeen(msg, fakeConnection);
+      results.query = new DynamicQuery(this, msg, results);
+      results.query.start();
+      return results;
+    }
+    // La rotta va registrata prima di mandare la query: le prime risposte possono
+    // arrivare prima che il ciclo sia finito.
+    setSeen(msg, fakeConnection);
+    for (Connection conn : connections.snapshot()) {
+      if (conn.kind != Connection.LEAF_CONNECTION || conn.mayAnswer(msg)) {
+        conn.sendQueryMessage(msg);
       }
     }
     return results;
   }
+  /**
+   * Ferma una ricerca per conto di uno dei chiamanti che la condividono. La ricerca
+   * viene davvero fermata, e le sue rotte dimenticate, solo quando l'ultimo chiamante
+   * la ferma.
+   * @param results i risultati della ricerca.
+   */
   public void stopSearch(SearchResults results) {
+    synchronized (activeSearches) {
+      if (results.callers > 1) {
+        results.callers--;
+        return;
+      }
+      results.callers = 0;
+      if (results.key != null && activeSearches.get(results.key) == results) {
+        activeSearches.remove(results.key);
+      }
+    }
+    DynamicQuery query = results.query;
+    if (query != null) {
+      query.stop();
+    }
+    // Senza rotta le richieste dei camminatori non hanno più risposta e i
+    // camminatori vengono abbandonati dove si trovano.
+    QueryMessage[] walkerIds = results.walkers;
+    if (walkerIds != null) {
+      for (int i = 0; i < walkerIds.length; i++) {
+        removeSeen(walkerIds[i]);
+        searches.remove(walkerIds[i]);
+      }
+    }
     removeSeen(results.id);
     searches.remove(results.id);
   }
@@ -342,14 +484,381 @@ public class Servent extends Forwarder implements ServentRemote {
       }
     }
   }
+  /**
+   * Inoltra una query a tutti i vicini tranne quello da cui è arrivata. Le foglie, e
+   * tutti i vicini se la query non potrà essere inoltrata oltre, vengono saltati se
+   * la loro tabella di instradamento esclude una risposta.
+   */
   @Override
   void send(Message msg, Connection origin) {
-    for (int i = 0; i < connections.size(); i++) {
-      Connection conn = connections.get(i);
+    QueryMessage query = (QueryMessage) msg;
+    boolean lastHop = query.getTtl() == 0;
+    for (Connection conn : connections.snapshot()) {
       if (origin != conn) {
-        conn.sendQueryMessage((QueryMessage) msg);
+        queryForwards.incrementAndGet();
+        if ((lastHop || conn.kind == Connection.LEAF_CONNECTION) && !conn.mayAnswer(query)) {
+          suppressedQueryForwards.incrementAndGet();
+          continue;
+        }
+        conn.sendQueryMessage(query);
+      }
+    }
+  }
+  /**
+   * @return <code>true</code> se il servent partecipa alla rete a due livelli.
+   * @see ServentSettings#setRole(int)
+   */
+  boolean isTwoTier() {
+    return settings.getRole() != ServentSettings.ROLE_FLAT;
+  }
+  /**
+   * Chiude i collegamenti con i propri ultrapeer o con le proprie foglie stabiliti
+   * con un ruolo diverso da quello attuale, perchè vengano rifatti con il ruolo nuovo.
+   */
+  private void checkRole() {
+    boolean ultrapeer = isUltrapeer();
+    for (Connection conn : connections.snapshot()) {
+      if (!conn.mustClose && conn.hasStaleRole(ultrapeer)) {
+        logger.appendMessage("Ora sono " + (ultrapeer ? "ultrapeer" : "foglia") +
+                ", rifaccio la connessione con \"" + conn.peer + "\"");
+        conn.disconnect();
+      }
+    }
+  }
+  /**
+   * Indica il ruolo che il servent annuncia alle nuove connessioni.
+   * @return <code>true</code> se il servent si comporta da ultrapeer, <code>false</code>
+   * se da foglia o se non partecipa alla rete a due livelli.
+   * @see ServentSettings#setRole(int)
+   */
+  public boolean isUltrapeer() {
+    switch (settings.getRole()) {
+      case ServentSettings.ROLE_ULTRAPEER:
+        return true;
+      case ServentSettings.ROLE_LEAF:
+      case ServentSettings.ROLE_FLAT:
+        return false;
+      default:
+        return !firewalled && settings.getBandwidth() >= Util.ULTRAPEER_MIN_BANDWIDTH &&
+                System.currentTimeMillis() - startTime >= RELIABLE_TRESHOLD;
+    }
+  }
+  /**
+   * @return da quanti millisecondi il servent è attivo.
+   */
+  long getUptime() {
+    return System.currentTimeMillis() - startTime;
+  }
+  /**
+   * Indica se il servent può accettare un'altra connessione del tipo dato.
+   * @param kind il tipo di connessione, una delle costanti di {@link Connection}.
+   * @return <code>true</code> se c'è posto.
+   */
+  boolean hasSlotFor(int kind) {
+    switch (kind) {
+      case Connection.LEAF_CONNECTION:
+        return connections.count(Connection.LEAF_CONNECTION) < settings.getLeafSlots();
+      case Connection.ULTRAPEER_CONNECTION:
+        return connections.count(Connection.ULTRAPEER_CONNECTION) < settings.getLeafUltrapeers();
+      default:
+        // Una foglia che ha già i suoi ultrapeer non si collega ad altre foglie.
+        if (!isUltrapeer() && connections.count(Connection.ULTRAPEER_CONNECTION) > 0) {
+          return false;
+        }
+        return connections.count(Connection.PEER_CONNECTION) < connectionsLimit;
+    }
+  }
+  /**
+   * Indica se il servent deve cercare altre connessioni: un ultrapeer finchè non ha
+   * abbastanza connessioni con altri ultrapeer, una foglia finchè non ha abbastanza
+   * ultrapeer.
+   * @return <code>true</code> se il servent deve cercare altre connessioni.
+   */
+  boolean needsConnections() {
+    int ultrapeers = connections.count(Connection.ULTRAPEER_CONNECTION);
+    if (ultrapeers > 0 && !isUltrapeer()) {
+      return ultrapeers < settings.getLeafUltrapeers();
+    }
+    return connections.count(Connection.PEER_CONNECTION) < connectionsLimit;
+  }
+  /**
+   * @return il numero di foglie collegate al servent.
+   */
+  public int getLeafCount() {
+    return connections.count(Connection.LEAF_CONNECTION);
+  }
+  /**
+   * @return il numero di ultrapeer a cui il servent è collegato come foglia.
+   */
+  public int getUltrapeerCount() {
+    return connections.count(Connection.ULTRAPEER_CONNECTION);
+  }
+  /**
+   * Restituisce il numero di ricerche che hanno condiviso i risultati di una ricerca
+   * identica già in corso invece di avviarne una nuova.
+   * @return il numero di ricerche condivise.
+   */
+  public long getCoalescedSearches() {
+    return coalescedSearches.get();
+  }
+  /**
+   * Conta un messaggio di ricerca mandato ad un vicino.
+   * @param walker <code>true</code> per un camminatore o un suo messaggio di stato,
+   * <code>false</code> per una query inondata.
+   */
+  void recordQueryMessage(boolean walker) {
+    if (walker) {
+      walkerMessages.incrementAndGet();
+    } else {
+      floodMessages.incrementAndGet();
+    }
+  }
+  /**
+   * Restituisce il numero di query inondate mandate ai vicini, tra quelle avviate da
+   * questo servent e quelle inoltrate.
+   * @return il numero di messaggi.
+   */
+  public long getFloodMessages() {
+    return floodMessages.get();
+  }
+  /**
+   * Restituisce il numero di messaggi dei camminatori mandati ai vicini, contando
+   * passi, richieste e risposte. Sommato su tutti i servent e diviso per le ricerche
+   * andate a buon fine dà il costo di una ricerca a camminatori, da confrontare con
+   * quello ottenuto allo stesso modo da {@link #getFloodMessages()}.
+   * @return il numero di messaggi.
+   */
+  public long getWalkerMessages() {
+    return walkerMessages.get();
+  }
+  /**
+   * Conta una query ricevuta per la prima volta.
+   */
+  void recordReceivedQuery() {
+    receivedQueries.incrementAndGet();
+  }
+  /**
+   * Restituisce il numero di query diverse ricevute dai vicini, cioè il carico di
+   * ricerche che la rete impone al servent.
+   * @return il numero di query ricevute.
+   */
+  public long getReceivedQueries() {
+    return receivedQueries.get();
+  }
+  /**
+   * Registra la conclusione di una ricerca dinamica.
+   * @param neighbours il numero di vicini interrogati.
+   * @param saved la stima dei messaggi risparmiati rispetto ad un flooding completo.
+   */
+  void recordDynamicQuery(int neighbours, long saved) {
+    dynamicQueries.incrementAndGet();
+    dynamicQueryNeighbours.addAndGet(neighbours);
+    savedQueryMessages.addAndGet(saved);
+  }
+  /**
+   * Restituisce il numero di ricerche dinamiche concluse dall'avvio del servent.
+   * @return il numero di ricerche dinamiche concluse.
+   */
+  public long getDynamicQueries() {
+    return dynamicQueries.get();
+  }
+  /**
+   * Restituisce il numero medio di vicini interrogati da una ricerca dinamica.
+   * @return il numero medio di vicini interrogati.
+   */
+  public double getNeighboursPerDynamicQuery() {
+    long queries = dynamicQueries.get();
+    return queries == 0 ? 0 : (double) dynamicQueryNeighbours.get() / queries;
+  }
+  /**
+   * Restituisce la stima complessiva dei messaggi risparmiati dalle ricerche dinamiche
+   * rispetto ad altrettanti flooding completi.
+   * @return la stima dei messaggi risparmiati.
+   */
+  public long getSavedQueryMessages() {
+    return savedQueryMessages.get();
+  }
+  /**
+   * Restituisce la tabella di instradamento delle query che descrive i files condivisi
+   * da questo servent, calcolandola la prima volta.
+   * @return la tabella, o <code>null</code> se lo scambio delle tabelle è disattivato.
+   */
+  QueryRouteTable getQueryRoutes() {
+    if (!settings.isQueryRouting()) {
+      return null;
+    }
+    synchronized (this) {
+      if (queryRoutes == null && fileServer != null) {
+        queryRoutes = QueryRouteTable.fromFileNames(fileServer.getSharedFilesNames(),
+                QueryRouteTable.DEFAULT_BITS);
+      }
+      return queryRoutes;
+    }
+  }
+  /**
+   * Ricalcola la tabella di instradamento delle query dai files condivisi e ne invia
+   * le modifiche ai vicini che non hanno ancora la tabella corrente.
+   */
+  private void updateQueryRoutes() {
+    QueryRouteTable table = QueryRouteTable.fromFileNames(fileServer.getSharedFilesNames(),
+            QueryRouteTable.DEFAULT_BITS);
+    synchronized (this) {
+      if (!table.equals(queryRoutes)) {
+        queryRoutes = table;
       }
     }
+    // Anche se la tabella non è cambiata, le connessioni a cui un invio è fallito la
+    // rimandano.
+    for (Connection conn : connections.snapshot()) {
+      conn.sendQueryRoutes(table);
+    }
+  }
+  /**
+   * Restituisce il numero di inoltri di query ai vicini considerati dal servent,
+   * compresi quelli evitati grazie alle tabelle di instradamento.
+   * @return il numero di inoltri di query.
+   */
+  public long getQueryForwards() {
+    return queryForwards.get();
+  }
+  /**
+   * Restituisce il numero di inoltri di query evitati perchè la tabella di
+   * instradamento del vicino escludeva una risposta.
+   * @return il numero di inoltri evitati.
+   */
+  public long getSuppressedQueryForwards() {
+    return suppressedQueryForwards.get();
+  }
+  /**
+   * Restituisce la frazione degli inoltri di query evitati grazie alle tabelle di
+   * instradamento dei vicini.
+   * @return la frazione di inoltri evitati, tra 0 e 1.
+   */
+  public double getSuppressedQueryFraction() {
+    long forwards = queryForwards.get();
+    return forwards == 0 ? 0 : (double) suppressedQueryForwards.get() / forwards;
+  }
+  /**
+   * Restituisce il numero di rotte ricordate in questo momento dal servent, tra
+   * messaggi visti, query hit per la rotta inversa delle push, ricerche in corso e
+   * parole chiave delle query inoltrate.
+   * @return il numero di rotte.
+   */
+  public int getRouteCount() {
+    int count = getSeenTable().size() + seenQueryHit.size() + searches.size() +
+            queryKeys.size();
+    NetworkExplorer explorer = networkExplorer;
+    if (explorer != null) {
+      count += explorer.getSeenTable().size();
+    }
+    return count;
+  }
+  /**
+   * Restituisce il numero di rotte dimenticate perchè scadute dall'avvio del servent.
+   * @return il numero di rotte scadute.
+   */
+  public long getExpiredRoutes() {
+    long count = getSeenTable().getExpired() + seenQueryHit.getExpired() + searches.getExpired() +
+            queryKeys.getExpired();
+    NetworkExplorer explorer = networkExplorer;
+    if (explorer != null) {
+      count += explorer.getSeenTable().getExpired();
+    }
+    return count;
+  }
+  /**
+   * Restituisce il numero di rotte dimenticate prima della scadenza, perchè una
+   * tabella aveva raggiunto il numero massimo di rotte. Se cresce in fretta il limite
+   * è troppo basso per il traffico che attraversa il servent.
+   * @return il numero di rotte scartate.
+   */
+  public long getEvictedRoutes() {
+    long count = getSeenTable().getEvicted() + seenQueryHit.getEvicted() + searches.getEvicted() +
+            queryKeys.getEvicted();
+    NetworkExplorer explorer = networkExplorer;
+    if (explorer != null) {
+      count += explorer.getSeenTable().getEvicted();
+    }
+    return count;
+  }
+  /**
+   * Restituisce la frazione delle query ricevute a cui la cache delle query hit ha
+   * potuto rispondere.
+   * @return la frazione di query servite dalla cache, tra 0 e 1.
+   */
+  public double getHitCacheRatio() {
+    QueryHitCache cache = hitCache;
+    if (cache == null) {
+      return 0;
+    }
+    long lookups = cache.getLookups();
+    return lookups == 0 ? 0 : (double) cache.getHits() / lookups;
+  }
+  /**
+   * @return il numero di insiemi di parole chiave ricordati dalla cache delle query hit.
+   */
+  public int getHitCacheEntries() {
+    QueryHitCache cache = hitCache;
+    return cache == null ? 0 : cache.size();
+  }
+  /**
+   * @return la stima in bytes della memoria occupata dalla cache delle query hit.
+   */
+  public long getHitCacheBytes() {
+    QueryHitCache cache = hitCache;
+    return cache == null ? 0 : cache.getBytes();
+  }
+  /**
+   * @return il numero di pacchetti udp inviati dall'esploratore di rete.
+   */
+  public long getSentExplorePackets() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getSentPackets();
+  }
+  /**
+   * @return il numero di pacchetti udp ricevuti dall'esploratore di rete.
+   */
+  public long getReceivedExplorePackets() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getReceivedPackets();
+  }
+  /**
+   * @return il numero di pacchetti di ping e pong ricevuti e scartati perchè l'esploratore
+   * ne aveva già troppi in attesa di essere gestiti.
+   */
+  public long getDroppedExplorePackets() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getDroppedPackets();
+  }
+  /**
+   * @return il numero di ping periodici inviati ai vicini.
+   */
+  public long getSentPings() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getPingScheduler().getSentPings();
+  }
+  /**
+   * @return l'intervallo corrente in millisecondi tra due ping allo stesso vicino, che
+   * cresce quanto più la cache dei servent è ben fornita.
+   */
+  public long getPingInterval() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getPingScheduler().getInterval();
+  }
+  /**
+   * @return il numero di pong presi dalla cache in risposta ai ping ricevuti, invece di
+   * inoltrare i ping.
+   */
+  public long getCachedPongs() {
+    NetworkExplorer explorer = networkExplorer;
+    return explorer == null ? 0 : explorer.getCachedPongs();
+  }
+  /**
+   * Restituisce le impostazioni di funzionamento del servent.
+   * @return le impostazioni del servent.
+   */
+  public ServentSettings getSettings() {
+    return settings;
   }
   /**
    * Contiene l'elenco dei bootstrap server visti per segnalare ad ognuno la propria affidabilità.
@@ -395,17 +904,34 @@ public class Servent extends Forwarder implements ServentRemote {
    */
   protected ExecutorService exec;
   /**
-   * Il logger generale su cui annotare gli eventi salienti.
+   * La fabbrica dei thread che inviano i messaggi in coda.
    */
-  protected SimpleLogger logger;
+  private ThreadFactory threadFactory;
+  /**
+   * Indica se il servent usa i thread virtuali.
+   */
+  private boolean virtualThreads;
   /**
-   * Le connessioni stabilite dal servent da usare quando si vogliono scorrere tutte.
+   * L'esploratore di rete, se avviato.
    */
-  final LinkedList<Connection> connections;
+  private volatile NetworkExplorer networkExplorer;
   /**
-   * Elenco ad accesso veloce (sperabilmente costante) delle connessioni attive.
+   * Il trasporto non bloccante della overlay network, se scelto nelle impostazioni.
    */
-  protected Hashtable<ServentDescriptor, Connection> indexedConnections;
+  private NioOverlay overlay;
+  /**
+   * Le impostazioni di funzionamento del servent.
+   */
+  protected final ServentSettings settings;
+  /**
+   * Il logger generale su cui annotare gli eventi salienti.
+   */
+  protected SimpleLogger logger;
+  /**
+   * Le connessioni stabilite dal servent, da scorrere senza lock per il flooding o da
+   * cercare per peer.
+   */
+  final ConnectionRegistry connections;
   /**
    * Il servizio per le callback associato al servent.
    */
@@ -427,11 +953,78 @@ public class Servent extends Forwarder implements ServentRemote {
    * Tiene traccia di tutte le ricerche attive (i cui risultati vengono ancora raccolti)
    * indicizzate con l'id univoco del messaggio di searchId.
    */
-  protected Hashtable<Message, SearchResults> searches;
+  protected RouteTable<SearchResults> searches;
+  /**
+   * Le ricerche avviate di recente, indicizzate con le loro parole chiave normalizzate,
+   * che una nuova ricerca identica può condividere.
+   */
+  private final HashMap<String, SearchResults> activeSearches;
+  /**
+   * Il numero di ricerche che hanno condiviso una ricerca già in corso.
+   */
+  private final AtomicLong coalescedSearches;
+  /**
+   * Il numero di query inondate mandate ai vicini.
+   */
+  private final AtomicLong floodMessages;
+  /**
+   * Il numero di messaggi dei camminatori mandati ai vicini.
+   */
+  private final AtomicLong walkerMessages;
+  /**
+   * Il gestore delle ricerche a camminatori casuali.
+   */
+  final RandomWalker walkers;
   protected boolean firewalled;
   /**
-   * Questa tabella di hash è utilizzata dal servent e dalle connessioni per
+   * Questa tabella è utilizzata dal servent e dalle connessioni per
    * l'implementazione della rotta inversa dei messaggi di push.
    */
-  protected Hashtable<Message, Connection> seenQueryHit;
+  protected RouteTable<Connection> seenQueryHit;
+  /**
+   * La cache delle query hit, o <code>null</code> se disattivata.
+   */
+  volatile QueryHitCache hitCache;
+  /**
+   * Le parole chiave normalizzate delle query inoltrate, indicizzate con il loro
+   * identificatore, per ricordare nella cache le hit che tornano indietro.
+   */
+  protected RouteTable<String> queryKeys;
+  /**
+   * La tabella di instradamento delle query che descrive i files condivisi, calcolata
+   * alla prima connessione e aggiornata periodicamente.
+   */
+  private QueryRouteTable queryRoutes;
+  /**
+   * L'istante di avvio del servent.
+   */
+  private volatile long startTime;
+  /**
+   * Il numero di query diverse ricevute dai vicini.
+   */
+  private final AtomicLong receivedQueries;
+  /**
+   * Il numero di inoltri di query ai vicini considerati.
+   */
+  private final AtomicLong queryForwards;
+  /**
+   * Il numero di inoltri di query evitati grazie alle tabelle di instradamento.
+   */
+  private final AtomicLong suppressedQueryForwards;
+  /**
+   * Il temporizzatore su cui girano i compiti ritardati o periodici del servent.
+   */
+  volatile ScheduledExecutorService timer;
+  /**
+   * Il numero di ricerche dinamiche concluse.
+   */
+  private final AtomicLong dynamicQueries;
+  /**
+   * Il numero di vicini interrogati da tutte le ricerche dinamiche concluse.
+   */
+  private final AtomicLong dynamicQueryNeighbours;
+  /**
+   * La stima dei messaggi risparmiati dalle ricerche dinamiche.
+   */
+  private final AtomicLong savedQueryMessages;
 }
@@ -0,0 +1,632 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+/**
+ * Raccoglie i parametri di funzionamento di un servent che non sono indispensabili
+ * alla sua costruzione. Ogni parametro ha un valore di default ragionevole, per cui
+ * è sufficiente modificare solo ciò che interessa prima di passare le impostazioni
+ * al costruttore del servent.
+ * @author Michele Comignano
+ */
+public class ServentSettings {
+  /**
+   * Crea un nuovo insieme di impostazioni con i valori di default.
+   */
+  public ServentSettings() {
+    sendingQueueCapacity = Util.DEFAULT_SENDING_QUEUE_CAPACITY;
+    sendingQueueOfferTimeout = Util.DEFAULT_SENDING_QUEUE_OFFER_TIMEOUT;
+    maxBatchSize = Util.DEFAULT_MAX_BATCH_SIZE;
+    batchLinger = 0;
+    laneWeights = Util.DEFAULT_LANE_WEIGHTS.clone();
+    flowControl = false;
+    flowControlWaterMarksSet = false;
+    virtualThreads = false;
+    nioTransport = false;
+    eventLoops = Math.min(Runtime.getRuntime().availableProcessors(), Util.MAX_EVENT_LOOPS);
+    binaryCodec = true;
+    routeLifetime = Util.DEFAULT_ROUTE_LIFETIME;
+    maxRouteEntries = Util.DEFAULT_MAX_ROUTE_ENTRIES;
+    queryRouting = true;
+    dynamicQuerying = false;
+    dynamicQueryTarget = Util.DEFAULT_DYNAMIC_QUERY_TARGET;
+    dynamicQueryBudget = Util.DEFAULT_DYNAMIC_QUERY_BUDGET;
+    role = ROLE_FLAT;
+    bandwidth = Util.DEFAULT_BANDWIDTH;
+    leafSlots = Util.DEFAULT_LEAF_SLOTS;
+    leafUltrapeers = Util.DEFAULT_LEAF_ULTRAPEERS;
+    pongCache = true;
+    queryHitCache = false;
+    queryHitCacheBytes = Util.DEFAULT_QUERY_HIT_CACHE_BYTES;
+    randomWalkers = 0;
+    compression = false;
+    exploreReceivers = 1;
+    exploreHandlers = Math.min(Runtime.getRuntime().availableProcessors(), Util.MAX_EXPLORE_HANDLERS);
+  }
+  public int getSendingQueueCapacity() {
+    return sendingQueueCapacity;
+  }
+  /**
+   * Imposta il numero massimo di messaggi che possono essere in attesa di invio
+   * nella coda di ogni forwarder. Se le soglie del controllo di flusso non sono
+   * state impostate esplicitamente seguono la nuova capacità.
+   * @param sendingQueueCapacity la capacità della coda, almeno 1.
+   * @throws IllegalArgumentException se la capacità non è positiva.
+   */
+  public void setSendingQueueCapacity(int sendingQueueCapacity) {
+    if (sendingQueueCapacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.sendingQueueCapacity = sendingQueueCapacity;
+  }
+  public long getSendingQueueOfferTimeout() {
+    return sendingQueueOfferTimeout;
+  }
+  /**
+   * Imposta per quanto tempo chi accoda un messaggio può restare bloccato se la coda
+   * è piena, prima che il messaggio venga scartato. Con 0 il messaggio viene scartato
+   * subito.
+   * @param sendingQueueOfferTimeout l'attesa massima in millisecondi.
+   * @throws IllegalArgumentException se l'attesa è negativa.
+   */
+  public void setSendingQueueOfferTimeout(long sendingQueueOfferTimeout) {
+    if (sendingQueueOfferTimeout < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.sendingQueueOfferTimeout = sendingQueueOfferTimeout;
+  }
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+  /**
+   * Imposta quanti messaggi al più una connessione scrive sul socket tra una flush
+   * e l'altra.
+   * @param maxBatchSize il numero massimo di messaggi per flush, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxBatchSize = maxBatchSize;
+  }
+  public long getBatchLinger() {
+    return batchLinger;
+  }
+  /**
+   * Imposta quanto a lungo una connessione può attendere altri messaggi prima di
+   * scrivere un gruppo incompleto. Con 0 (il default) si scrive subito ciò che è in
+   * coda, senza aggiungere latenza.
+   * @param batchLinger l'attesa massima in millisecondi.
+   * @throws IllegalArgumentException se l'attesa è negativa.
+   */
+  public void setBatchLinger(long batchLinger) {
+    if (batchLinger < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.batchLinger = batchLinger;
+  }
+  public int[] getLaneWeights() {
+    return laneWeights.clone();
+  }
+  /**
+   * Imposta i pesi delle corsie delle code di invio, nell'ordine: query hit e push,
+   * query, ping e pong. Ogni peso è il numero di messaggi che la corsia può inviare
+   * per ogni giro del round robin quando tutte le corsie hanno messaggi in attesa.
+   * @param hits il peso della corsia di query hit e push.
+   * @param queries il peso della corsia delle query.
+   * @param explore il peso della corsia di ping e pong.
+   * @throws IllegalArgumentException se un peso non è positivo.
+   */
+  public void setLaneWeights(int hits, int queries, int explore) {
+    if (hits < 1 || queries < 1 || explore < 1) {
+      throw new IllegalArgumentException();
+    }
+    laneWeights = new int[] {hits, queries, explore};
+  }
+  public boolean isFlowControl() {
+    return flowControl;
+  }
+  /**
+   * Attiva o disattiva il controllo di flusso sulle code di invio delle connessioni.
+   * Con il controllo attivo una connessione il cui peer legge lentamente scarta per
+   * prime le query che hanno percorso più strada e rifiuta nuovi flooding finchè la
+   * sua coda non si è svuotata a sufficienza.
+   * @param flowControl <code>true</code> per attivare il controllo di flusso.
+   */
+  public void setFlowControl(boolean flowControl) {
+    this.flowControl = flowControl;
+  }
+  /**
+   * @return la soglia alta del controllo di flusso, di default i tre quarti della
+   * capacità delle code di invio.
+   */
+  public int getFlowControlHighWater() {
+    return flowControlWaterMarksSet ? flowControlHighWater : sendingQueueCapacity * 3 / 4;
+  }
+  /**
+   * @return la soglia bassa del controllo di flusso, di default un quarto della
+   * capacità delle code di invio.
+   */
+  public int getFlowControlLowWater() {
+    return flowControlWaterMarksSet ? flowControlLowWater : sendingQueueCapacity / 4;
+  }
+  /**
+   * Imposta le soglie del controllo di flusso in numero di messaggi in attesa. Da qui
+   * in poi le soglie non seguono più la capacità delle code di invio.
+   * @param lowWater sotto questa soglia la coda torna ad accettare flooding.
+   * @param highWater sopra questa soglia la coda scarta query e rifiuta flooding.
+   * @throws IllegalArgumentException se le soglie non sono tali che
+   * 0 <= lowWater < highWater.
+   */
+  public void setFlowControlWaterMarks(int lowWater, int highWater) {
+    if (lowWater < 0 || lowWater >= highWater) {
+      throw new IllegalArgumentException();
+    }
+    this.flowControlLowWater = lowWater;
+    this.flowControlHighWater = highWater;
+    this.flowControlWaterMarksSet = true;
+  }
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+  /**
+   * Sceglie il modello di esecuzione del servent. Con i thread virtuali connessioni,
+   * mittenti, gestori dei trasferimenti e scaricamenti non occupano più un thread di
+   * sistema ciascuno, il che conta con centinaia di vicini. Se la piattaforma non
+   * offre i thread virtuali si usano comunque quelli di sistema.
+   * @param virtualThreads <code>true</code> per usare i thread virtuali.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+  public boolean isNioTransport() {
+    return nioTransport;
+  }
+  /**
+   * Sceglie il trasporto della overlay network. Con quello non bloccante un piccolo
+   * numero di event loop gestisce tutte le connessioni, invece di due thread per
+   * ogni vicino. I due trasporti parlano lo stesso protocollo, per cui servent che
+   * ne usano di diversi possono connettersi tra loro.
+   * @param nioTransport <code>true</code> per il trasporto non bloccante.
+   */
+  public void setNioTransport(boolean nioTransport) {
+    this.nioTransport = nioTransport;
+  }
+  public int getEventLoops() {
+    return eventLoops;
+  }
+  /**
+   * Imposta il numero di event loop del trasporto non bloccante.
+   * @param eventLoops il numero di event loop, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setEventLoops(int eventLoops) {
+    if (eventLoops < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.eventLoops = eventLoops;
+  }
+  public boolean isBinaryCodec() {
+    return binaryCodec;
+  }
+  /**
+   * Stabilisce se proporre ai peer il formato binario dei messaggi, più compatto e
+   * veloce da tradurre della serializzazione di Java. Il formato viene concordato
+   * nella stretta di mano, per cui con i peer che non lo conoscono si continua ad
+   * usare la serializzazione.
+   * @param binaryCodec <code>true</code> per proporre il formato binario.
+   */
+  public void setBinaryCodec(boolean binaryCodec) {
+    this.binaryCodec = binaryCodec;
+  }
+  public long getRouteLifetime() {
+    return routeLifetime;
+  }
+  /**
+   * Imposta per quanto tempo il servent ricorda un messaggio visto e la connessione
+   * da cui è arrivato, cioè per quanto le risposte possono seguirne la rotta inversa.
+   * Vale anche per le ricerche avviate dal servent stesso.
+   * @param routeLifetime il tempo di vita delle rotte in millisecondi, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setRouteLifetime(long routeLifetime) {
+    if (routeLifetime < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.routeLifetime = routeLifetime;
+  }
+  public int getMaxRouteEntries() {
+    return maxRouteEntries;
+  }
+  /**
+   * Imposta il numero massimo di rotte in ogni tabella di instradamento. Superato il
+   * limite le rotte più vecchie vengono dimenticate prima della scadenza.
+   * @param maxRouteEntries il numero massimo di rotte, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setMaxRouteEntries(int maxRouteEntries) {
+    if (maxRouteEntries < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxRouteEntries = maxRouteEntries;
+  }
+  public boolean isQueryRouting() {
+    return queryRouting;
+  }
+  /**
+   * Stabilisce se scambiare con i vicini le tabelle di instradamento delle query. Un
+   * vicino che conosce la tabella di questo servent non gli inoltra le query
+   * all'ultimo passo a cui non potrebbe rispondere, e viceversa. Lo scambio viene
+   * concordato nella stretta di mano, per cui i peer che non lo conoscono ricevono
+   * tutte le query come prima.
+   * @param queryRouting <code>true</code> per scambiare le tabelle.
+   */
+  public void setQueryRouting(boolean queryRouting) {
+    this.queryRouting = queryRouting;
+  }
+  public boolean isDynamicQuerying() {
+    return dynamicQuerying;
+  }
+  /**
+   * Sceglie come vengono avviate le ricerche. Con le ricerche dinamiche la query
+   * parte verso pochi vicini con un ttl basso e raggiunge altri vicini, con ttl
+   * adeguati alla resa osservata, solo finchè non arrivano abbastanza risultati;
+   * altrimenti viene mandata subito a tutti i vicini con il ttl massimo.
+   * @param dynamicQuerying <code>true</code> per le ricerche dinamiche.
+   */
+  public void setDynamicQuerying(boolean dynamicQuerying) {
+    this.dynamicQuerying = dynamicQuerying;
+  }
+  public int getDynamicQueryTarget() {
+    return dynamicQueryTarget;
+  }
+  /**
+   * Imposta il numero di risultati raggiunto il quale una ricerca dinamica smette di
+   * interrogare altri vicini.
+   * @param dynamicQueryTarget il numero di risultati, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setDynamicQueryTarget(int dynamicQueryTarget) {
+    if (dynamicQueryTarget < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.dynamicQueryTarget = dynamicQueryTarget;
+  }
+  public long getDynamicQueryBudget() {
+    return dynamicQueryBudget;
+  }
+  /**
+   * Imposta per quanto tempo una ricerca dinamica può interrogare altri vicini.
+   * @param dynamicQueryBudget il tempo a disposizione in millisecondi, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setDynamicQueryBudget(long dynamicQueryBudget) {
+    if (dynamicQueryBudget < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.dynamicQueryBudget = dynamicQueryBudget;
+  }
+  public int getRole() {
+    return role;
+  }
+  /**
+   * Sceglie il ruolo del servent nella rete a due livelli, che è facoltativa: con
+   * {@link #ROLE_FLAT}, il default, il servent non annuncia alcun ruolo e tutte le sue
+   * connessioni sono tra pari. Un ultrapeer tiene molte
+   * foglie e poche connessioni con altri ultrapeer e inoltra le query alle foglie
+   * solo se la loro tabella di instradamento ammette una risposta; una foglia si
+   * collega a pochi ultrapeer e non inoltra query. Con {@link #ROLE_AUTO} il servent
+   * diventa ultrapeer se non è dietro un firewall, se ha dichiarato abbastanza banda
+   * e se è in linea da abbastanza tempo da essere considerato affidabile; quando il
+   * ruolo cambia i collegamenti stabiliti con il ruolo precedente vengono rifatti.
+   * @param role una tra {@link #ROLE_FLAT}, {@link #ROLE_AUTO}, {@link #ROLE_ULTRAPEER}
+   * e {@link #ROLE_LEAF}.
+   * @throws IllegalArgumentException se il ruolo non è tra questi.
+   */
+  public void setRole(int role) {
+    if (role != ROLE_FLAT && role != ROLE_AUTO && role != ROLE_ULTRAPEER && role != ROLE_LEAF) {
+      throw new IllegalArgumentException();
+    }
+    this.role = role;
+  }
+  public int getBandwidth() {
+    return bandwidth;
+  }
+  /**
+   * Dichiara la banda in uscita di cui dispone il servent, usata per scegliere il
+   * ruolo in modo automatico.
+   * @param bandwidth la banda in kbit/s, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setBandwidth(int bandwidth) {
+    if (bandwidth < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.bandwidth = bandwidth;
+  }
+  public int getLeafSlots() {
+    return leafSlots;
+  }
+  /**
+   * Imposta quante foglie al più accetta il servent quando è ultrapeer. Le foglie non
+   * contano nel numero massimo di connessioni del servent.
+   * @param leafSlots il numero di foglie, anche 0.
+   * @throws IllegalArgumentException se il valore è negativo.
+   */
+  public void setLeafSlots(int leafSlots) {
+    if (leafSlots < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.leafSlots = leafSlots;
+  }
+  public int getLeafUltrapeers() {
+    return leafUltrapeers;
+  }
+  /**
+   * Imposta a quanti ultrapeer al più si collega il servent quando è una foglia.
+   * @param leafUltrapeers il numero di ultrapeer, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setLeafUltrapeers(int leafUltrapeers) {
+    if (leafUltrapeers < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.leafUltrapeers = leafUltrapeers;
+  }
+  public boolean isPongCache() {
+    return pongCache;
+  }
+  /**
+   * Stabilisce se l'esploratore di rete risponde ai ping con i pong recenti che ha in
+   * cache invece di inoltrarli a tutti i vicini.
+   * @param pongCache <code>true</code> per usare la cache dei pong.
+   */
+  public void setPongCache(boolean pongCache) {
+    this.pongCache = pongCache;
+  }
+  public boolean isQueryHitCache() {
+    return queryHitCache;
+  }
+  /**
+   * Stabilisce se il servent ricorda le query hit che lo attraversano per rispondere
+   * direttamente alle query ripetute. Una query a cui la cache ha risposto viene
+   * comunque inoltrata, ma con metà del ttl rimasto, per cui i risultati dei servent
+   * più lontani possono arrivare solo dalla cache.
+   * @param queryHitCache <code>true</code> per usare la cache delle query hit.
+   */
+  public void setQueryHitCache(boolean queryHitCache) {
+    this.queryHitCache = queryHitCache;
+  }
+  public long getQueryHitCacheBytes() {
+    return queryHitCacheBytes;
+  }
+  /**
+   * Imposta la memoria massima stimata occupata dalla cache delle query hit.
+   * @param queryHitCacheBytes la memoria in bytes, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setQueryHitCacheBytes(long queryHitCacheBytes) {
+    if (queryHitCacheBytes < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.queryHitCacheBytes = queryHitCacheBytes;
+  }
+  public int getRandomWalkers() {
+    return randomWalkers;
+  }
+  /**
+   * Sceglie la strategia delle nuove ricerche. Con 0 la query viene inondata nella
+   * rete; altrimenti partono tanti camminatori casuali quanti indicati, ognuno dei
+   * quali visita un vicino alla volta e chiede periodicamente al servent che ha
+   * avviato la ricerca se deve proseguire. Conviene per i files rari, che un
+   * flooding con ttl limitato non raggiunge senza inondare tutta la rete vicina.
+   * Una ricerca a camminatori si ferma quando ha raccolto tanti risultati quanti
+   * quelli indicati da {@link #setDynamicQueryTarget(int)}.
+   * @param randomWalkers il numero di camminatori, 0 per il flooding.
+   * @throws IllegalArgumentException se il valore è negativo.
+   */
+  public void setRandomWalkers(int randomWalkers) {
+    if (randomWalkers < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.randomWalkers = randomWalkers;
+  }
+  public boolean isCompression() {
+    return compression;
+  }
+  /**
+   * Stabilisce se proporre e accettare la compressione deflate delle connessioni.
+   * Query e hit sono testo molto ripetitivo e compresse occupano una frazione della
+   * banda, al prezzo del tempo speso a comprimere e decomprimere; un peer che non
+   * la conosce o non la vuole continua a usare le connessioni in chiaro.
+   * @param compression <code>true</code> per comprimere le connessioni.
+   */
+  public void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+  public int getExploreReceivers() {
+    return exploreReceivers;
+  }
+  /**
+   * Imposta quanti canali udp ricevono ping e pong, tutti legati alla stessa porta
+   * con <code>SO_REUSEPORT</code> così che il sistema distribuisca tra loro i
+   * pacchetti in arrivo. Se il sistema o la piattaforma non lo permettono si usa
+   * un solo canale.
+   * @param exploreReceivers il numero di canali, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setExploreReceivers(int exploreReceivers) {
+    if (exploreReceivers < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.exploreReceivers = exploreReceivers;
+  }
+  public int getExploreHandlers() {
+    return exploreHandlers;
+  }
+  /**
+   * Imposta quanti thread gestiscono i ping e i pong ricevuti. I pacchetti di uno
+   * stesso peer vanno sempre allo stesso thread, così che restino nell'ordine di arrivo.
+   * @param exploreHandlers il numero di thread, almeno 1.
+   * @throws IllegalArgumentException se il valore non è positivo.
+   */
+  public void setExploreHandlers(int exploreHandlers) {
+    if (exploreHandlers < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.exploreHandlers = exploreHandlers;
+  }
+  /**
+   * Il ruolo è scelto dal servent in base alle sue caratteristiche.
+   */
+  public static final int ROLE_AUTO = 0;
+  /**
+   * Il servent è sempre ultrapeer.
+   */
+  public static final int ROLE_ULTRAPEER = 1;
+  /**
+   * Il servent è sempre una foglia.
+   */
+  public static final int ROLE_LEAF = 2;
+  /**
+   * Il servent non partecipa alla rete a due livelli.
+   */
+  public static final int ROLE_FLAT = 3;
+  /**
+   * La capacità delle code di invio.
+   */
+  private int sendingQueueCapacity;
+  /**
+   * L'attesa massima in millisecondi per accodare un messaggio in una coda piena.
+   */
+  private long sendingQueueOfferTimeout;
+  /**
+   * Il numero massimo di messaggi scritti da una connessione per ogni flush.
+   */
+  private int maxBatchSize;
+  /**
+   * L'attesa massima in millisecondi per completare un gruppo di messaggi.
+   */
+  private long batchLinger;
+  /**
+   * I pesi delle corsie delle code di invio.
+   */
+  private int[] laneWeights;
+  /**
+   * Indica se le connessioni applicano il controllo di flusso.
+   */
+  private boolean flowControl;
+  /**
+   * La soglia alta del controllo di flusso.
+   */
+  private int flowControlHighWater;
+  /**
+   * La soglia bassa del controllo di flusso.
+   */
+  private int flowControlLowWater;
+  /**
+   * Indica se le soglie del controllo di flusso sono state impostate esplicitamente
+   * invece di essere ricavate dalla capacità delle code di invio.
+   */
+  private boolean flowControlWaterMarksSet;
+  /**
+   * Indica se usare i thread virtuali.
+   */
+  private boolean virtualThreads;
+  /**
+   * Indica se usare il trasporto non bloccante.
+   */
+  private boolean nioTransport;
+  /**
+   * Il numero di event loop del trasporto non bloccante.
+   */
+  private int eventLoops;
+  /**
+   * Indica se proporre il formato binario dei messaggi.
+   */
+  private boolean binaryCodec;
+  /**
+   * Il tempo di vita in millisecondi delle rotte.
+   */
+  private long routeLifetime;
+  /**
+   * Il numero massimo di rotte per tabella.
+   */
+  private int maxRouteEntries;
+  /**
+   * Indica se scambiare le tabelle di instradamento delle query.
+   */
+  private boolean queryRouting;
+  /**
+   * Indica se avviare le ricerche in modo dinamico.
+   */
+  private boolean dynamicQuerying;
+  /**
+   * Il numero di risultati che ferma una ricerca dinamica.
+   */
+  private int dynamicQueryTarget;
+  /**
+   * Il tempo a disposizione di una ricerca dinamica in millisecondi.
+   */
+  private long dynamicQueryBudget;
+  /**
+   * Il ruolo del servent nella rete a due livelli.
+   */
+  private int role;
+  /**
+   * La banda in uscita dichiarata in kbit/s.
+   */
+  private int bandwidth;
+  /**
+   * Il numero massimo di foglie di un ultrapeer.
+   */
+  private int leafSlots;
+  /**
+   * Il numero massimo di ultrapeer di una foglia.
+   */
+  private int leafUltrapeers;
+  /**
+   * Indica se usare la cache dei pong.
+   */
+  private boolean pongCache;
+  /**
+   * Indica se usare la cache delle query hit.
+   */
+  private boolean queryHitCache;
+  /**
+   * La memoria massima della cache delle query hit in bytes.
+   */
+  private long queryHitCacheBytes;
+  /**
+   * Il numero di camminatori di una ricerca, 0 per il flooding.
+   */
+  private int randomWalkers;
+  /**
+   * Indica se comprimere le connessioni.
+   */
+  private boolean compression;
+  /**
+   * Il numero di canali udp dell'esploratore di rete.
+   */
+  private int exploreReceivers;
+  /**
+   * Il numero di thread che gestiscono i pacchetti dell'esploratore di rete.
+   */
+  private int exploreHandlers;
+}
@@ -0,0 +1,103 @@
+/* This file is part of Mini-Gnutella.
+ * Copyright (C) 2010  Michele Comignano
+ *
+ * Foobar is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Foobar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Foobar.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package it.unipi.di.cli.comignan.lpr08.servent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Fabbrica i thread e gli esecutori usati dal servent, che possono essere thread
+ * di sistema o thread virtuali. I thread virtuali sono disponibili solo dalle
+ * versioni della piattaforma che li prevedono: sono quindi cercati a runtime e,
+ * se mancano, si ripiega sui thread di sistema.
+ * @author Michele Comignano
+ */
+class Threads {
+  /**
+   * Indica se la piattaforma in uso offre i thread virtuali.
+   * @return <code>true</code> se i thread virtuali sono disponibili.
+   */
+  static boolean isVirtualAvailable() {
+    return virtualFactory("probe-") != null;
+  }
+  /**
+   * Crea una fabbrica di thread.
+   * @param virtual <code>true</code> per thread virtuali, se disponibili.
+   * @param prefix il prefisso dei nomi dei thread creati.
+   * @return la fabbrica di thread.
+   */
+  static ThreadFactory newFactory(boolean virtual, String prefix) {
+    ThreadFactory factory = virtual ? virtualFactory(prefix) : null;
+    return factory != null ? factory : Executors.defaultThreadFactory();
+  }
+  /**
+   * Crea un esecutore per i compiti del servent. Con i thread virtuali ogni compito
+   * ha il suo thread, che non costa quasi nulla; altrimenti si usa un pool di thread
+   * di sistema che li riusa.
+   * @param virtual <code>true</code> per thread virtuali, se disponibili.
+   * @param prefix il prefisso dei nomi dei thread creati.
+   * @return l'esecutore.
+   */
+  static ExecutorService newExecutor(boolean virtual, String prefix) {
+    ThreadFactory factory = virtual ? virtualFactory(prefix) : null;
+    if (factory != null) {
+      try {
+        Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) m.invoke(null, factory);
+      } catch (Exception e) {
+        return Executors.newCachedThreadPool(factory);
+      }
+    }
+    return Executors.newCachedThreadPool();
+  }
+  /**
+   * Crea il temporizzatore del servent, un unico thread di sistema che esegue i compiti
+   * ritardati o periodici. I compiti devono essere brevi e non bloccarsi, perchè
+   * ritardano tutti gli altri.
+   * @param name il nome del thread.
+   * @return il temporizzatore.
+   */
+  static ScheduledExecutorService newTimer(final String name) {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+  /**
+   * Cerca una fabbrica di thread virtuali.
+   * @param prefix il prefisso dei nomi dei thread creati.
+   * @return la fabbrica o <code>null</code> se la piattaforma non offre thread virtuali.
+   */
+  private static ThreadFactory virtualFactory(String prefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+              prefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
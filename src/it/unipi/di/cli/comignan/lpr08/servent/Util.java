@@ -17,6 +17,8 @@
 
 package it.unipi.di.cli.comignan.lpr08.servent;
 
+import java.util.zip.Deflater;
+
 /**
  * Costanti e procedure di utilità comune.
  * @author Michele Comignano
@@ -36,11 +38,175 @@ class Util {
     }
   }
   /**
-   * L'intervallo minimo in millisecondi che deve intercorrere tra l'invio di
-   * un messaggio e l'altro relativamente al singolo thread che invia messaggi.
+   * L'intervallo minimo in millisecondi tra due ping allo stesso vicino, usato
+   * quando la cache dei servent è vuota.
+   */
+  protected static final long PING_MIN_INTERVAL = 5000;
+  /**
+   * L'intervallo massimo in millisecondi tra due ping allo stesso vicino, usato
+   * quando la cache dei servent è ben fornita.
+   */
+  protected static final long PING_MAX_INTERVAL = 60000;
+  /**
+   * Di quanto per cento, in più o in meno, viene spostato a caso ogni intervallo tra
+   * i ping.
+   */
+  protected static final int PING_JITTER_PERCENT = 25;
+  /**
+   * Ogni quanti millisecondi si controlla a quali vicini è ora di mandare un ping.
+   */
+  protected static final long PING_SCHEDULER_TICK = 500;
+  /**
+   * Per quanto tempo (in millisecondi) un servent della cache di cui non arrivano
+   * notizie è ancora considerato fresco.
+   */
+  protected static final long HOST_CACHE_FRESHNESS = PING_MAX_INTERVAL * 2;
+  /**
+   * Quanti servent freschi e liberi per ogni connessione possibile servono perchè
+   * la cache sia considerata ben fornita.
+   */
+  protected static final int FRESH_PEERS_PER_CONNECTION = 4;
+  /**
+   * La capacità di default della coda di invio di ogni forwarder.
+   */
+  protected static final int DEFAULT_SENDING_QUEUE_CAPACITY = 1024;
+  /**
+   * L'attesa massima di default (in millisecondi) per accodare un messaggio in una
+   * coda di invio piena.
+   */
+  protected static final long DEFAULT_SENDING_QUEUE_OFFER_TIMEOUT = 200;
+  /**
+   * Il numero massimo di default di messaggi scritti da una connessione per ogni flush.
+   */
+  protected static final int DEFAULT_MAX_BATCH_SIZE = 64;
+  /**
+   * I pesi di default delle corsie delle code di invio: query hit e push, query,
+   * ping e pong.
+   */
+  protected static final int[] DEFAULT_LANE_WEIGHTS = {8, 4, 1};
+  /**
+   * Il numero massimo di event loop scelto di default per il trasporto non bloccante.
+   */
+  protected static final int MAX_EVENT_LOOPS = 4;
+  /**
+   * Ogni quanto tempo (in millisecondi) un event loop con strette di mano in corso
+   * si sveglia per chiudere quelle che durano da più di {@link #SOCKET_SO_TIMEOUT}.
+   */
+  protected static final long HANDSHAKE_CHECK_TICK = 1000;
+  /**
+   * La dimensione (in bytes) chiesta al sistema per il buffer di ricezione del canale
+   * udp dell'esploratore, così che una raffica di pong non vada persa mentre
+   * l'esploratore è occupato.
+   */
+  protected static final int EXPLORE_RECEIVE_BUFFER_SIZE = 256 * 1024;
+  /**
+   * Il numero massimo di thread scelto di default per gestire i pacchetti
+   * dell'esploratore di rete.
+   */
+  protected static final int MAX_EXPLORE_HANDLERS = 4;
+  /**
+   * Quanti pacchetti ricevuti possono attendere ogni thread che gestisce ping e pong
+   * prima che i nuovi vengano scartati.
+   */
+  protected static final int EXPLORE_HANDLER_QUEUE_CAPACITY = 4096;
+  /**
+   * Il livello della compressione deflate delle connessioni: il più veloce, perchè i
+   * messaggi sono piccoli e molto ripetitivi e i livelli più alti guadagnano poco.
+   */
+  protected static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+  /**
+   * La dimensione del buffer in cui una connessione accumula i messaggi tra una
+   * flush e l'altra.
+   */
+  protected static final int CONNECTION_BUFFER_SIZE = 16 * 1024;
+  /**
+   * Il tempo di vita di default (in millisecondi) delle rotte dei messaggi visti.
+   */
+  protected static final long DEFAULT_ROUTE_LIFETIME = 10 * 60 * 1000;
+  /**
+   * Il numero massimo di default di rotte in ogni tabella di instradamento.
+   */
+  protected static final int DEFAULT_MAX_ROUTE_ENTRIES = 100000;
+  /**
+   * Ogni quanto (in millisecondi) il servent ricalcola la propria tabella di
+   * instradamento delle query e ne invia le modifiche ai vicini.
+   */
+  protected static final long QUERY_ROUTES_UPDATE_INTERVAL = 30000;
+  /**
+   * L'attesa (in millisecondi) tra un passo e l'altro di una ricerca dinamica, per
+   * dare tempo ai risultati del passo precedente di arrivare.
+   */
+  protected static final long DYNAMIC_QUERY_STEP_INTERVAL = 2400;
+  /**
+   * Il numero di default di risultati raggiunto il quale una ricerca dinamica si ferma.
+   */
+  protected static final int DEFAULT_DYNAMIC_QUERY_TARGET = 50;
+  /**
+   * Il tempo di default (in millisecondi) a disposizione di una ricerca dinamica.
+   */
+  protected static final long DEFAULT_DYNAMIC_QUERY_BUDGET = 30000;
+  /**
+   * La banda in uscita (in kbit/s) dichiarata di default da un servent.
+   */
+  protected static final int DEFAULT_BANDWIDTH = 1024;
+  /**
+   * La banda in uscita minima (in kbit/s) perchè un servent possa diventare ultrapeer.
+   */
+  protected static final int ULTRAPEER_MIN_BANDWIDTH = 256;
+  /**
+   * Il numero di default di foglie che un ultrapeer accetta.
+   */
+  protected static final int DEFAULT_LEAF_SLOTS = 30;
+  /**
+   * Il numero di default di ultrapeer a cui si collega una foglia.
+   */
+  protected static final int DEFAULT_LEAF_ULTRAPEERS = 3;
+  /**
+   * Per quanto tempo (in millisecondi) un pong resta nella cache dei pong. Supera
+   * l'intervallo più lungo tra due ping allo stesso vicino, anche spostato a caso,
+   * così che i ping periodici rinfreschino la cache prima che scada.
+   */
+  protected static final long PONG_CACHE_LIFETIME = PING_MAX_INTERVAL * 3 / 2;
+  /**
+   * Il numero massimo di pong presi dalla cache per rispondere ad un ping.
+   */
+  protected static final int PONG_CACHE_REPLIES = 10;
+  /**
+   * Il numero massimo di peer segnalati in un pong multiplo, compreso il servent che
+   * risponde.
+   */
+  protected static final int PONG_BATCH_SIZE = 32;
+  /**
+   * Per quanto tempo (in millisecondi) una voce della cache delle query hit resta buona.
+   */
+  protected static final long QUERY_HIT_CACHE_LIFETIME = 60000;
+  /**
+   * La memoria massima di default (in bytes) occupata dalla cache delle query hit.
+   */
+  protected static final long DEFAULT_QUERY_HIT_CACHE_BYTES = 1024 * 1024;
+  /**
+   * Il numero massimo di hit ricordate per ogni insieme di parole chiave.
+   */
+  protected static final int QUERY_HIT_CACHE_MAX_HITS = 32;
+  /**
+   * Il ttl di un camminatore casuale, cioè il numero massimo di passi che compie.
+   */
+  protected static final byte WALKER_TTL = 64;
+  /**
+   * Ogni quanti passi un camminatore chiede al servent che ha avviato la ricerca se
+   * deve proseguire.
+   */
+  protected static final int WALKER_CHECK_HOPS = 4;
+  /**
+   * Per quanto tempo (in millisecondi) un camminatore attende la risposta alla sua
+   * richiesta prima di essere abbandonato.
+   */
+  protected static final long WALKER_CHECK_TIMEOUT = 10000;
+  /**
+   * Per quanto tempo (in millisecondi) dal suo avvio una ricerca può essere condivisa
+   * con chi chiede di nuovo le stesse parole chiave.
    */
-  protected static final long PING_SENDING_INTERVAL = 10000;
-  protected static final long NEW_MESSAGES_CHECK_INTERVAL = 1000;
+  protected static final long SEARCH_COALESCING_WINDOW = 60000;
   /**
    * Il tempo massiche che il servent deve attendere sul proprio socket TCP.
    */